@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Which way a lookup reads its rows, through the buckets or without them, and what
+ * each way is expected to cost by the ColumnStatistics of its table. With
+ * use_index_or_not "auto" the cheaper one is taken, with True or False the given
+ * one; either way the "e" instruction prints the estimates.
+ *
+ * Costs count the rows stepped through: bucket entries, row numbers read out of the
+ * column index and records, a record of a cells table being one row per column.
+ * With f_c the share of rows that have the bound value of column c and b_c its
+ * COL_RANGE bits:
+ *
+ *   index     a row is a candidate when the hash bits of every bound column match,
+ *             which its value does or a different value does with chance k_c 2^-b_c,
+ *             k_c being the number of values of an IN list and 1 otherwise:
+ *             candidates = rows * product over bound c of (f_c + (1 - f_c) * k_c 2^-b_c)
+ *             plus the buckets read, as in WorkloadAdvisor, or every bucket entry
+ *             when the plan is a scan
+ *   no index  without a column index every record. With one, the counts and row
+ *             numbers of the bound columns in the order Database.intersectBoundColumns
+ *             takes them, down to where it stops, then the records left, assuming
+ *             the columns are independent. Counting only steps through the value
+ *             index of an indexed table without returning rows, so a counted row
+ *             costs COUNT_COST. A cells table without one is not counted, and the
+ *             row numbers of each column cost a pass over all of its cells
+ */
+public class AccessPathChoice {
+    private static final double COUNT_COST = 0.1;
+
+    private String tableName;
+    private List<String> values;
+    private String flag;
+    private ColumnStatistics statistics;
+    private BucketPlan plan;
+    private boolean hasColumnIndex;
+    private long rows;
+    private double candidates;
+    private double indexCost;
+    private double noIndexCost;
+    // the 0 indexed bound columns the no index path reads the row numbers of, in order
+    private List<Integer> columnOrder = new ArrayList<>();
+    private boolean useIndex;
+
+    public AccessPathChoice(TableInfo table, List<String> values, String flag, BucketPlan plan,
+            ColumnStatistics statistics, boolean hasColumnIndex) {
+        this.tableName = table.getName();
+        this.values = values;
+        this.flag = flag;
+        this.statistics = statistics;
+        this.plan = plan;
+        this.hasColumnIndex = hasColumnIndex;
+        this.rows = statistics.getRows();
+        int recordCost = hasColumnIndex ? table.getNumColumns() : 1;
+        boolean valueIndex = table.getRowFormat().equals(RowStore.FORMAT_INDEXED);
+        List<Integer> bound = ColumnStatistics.boundColumns(values);
+
+        this.candidates = this.rows;
+        double freeBuckets = 1;
+        for (int i = 0; i < values.size(); i++) {
+            double bucketShare = Math.pow(2, -table.getColumnRanges().get(i));
+            if (bound.contains(i)) {
+                // an IN list reads the buckets of each of its values
+                int choices = LookupPattern.choices(values.get(i)).size();
+                double share = share(i);
+                this.candidates *= share + (1 - share) * Math.min(1, choices * bucketShare);
+                freeBuckets *= Math.min(choices, 1 / bucketShare);
+            } else {
+                freeBuckets *= Math.min(statistics.estimateDistinct(i), 1 / bucketShare);
+            }
+        }
+        this.indexCost = plan.isScan() ? this.rows + this.candidates * recordCost
+                : Math.max(1, Math.min(this.candidates, freeBuckets)) + this.candidates * (1 + recordCost);
+
+        if (bound.isEmpty() || !hasColumnIndex) {
+            this.noIndexCost = (double) this.rows * recordCost;
+        } else {
+            List<Integer> order = new ArrayList<>(bound);
+            order.sort((a, b) -> Double.compare(share(a), share(b)));
+            double cost = 0;
+            if (order.size() > 1 && valueIndex) {
+                for (int column : order) {
+                    cost += COUNT_COST * this.rows * share(column);
+                }
+            }
+            double intersection = -1;
+            for (int column : order) {
+                double columnRows = this.rows * share(column);
+                if (intersection >= 0 && (intersection * table.getNumColumns() < columnRows || intersection < 1)) {
+                    break;
+                }
+                this.columnOrder.add(column);
+                cost += valueIndex ? columnRows : (double) this.rows * recordCost;
+                intersection = intersection < 0 ? columnRows : intersection * share(column);
+            }
+            this.noIndexCost = cost + intersection * recordCost;
+        }
+
+        this.useIndex = flag.equalsIgnoreCase("auto") ? this.indexCost <= this.noIndexCost : Boolean.valueOf(flag);
+    }
+
+    // the value of "l table_name auto ..." that is read as it is chosen
+    public static boolean isAuto(String flag) {
+        return flag.equalsIgnoreCase("auto");
+    }
+
+    public boolean usesIndex() { return this.useIndex; }
+    public double getIndexCost() { return this.indexCost; }
+    public double getNoIndexCost() { return this.noIndexCost; }
+
+    private double share(int column) {
+        return this.rows == 0 ? 0 : Math.min(1, this.statistics.estimateRows(column, this.values.get(column)) / this.rows);
+    }
+
+    // the lines printed by the "e" instruction
+    List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("EXPLAIN " + this.tableName + " " + String.join(" ", this.values));
+        lines.add("rows=" + this.rows + " use_index=" + this.flag + " chosen=" + (this.useIndex ? "index" : "no_index"));
+        for (int column : ColumnStatistics.boundColumns(this.values)) {
+            String value = this.values.get(column);
+            lines.add(String.format("column %d value=%s estimated_rows=%.1f distinct=%d heavy_hitter=%s", column + 1,
+                    value, this.statistics.estimateRows(column, value), this.statistics.estimateDistinct(column),
+                    this.statistics.isHeavyHitter(column, value)));
+        }
+        lines.add(String.format("index: plan %s, estimated candidates=%.1f cost=%.1f", this.plan, this.candidates,
+                this.indexCost));
+        String path;
+        if (this.columnOrder.isEmpty()) {
+            path = "scan";
+        } else {
+            List<String> columns = new ArrayList<>();
+            for (int column : this.columnOrder) {
+                columns.add(Integer.toString(column + 1));
+            }
+            path = "columns " + String.join(",", columns);
+        }
+        lines.add(String.format("no index: %s, estimated cost=%.1f", path, this.noIndexCost));
+        return lines;
+    }
+}
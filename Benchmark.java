@@ -0,0 +1,750 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/*
+ * Small timing harness for the PHT engine. Each mode builds a fresh sqlite file in
+ * the temp directory, replays a generated instruction file through Database and
+ * reports the throughput. Everything Database prints is discarded while timing.
+ *
+ * java Benchmark ingest num_rows batch_size_1 ... batch_size_n
+ * (a batch size of 0 means the default autocommit path)
+ * java Benchmark hash num_values
+ * (no database, times each PartitionHashFunction against the old per call MD5)
+ * java Benchmark materialize num_rows
+ * (times lookups returning 10, 10k and all of the rows of a num_rows table)
+ * java Benchmark rowformat num_rows
+ * (the same table and lookups once per row format, with the database file size)
+ * java Benchmark pipeline num_rows threads_1 ... threads_n
+ * (ingest with batch size 10000, without the pipeline and then with the pipeline
+ * and each number of hashing threads)
+ * java Benchmark readers num_rows threads_1 ... threads_n
+ * (indexed lookup throughput with each number of lookup threads, on sqlite in
+ * WAL mode with a reader pool and on the mmap storage engine)
+ * java Benchmark storage num_rows
+ * (the same packed table and lookups on the sqlite and the mmap storage engine)
+ * java Benchmark compare [instructions_1 ... instructions_n]
+ * (not a timing: replays each file on the sqlite and the mmap storage engine and
+ * checks that Database prints the same lines on both, by default for a set of
+ * WorkloadGenerator workloads, exiting with 1 when any of them differs)
+ * java Benchmark lookup num_rows cardinality_1 ... cardinality_n
+ * (a WorkloadGenerator table of 3 columns per value cardinality, then its lookups
+ * with 0, 1 and 2 wildcards through the index and without it, with the average
+ * number of matching rows so the selectivity is known)
+ * java Benchmark catalog num_tables
+ * (the cached Catalog.lookup against the two queries each instruction used to make)
+ * java Benchmark sharedscan num_rows batch_1 ... batch_n
+ * (200 lookups that each read the whole table, one by one and then answered by
+ * shared scans of each lookup batch size)
+ * java Benchmark bitmap num_rows
+ * (no database, the row sets of a non-index lookup binding a column with 10 values
+ * and one with 1000 and leaving a third "*", intersected as boxed HashSets of every
+ * column in column order and as RowBitmaps of the bound columns fewest rows first,
+ * with the heap each takes)
+ * java Benchmark cache num_rows skew_1 ... skew_n
+ * (1000 lookups with the value skew of each run, without and with a LookupCache,
+ * and how many of them the cache answered)
+ *
+ * Every generated file comes from a fixed seed, so runs of two builds time the same
+ * instructions. Lookup times are the median of several rounds after a warm up.
+ */
+public class Benchmark {
+    public static void main(String args[]) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Please use this format: \njava Benchmark ingest num_rows batch_size_1 ... batch_size_n" +
+                    "\njava Benchmark hash num_values" +
+                    "\njava Benchmark materialize num_rows" +
+                    "\njava Benchmark rowformat num_rows" +
+                    "\njava Benchmark pipeline num_rows threads_1 ... threads_n" +
+                    "\njava Benchmark readers num_rows threads_1 ... threads_n" +
+                    "\njava Benchmark storage num_rows" +
+                    "\njava Benchmark compare [instructions_1 ... instructions_n]" +
+                    "\njava Benchmark lookup num_rows cardinality_1 ... cardinality_n" +
+                    "\njava Benchmark catalog num_tables" +
+                    "\njava Benchmark sharedscan num_rows batch_1 ... batch_n" +
+                    "\njava Benchmark cache num_rows skew_1 ... skew_n" +
+                    "\njava Benchmark bitmap num_rows");
+            System.exit(1);
+        }
+        if (args[0].equals("ingest")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+            List<Integer> batchSizes = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                batchSizes.add(Integer.parseInt(args[i]));
+            }
+            if (batchSizes.isEmpty()) {
+                batchSizes = List.of(0, 1000, 10000);
+            }
+            ingest(numRows, batchSizes);
+        } else if (args[0].equals("pipeline")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            List<Integer> threads = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                threads.add(Integer.parseInt(args[i]));
+            }
+            if (threads.isEmpty()) {
+                threads = List.of(1, 2, 4);
+            }
+            pipeline(numRows, threads);
+        } else if (args[0].equals("readers")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            List<Integer> threads = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                threads.add(Integer.parseInt(args[i]));
+            }
+            if (threads.isEmpty()) {
+                threads = List.of(1, 2, 4, 8, 16);
+            }
+            readers(numRows, threads);
+        } else if (args[0].equals("materialize")) {
+            materialize(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        } else if (args[0].equals("rowformat")) {
+            rowFormat(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        } else if (args[0].equals("storage")) {
+            storage(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        } else if (args[0].equals("compare")) {
+            compare(Arrays.asList(args).subList(1, args.length));
+        } else if (args[0].equals("lookup")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            List<Integer> cardinalities = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                cardinalities.add(Integer.parseInt(args[i]));
+            }
+            if (cardinalities.isEmpty()) {
+                cardinalities = List.of(10, 1000);
+            }
+            lookup(numRows, cardinalities);
+        } else if (args[0].equals("sharedscan")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            List<Integer> batches = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                batches.add(Integer.parseInt(args[i]));
+            }
+            if (batches.isEmpty()) {
+                batches = List.of(1, 10, 50, 200);
+            }
+            sharedScan(numRows, batches);
+        } else if (args[0].equals("cache")) {
+            int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            List<Double> skews = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                skews.add(Double.parseDouble(args[i]));
+            }
+            if (skews.isEmpty()) {
+                skews = List.of(0.0, 1.0, 1.5);
+            }
+            cache(numRows, skews);
+        } else if (args[0].equals("bitmap")) {
+            bitmap(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        } else if (args[0].equals("catalog")) {
+            catalog(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+        } else if (args[0].equals("hash")) {
+            hash(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        } else {
+            System.out.println("unknown benchmark: " + args[0]);
+            System.exit(1);
+        }
+    }
+
+    private static void ingest(int numRows, List<Integer> batchSizes) throws IOException {
+        File instructions = writeIngestInstructions(numRows);
+        for (int batchSize : batchSizes) {
+            Database db = openDatabase(newDatabaseFile(), batchSize);
+
+            long elapsed = timeSilently(() -> db.parse_instructions(instructions.getPath()));
+            double rowsPerSecond = numRows / (elapsed / 1e9);
+            System.out.println(String.format("ingest rows=%d batch_size=%d: %.1f ms, %.0f rows/sec",
+                    numRows, batchSize, elapsed / 1e6, rowsPerSecond));
+        }
+    }
+
+    private static void pipeline(int numRows, List<Integer> threadCounts) throws IOException {
+        File instructions = writeIngestInstructions(numRows);
+        // 0 threads stands for the plain loop without a pipeline
+        List<Integer> runs = new ArrayList<>(threadCounts);
+        runs.add(0, 0);
+        for (int threads : runs) {
+            Database db = openDatabase(newDatabaseFile(), 10000);
+            if (threads > 0) {
+                db.setPipeline(1024, threads);
+            }
+
+            long elapsed = timeSilently(() -> db.parse_instructions(instructions.getPath()));
+            double rowsPerSecond = numRows / (elapsed / 1e9);
+            System.out.println(String.format("ingest rows=%d hash_threads=%s: %.1f ms, %.0f rows/sec", numRows,
+                    threads > 0 ? Integer.toString(threads) : "none", elapsed / 1e6, rowsPerSecond));
+        }
+    }
+
+    private static File writeIngestInstructions(int numRows) throws IOException {
+        File instructions = File.createTempFile("pht-ingest", ".txt");
+        instructions.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(instructions)) {
+            // 60 bits of hash so distinct rows practically never share a bucket
+            writer.println("c Bench 20 20 20");
+            for (int r = 0; r < numRows; r++) {
+                writer.println("i Bench red" + r + " apple" + (r * 7) + " sunday" + (r * 13));
+            }
+        }
+        return instructions;
+    }
+
+    private static void materialize(int numRows) throws IOException {
+        Database db = openDatabase(newDatabaseFile(), 10000);
+        loadLookupTable(db, numRows, "");
+        timeLookups(db);
+    }
+
+    private static void rowFormat(int numRows) throws IOException {
+        for (String format : List.of(RowStore.FORMAT_CELLS, RowStore.FORMAT_PACKED)) {
+            File dbFile = newDatabaseFile();
+            Database db = openDatabase(dbFile, 10000);
+            long elapsed = loadLookupTable(db, numRows, " rows=" + format);
+            System.out.println(String.format("rows=%s: loaded in %.1f ms, file size %.2f MB", format, elapsed / 1e6,
+                    dbFile.length() / (1024.0 * 1024.0)));
+            timeLookups(db);
+        }
+    }
+
+    private static void storage(int numRows) throws IOException {
+        File mappedDir = Files.createTempDirectory("pht-bench").toFile();
+        mappedDir.deleteOnExit();
+        List<StorageEngine> engines = List.of(new SqliteStorageEngine(newDatabaseFile().getPath()),
+                new MappedFileStorageEngine(mappedDir.getPath()));
+        for (StorageEngine storage : engines) {
+            Database db = new Database(storage);
+            db.setBatchSize(10000);
+            db.initial_tables();
+            long elapsed = loadLookupTable(db, numRows, " rows=" + RowStore.FORMAT_PACKED);
+            System.out.println(String.format("storage=%s: loaded in %.1f ms", storage.getClass().getSimpleName(),
+                    elapsed / 1e6));
+            timeLookups(db);
+            db.close();
+        }
+        for (File file : mappedDir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    /*
+     * Both engines have to give the same answers, so every line Database prints is
+     * compared, lookup rows in the order they come. A file that stops the program on
+     * an error cannot be compared since that exits the harness too. The generated
+     * workloads cover indexed and scanning lookups with 0 to 2 wildcards, skewed
+     * values, every hash function and an md5 column of more than 32 bits.
+     */
+    private static void compare(List<String> paths) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+        if (files.isEmpty()) {
+            List<WorkloadGenerator> workloads = List.of(
+                    new WorkloadGenerator(),
+                    new WorkloadGenerator().setColumnRanges(List.of(3, 2, 4)).setCardinalities(List.of(10, 5, 20))
+                            .setWildcards(0),
+                    new WorkloadGenerator().setColumnRanges(List.of(12, 4)).setCardinalities(List.of(1000, 10))
+                            .setSkew(1.0),
+                    new WorkloadGenerator().setColumnRanges(List.of(6, 6, 6)).setWildcards(2)
+                            .setTableOptions("hash=xxhash64"),
+                    new WorkloadGenerator().setColumnRanges(List.of(5, 5)).setCardinalities(List.of(50))
+                            .setSkew(1.5).setTableOptions("hash=murmur3"),
+                    new WorkloadGenerator().setColumnRanges(List.of(40, 8)).setCardinalities(List.of(300, 20)));
+            for (WorkloadGenerator workload : workloads) {
+                File generated = File.createTempFile("pht-bench", ".txt");
+                generated.deleteOnExit();
+                workload.setNumRows(5000).setNumLookups(300).write(generated);
+                files.add(generated);
+            }
+        }
+
+        boolean allSame = true;
+        for (int f = 0; f < files.size(); f++) {
+            String name = paths.isEmpty() ? "workload " + (f + 1) : files.get(f).getPath();
+            File mappedDir = Files.createTempDirectory("pht-bench").toFile();
+            mappedDir.deleteOnExit();
+            List<String> sqlite = runCapturing(new ShardedStorageEngine(newDatabaseFile().getPath(), 0),
+                    files.get(f));
+            List<String> mapped = runCapturing(new MappedFileStorageEngine(mappedDir.getPath()), files.get(f));
+            for (File file : mappedDir.listFiles()) {
+                file.delete();
+            }
+
+            int line = 0;
+            while (line < sqlite.size() && line < mapped.size() && sqlite.get(line).equals(mapped.get(line))) {
+                line++;
+            }
+            if (line == sqlite.size() && line == mapped.size()) {
+                System.out.println(String.format("compare %s: %d lines, the same on both engines", name,
+                        sqlite.size()));
+                continue;
+            }
+            allSame = false;
+            System.out.println(String.format("compare %s: the engines differ at line %d", name, line + 1));
+            System.out.println("  sqlite: " + (line < sqlite.size() ? sqlite.get(line) : "(end of output)"));
+            System.out.println("  mmap:   " + (line < mapped.size() ? mapped.get(line) : "(end of output)"));
+        }
+        if (!allSame) {
+            System.exit(1);
+        }
+    }
+
+    // the lines Database prints while it runs the instructions and closes
+    private static List<String> runCapturing(StorageEngine storage, File instructions) {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true));
+        try {
+            Database db = new Database(storage);
+            db.setBatchSize(1000);
+            db.initial_tables();
+            db.parse_instructions(instructions.getPath());
+            db.close();
+        } finally {
+            System.setOut(stdout);
+        }
+        return Arrays.asList(captured.toString().split("\n"));
+    }
+
+    private static void readers(int numRows, List<Integer> threadCounts) throws IOException {
+        int maxThreads = threadCounts.stream().max(Integer::compare).get();
+        int numLookups = 5000;
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < numLookups; i++) {
+            lines.add("l Mat True p" + random.nextInt(Math.max(1, numRows / 10)) + " * all");
+        }
+        File lookups = writeInstructions(lines);
+
+        File sqliteFile = newDatabaseFile();
+        File mappedDir = Files.createTempDirectory("pht-bench").toFile();
+        mappedDir.deleteOnExit();
+        for (String engine : List.of("sqlite", "mmap")) {
+            // loaded once, every thread count then gets its own Database on the same files
+            for (int threads : threadCounts) {
+                StorageEngine storage = engine.equals("sqlite")
+                        ? new SqliteStorageEngine(sqliteFile.getPath(), maxThreads)
+                        : new MappedFileStorageEngine(mappedDir.getPath());
+                Database db = new Database(storage);
+                db.setBatchSize(10000);
+                db.setLookupThreads(threads);
+                db.initial_tables();
+                if (threads == threadCounts.get(0)) {
+                    loadLookupTable(db, numRows, " rows=" + RowStore.FORMAT_PACKED);
+                }
+                // one untimed run to warm up the JIT and the page cache
+                timeSilently(() -> db.parse_instructions(lookups.getPath()));
+                long elapsed = timeSilently(() -> db.parse_instructions(lookups.getPath()));
+                System.out.println(String.format("storage=%s threads=%d: %.0f lookups/sec", engine, threads,
+                        numLookups / (elapsed / 1e9)));
+                db.close();
+            }
+        }
+        for (File file : mappedDir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    private static void lookup(int numRows, List<Integer> cardinalities) throws IOException {
+        int numLookups = 100;
+        for (int cardinality : cardinalities) {
+            File load = File.createTempFile("pht-bench", ".txt");
+            load.deleteOnExit();
+            new WorkloadGenerator().setColumnRanges(List.of(8, 8, 8)).setCardinalities(List.of(cardinality))
+                    .setNumRows(numRows).setNumLookups(0).write(load);
+            Database db = openDatabase(newDatabaseFile(), 10000);
+            timeSilently(() -> db.parse_instructions(load.getPath()));
+
+            for (int wildcards = 0; wildcards < 3; wildcards++) {
+                File lookups = File.createTempFile("pht-bench", ".txt");
+                lookups.deleteOnExit();
+                // a different seed than the load, the rows of the table are not all hits
+                new WorkloadGenerator().setColumnRanges(List.of(8, 8, 8)).setCardinalities(List.of(cardinality))
+                        .setNumRows(0).setNumLookups(numLookups).setWildcards(wildcards).setUseIndex("True")
+                        .setSeed(7).write(lookups);
+                List<List<String>> patterns = new ArrayList<>();
+                for (String line : Files.readAllLines(lookups.toPath())) {
+                    if (line.startsWith("l ")) {
+                        String[] words = line.split(" ");
+                        patterns.add(Arrays.asList(words).subList(3, words.length));
+                    }
+                }
+                for (boolean useIndex : List.of(true, false)) {
+                    long[] matched = new long[1];
+                    long elapsed = medianOf(5, () -> matched[0] = runLookups(db, useIndex, patterns));
+                    System.out.println(String.format(
+                            "lookup cardinality=%d wildcards=%d index=%-5s %8.3f ms/lookup, %.1f rows/lookup",
+                            cardinality, wildcards, useIndex, elapsed / 1e6 / patterns.size(),
+                            (double) matched[0] / patterns.size()));
+                }
+            }
+            db.close();
+        }
+    }
+
+    // runs every pattern through the embedding API and returns how many rows matched
+    private static long runLookups(Database db, boolean useIndex, List<List<String>> patterns) {
+        long matched = 0;
+        try {
+            for (List<String> values : patterns) {
+                try (RecordCursor cursor = db.openLookup(db.prepareLookup("Gen", useIndex, values))) {
+                    while (cursor.next() != null) {
+                        matched++;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return matched;
+    }
+
+    private static void sharedScan(int numRows, List<Integer> batchSizes) throws IOException {
+        int numLookups = 200;
+        List<String> lines = new ArrayList<>();
+        lines.add("c Scan 8 8 8 rows=" + RowStore.FORMAT_PACKED);
+        for (int r = 0; r < numRows; r++) {
+            lines.add("i Scan a" + (r % 100) + " b" + (r % 1000) + " c" + (r % 50));
+        }
+        File load = writeInstructions(lines);
+        // binding only the last column leaves 16 free bits above it, so the index plan is a
+        // scan, and without the index a packed table is always scanned
+        lines = new ArrayList<>();
+        for (int i = 0; i < numLookups; i++) {
+            lines.add(i % 2 == 0 ? "l Scan True * * c" + (i % 50) : "l Scan False * b" + (i % 1000) + " *");
+        }
+        File lookups = writeInstructions(lines);
+
+        Database db = openDatabase(newDatabaseFile(), 10000);
+        timeSilently(() -> db.parse_instructions(load.getPath()));
+        List<Integer> sizes = new ArrayList<>(List.of(0));
+        sizes.addAll(batchSizes);
+        for (int batch : sizes) {
+            db.setLookupBatch(batch);
+            long elapsed = medianOf(3, () -> db.parse_instructions(lookups.getPath()));
+            System.out.println(String.format("sharedscan batch=%-4d %8.3f ms/lookup", batch,
+                    elapsed / 1e6 / numLookups));
+        }
+        db.close();
+    }
+
+    private static void cache(int numRows, List<Double> skews) throws IOException {
+        int numLookups = 1000;
+        for (double skew : skews) {
+            File load = File.createTempFile("pht-bench", ".txt");
+            load.deleteOnExit();
+            new WorkloadGenerator().setColumnRanges(List.of(8, 8, 8)).setCardinalities(List.of(100))
+                    .setSkew(skew).setNumRows(numRows).setNumLookups(0).write(load);
+            File generated = File.createTempFile("pht-bench", ".txt");
+            generated.deleteOnExit();
+            new WorkloadGenerator().setColumnRanges(List.of(8, 8, 8)).setCardinalities(List.of(100))
+                    .setSkew(skew).setNumRows(0).setNumLookups(numLookups).setWildcards(1).setUseIndex("True")
+                    .setSeed(7).write(generated);
+            // without the create of the table, which is loaded already
+            List<String> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(generated.toPath())) {
+                if (line.startsWith("l ")) {
+                    lines.add(line);
+                }
+            }
+            File lookups = writeInstructions(lines);
+            for (long cacheBytes : List.of(0L, 64L << 20)) {
+                Database db = openDatabase(newDatabaseFile(), 10000);
+                db.setLookupCache(cacheBytes);
+                timeSilently(() -> db.parse_instructions(load.getPath()));
+                // the first round fills the cache, the median is of the rounds after it
+                long elapsed = medianOf(3, () -> db.parse_instructions(lookups.getPath()));
+                TableStats total = db.getStats().total();
+                System.out.println(String.format(
+                        "cache skew=%.1f cache=%-3s %8.3f ms/lookup, hits=%d filtered_hits=%d misses=%d",
+                        skew, cacheBytes > 0 ? "on" : "off", elapsed / 1e6 / numLookups, total.getCacheHits(),
+                        total.getCacheFilteredHits(), total.getCacheMisses()));
+                db.close();
+            }
+        }
+    }
+
+    private static void bitmap(int numRows) {
+        int[] cardinalities = { 10, 1000 };
+        // the heap is measured on a run of its own, the timed runs do not collect garbage in between
+        long[] setsHeap = new long[1];
+        intersectHashSets(numRows, cardinalities, setsHeap);
+        long sets = medianOf(3, () -> intersectHashSets(numRows, cardinalities, null));
+        System.out.println(String.format("bitmap hashsets  %8.2f ms %8.2f MB", sets / 1e6, setsHeap[0] / 1e6));
+        long[] bitmapsHeap = new long[1];
+        intersectRowBitmaps(numRows, cardinalities, bitmapsHeap);
+        long bitmaps = medianOf(3, () -> intersectRowBitmaps(numRows, cardinalities, null));
+        System.out.println(String.format("bitmap rowbitmap %8.2f ms %8.2f MB", bitmaps / 1e6, bitmapsHeap[0] / 1e6));
+    }
+
+    // the old non-index path, heap gets what its sets took when it is not null
+    private static void intersectHashSets(int numRows, int[] cardinalities, long[] heap) {
+        long before = heap != null ? usedHeap() : 0;
+        List<Set<Integer>> columns = new ArrayList<>();
+        for (int cardinality : cardinalities) {
+            Set<Integer> rows = new HashSet<>();
+            for (int r = 1; r <= numRows; r += cardinality) {
+                rows.add(r);
+            }
+            columns.add(rows);
+        }
+        // the "*" column used to pull every row number too
+        Set<Integer> everyRow = new HashSet<>();
+        for (int r = 1; r <= numRows; r++) {
+            everyRow.add(r);
+        }
+        columns.add(everyRow);
+        if (heap != null) {
+            heap[0] = usedHeap() - before;
+        }
+        Set<Integer> intersection = new HashSet<>(columns.get(0));
+        for (Set<Integer> rows : columns.subList(1, columns.size())) {
+            intersection.retainAll(rows);
+        }
+        if (intersection.isEmpty()) {
+            throw new IllegalStateException("the columns share row 1");
+        }
+    }
+
+    private static void intersectRowBitmaps(int numRows, int[] cardinalities, long[] heap) {
+        long before = heap != null ? usedHeap() : 0;
+        List<RowBitmap> columns = new ArrayList<>();
+        for (int c = cardinalities.length - 1; c >= 0; c--) {
+            RowBitmap rows = new RowBitmap();
+            for (int r = 1; r <= numRows; r += cardinalities[c]) {
+                rows.add(r);
+            }
+            columns.add(rows);
+        }
+        if (heap != null) {
+            heap[0] = usedHeap() - before;
+        }
+        RowBitmap intersection = columns.get(0);
+        for (RowBitmap rows : columns.subList(1, columns.size())) {
+            intersection = intersection.and(rows);
+        }
+        if (intersection.isEmpty()) {
+            throw new IllegalStateException("the columns share row 1");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void catalog(int numTables) throws IOException {
+        File dbFile = newDatabaseFile();
+        Database db = openDatabase(dbFile, 0);
+        List<String> lines = new ArrayList<>();
+        for (int t = 0; t < numTables; t++) {
+            lines.add("c Table" + t + " 8 8 8");
+        }
+        File create = writeInstructions(lines);
+        timeSilently(() -> db.parse_instructions(create.getPath()));
+        db.close();
+
+        int numLookups = 100000;
+        String[] names = new String[numLookups];
+        Random random = new Random(42);
+        for (int i = 0; i < numLookups; i++) {
+            names[i] = "Table" + random.nextInt(numTables);
+        }
+
+        SqliteStorageEngine storage = new SqliteStorageEngine(dbFile.getPath());
+        Catalog catalog = new Catalog(storage);
+        long loadElapsed = timeSilently(() -> {
+            try {
+                storage.open();
+                catalog.load();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        System.out.println(String.format("catalog tables=%d: loaded in %.1f ms", numTables, loadElapsed / 1e6));
+        long[] sink = new long[1];
+        long cached = medianOf(5, () -> {
+            for (String name : names) {
+                sink[0] += catalog.lookup(name).getID();
+            }
+        });
+        System.out.println(String.format("catalog cached lookup: %8.1f ns/lookup", (double) cached / numLookups));
+
+        // what every "i" and "l" did before the catalog was cached
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+                PreparedStatement table = conn.prepareStatement(
+                        "SELECT TABLE_ID, NUM_COLUMNS, LAST_ROW FROM PH_TABLE WHERE NAME = ?");
+                PreparedStatement ranges = conn.prepareStatement(
+                        "SELECT COL_NUM, COL_RANGE FROM PH_COL_RANGES WHERE TABLE_ID = ?")) {
+            long queried = medianOf(5, () -> {
+                try {
+                    for (String name : names) {
+                        table.setString(1, name);
+                        try (ResultSet rs = table.executeQuery()) {
+                            rs.next();
+                            ranges.setInt(1, rs.getInt("TABLE_ID"));
+                        }
+                        try (ResultSet rs = ranges.executeQuery()) {
+                            while (rs.next()) {
+                                sink[0] += rs.getInt("COL_RANGE");
+                            }
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            System.out.println(String.format("catalog sql lookup:    %8.1f ns/lookup (checksum %d)",
+                    (double) queried / numLookups, sink[0]));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        try {
+            storage.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // column 1 has 10 rows per value, column 2 has 10000 rows per value
+    private static long loadLookupTable(Database db, int numRows, String options) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("c Mat 12 12 4" + options);
+        for (int r = 0; r < numRows; r++) {
+            lines.add("i Mat p" + (r % Math.max(1, numRows / 10)) + " q" + (r % Math.max(1, numRows / 10000)) + " all");
+        }
+        File load = writeInstructions(lines);
+        return timeSilently(() -> db.parse_instructions(load.getPath()));
+    }
+
+    private static void timeLookups(Database db) throws IOException {
+        List<String> patterns = List.of("p0 * all", "* q0 all", "* * all");
+        for (String pattern : patterns) {
+            for (String useIndex : List.of("True", "False")) {
+                File lookup = writeInstructions(List.of("l Mat " + useIndex + " " + pattern));
+                // one untimed run to warm up the JIT and the sqlite page cache
+                timeSilently(() -> db.parse_instructions(lookup.getPath()));
+                int repeats = 5;
+                long elapsed = timeSilently(() -> {
+                    for (int i = 0; i < repeats; i++) {
+                        db.parse_instructions(lookup.getPath());
+                    }
+                }) / repeats;
+                System.out.println(String.format("lookup %-5s %-10s %10.2f ms", useIndex, pattern, elapsed / 1e6));
+            }
+        }
+    }
+
+    private static File newDatabaseFile() throws IOException {
+        File dbFile = File.createTempFile("pht-bench", ".db");
+        dbFile.deleteOnExit();
+        return dbFile;
+    }
+
+    private static Database openDatabase(File dbFile, int batchSize) {
+        Database db = new Database(dbFile.getPath());
+        db.setBatchSize(batchSize);
+        db.initial_tables();
+        return db;
+    }
+
+    private static File writeInstructions(List<String> lines) throws IOException {
+        File instructions = File.createTempFile("pht-bench", ".txt");
+        instructions.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(instructions)) {
+            for (String line : lines) {
+                writer.println(line);
+            }
+        }
+        return instructions;
+    }
+
+    private static void hash(int numValues) {
+        String[] values = new String[numValues];
+        for (int i = 0; i < numValues; i++) {
+            values[i] = "value" + i + (i % 3 == 0 ? "-with-a-longer-suffix" : "");
+        }
+        List<PartitionHashFunction> functions = List.of(legacyMd5(), Md5PartitionHash.INSTANCE,
+                Murmur3PartitionHash.INSTANCE, XxHash64PartitionHash.INSTANCE);
+        for (PartitionHashFunction function : functions) {
+            long sink = 0;
+            // warm up so the JIT has compiled the hash before it is timed
+            for (int round = 0; round < 3; round++) {
+                for (String value : values) {
+                    sink += function.hash(value);
+                }
+            }
+            long start = System.nanoTime();
+            for (String value : values) {
+                sink += function.hash(value);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("hash %-12s %6.1f ns/value (checksum %d)", function.getName(),
+                    (double) elapsed / numValues, sink));
+        }
+    }
+
+    // the hash as it was before PartitionHashFunction: a new MD5 digest and byte[] on every call
+    private static PartitionHashFunction legacyMd5() {
+        return new PartitionHashFunction() {
+            public String getName() {
+                return "md5-per-call";
+            }
+
+            public long hash(String value) {
+                try {
+                    byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes());
+                    long result = 0;
+                    for (int i = 0; i < 4; i++) {
+                        result = (result << 8) | (digest[i] & 0xff);
+                    }
+                    return result;
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    // one untimed warm up run, then the median of rounds timed runs
+    private static long medianOf(int rounds, Runnable task) {
+        timeSilently(task);
+        long[] elapsed = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            elapsed[i] = timeSilently(task);
+        }
+        Arrays.sort(elapsed);
+        return elapsed[rounds / 2];
+    }
+
+    // runs the task with System.out discarded and returns the elapsed nanoseconds
+    private static long timeSilently(Runnable task) {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            System.setOut(stdout);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Which buckets of a table hold at least one row, kept in memory so that a lookup
+ * whose candidate buckets are all empty never reaches the storage. Tables with at
+ * most BITMAP_MAX_BITS hash bits get an exact bitmap over the whole hash space,
+ * larger ones a Bloom filter over the bucket ids sized for twice the buckets they
+ * had when it was built, at BLOOM_BITS_PER_BUCKET bits and BLOOM_HASHES probes per
+ * bucket (about 1% false positives). Both only ever answer "maybe" for a bucket that
+ * has rows, so pruning with them cannot lose a row. Once a Bloom filter holds more
+ * buckets than it was sized for isFull tells the owner to build a bigger one.
+ */
+class BucketOccupancy {
+    static final int BITMAP_MAX_BITS = 20;
+    private static final int BLOOM_BITS_PER_BUCKET = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final int MIN_BLOOM_CAPACITY = 1024;
+    // ranges at most this wide are checked bucket by bucket against a Bloom filter
+    private static final int BLOOM_MAX_RANGE = 64;
+
+    private List<Integer> columnRanges;
+    private boolean bitmap;
+    private long[] bits;
+    private long numBits;
+    private long capacity;
+    // buckets added that were not in it yet, exact for the bitmap
+    private long buckets = 0;
+
+    // expectedBuckets only sizes a Bloom filter
+    BucketOccupancy(TableInfo table, long expectedBuckets) {
+        this.columnRanges = table.getColumnRanges();
+        int totalBits = table.getTotalBits();
+        this.bitmap = totalBits <= BITMAP_MAX_BITS;
+        if (this.bitmap) {
+            this.numBits = 1L << totalBits;
+            this.capacity = this.numBits;
+        } else {
+            this.capacity = Math.max(MIN_BLOOM_CAPACITY, 2 * expectedBuckets);
+            this.numBits = this.capacity * BLOOM_BITS_PER_BUCKET;
+        }
+        this.bits = new long[(int) ((this.numBits + 63) / 64)];
+    }
+
+    // whether it was built for the column ranges the table has now
+    boolean isFor(TableInfo table) {
+        return this.columnRanges == table.getColumnRanges();
+    }
+
+    boolean isFull() {
+        return this.buckets > this.capacity;
+    }
+
+    void add(long bucket) {
+        if (this.bitmap) {
+            if (!testAndSet(bucket)) {
+                this.buckets++;
+            }
+            return;
+        }
+        long h1 = mix(bucket);
+        long h2 = mix(h1) | 1;
+        boolean added = false;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            added |= !testAndSet(Long.remainderUnsigned(h1 + i * h2, this.numBits));
+        }
+        if (added) {
+            this.buckets++;
+        }
+    }
+
+    boolean mayContain(long bucket) {
+        if (this.bitmap) {
+            return test(bucket);
+        }
+        long h1 = mix(bucket);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            if (!test(Long.remainderUnsigned(h1 + i * h2, this.numBits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether any bucket of [low, high] may hold rows
+    boolean mayContainAny(long low, long high) {
+        if (!this.bitmap) {
+            if (high - low >= BLOOM_MAX_RANGE) {
+                return true;
+            }
+            for (long bucket = low; bucket <= high; bucket++) {
+                if (mayContain(bucket)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int first = (int) (low >>> 6);
+        int last = (int) (high >>> 6);
+        for (int word = first; word <= last; word++) {
+            long mask = -1L;
+            if (word == first) {
+                mask &= -1L << (low & 63);
+            }
+            if (word == last) {
+                mask &= -1L >>> (63 - (high & 63));
+            }
+            if ((this.bits[word] & mask) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The plan without the ranges whose buckets are all empty, or null when none are
+     * left and the lookup cannot match anything. A scan is only pruned when the
+     * table has no buckets at all.
+     */
+    BucketPlan prune(BucketPlan plan) {
+        if (plan.isScan()) {
+            return this.buckets == 0 ? null : plan;
+        }
+        List<long[]> kept = new ArrayList<>();
+        for (long[] range : plan.getRanges()) {
+            if (range[0] == range[1] ? mayContain(range[0]) : mayContainAny(range[0], range[1])) {
+                kept.add(range);
+            }
+        }
+        if (kept.isEmpty()) {
+            return null;
+        }
+        if (kept.size() == plan.getRanges().size()) {
+            return plan;
+        }
+        return new BucketPlan(plan.getStrategy(), kept, plan.getResidualMask(), plan.getResidualValue());
+    }
+
+    private boolean test(long bit) {
+        return (this.bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    // sets the bit and returns whether it was set already
+    private boolean testAndSet(long bit) {
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        boolean wasSet = (this.bits[word] & mask) != 0;
+        this.bits[word] |= mask;
+        return wasSet;
+    }
+
+    // the murmur3 finalizer, bucket ids share their high bits and need spreading
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.List;
+
+/*
+ * How the candidate buckets of a lookup are read from PH_HASH_BUCKETS. The buckets
+ * are the union of the HASH_BUCKET ranges [low, high] (a point when low == high),
+ * further filtered by (HASH_BUCKET & residualMask) = residualValue. An empty range
+ * list means the whole table has to be read and only the residual filter applies.
+ */
+public class BucketPlan {
+    private String strategy;
+    private List<long[]> ranges;
+    private long residualMask;
+    private long residualValue;
+
+    public BucketPlan(String strategy, List<long[]> ranges, long residualMask, long residualValue) {
+        this.strategy = strategy;
+        this.ranges = ranges;
+        this.residualMask = residualMask;
+        this.residualValue = residualValue;
+    }
+
+    public String getStrategy() { return this.strategy; }
+    public List<long[]> getRanges() { return this.ranges; }
+    public long getResidualMask() { return this.residualMask; }
+    public long getResidualValue() { return this.residualValue; }
+
+    public boolean isScan() { return this.ranges.isEmpty(); }
+    public boolean hasResidual() { return this.residualMask != 0; }
+
+    public boolean isPointLookup() {
+        for (long[] range : this.ranges) {
+            if (range[0] != range[1]) {
+                return false;
+            }
+        }
+        return !this.ranges.isEmpty();
+    }
+
+    public String toString() {
+        String description = this.strategy + ", " + this.ranges.size() + " range(s)";
+        if (hasResidual()) {
+            description += ", residual mask 0x" + Long.toHexString(this.residualMask);
+        }
+        return description;
+    }
+}
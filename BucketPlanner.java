@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/*
+ * Turns a lookup pattern into a BucketPlan that sqlite can answer from the
+ * (TABLE_ID, HASH_BUCKET) primary key instead of testing every bucket of the table.
+ *
+ * The bits of the wildcard columns are the free bits of the pattern. Free bits in
+ * the low order end of the hash only widen a range, so they cost nothing. Every other
+ * free bit doubles the number of ranges, so those are enumerated as long as there
+ * are at most MAX_ENUMERATED_BITS of them:
+ *   - no free bits: a single bucket
+ *   - only low order free bits: one BETWEEN range
+ *   - no low order free bits: an IN list of buckets
+ *   - both: one BETWEEN range per value of the enumerated bits
+ * With more free bits than that the leading bound columns, if any, still give one
+ * range and the remaining bound columns are checked with a bit mask.
+ *
+ * An IN list {a,b,c} binds its column to the distinct hash components of its values,
+ * and every combination of the components of the IN list columns is enumerated like
+ * the free bits are, so a lookup reads the union of their buckets once. While that
+ * would take more than MAX_RANGES ranges, the IN list with the most components is
+ * planned like "*" instead, which only widens the buckets read: the lookup still
+ * checks every record against the whole pattern.
+ */
+public class BucketPlanner {
+    public static final int MAX_ENUMERATED_BITS = 8;
+    public static final int MAX_RANGES = 1 << MAX_ENUMERATED_BITS;
+
+    public static BucketPlan plan(TableInfo table, List<String> pattern) {
+        int numColumns = table.getNumColumns();
+        int totalBits = 0;
+        // the distinct hash components every bound column may take, null for "*"
+        long[][] components = new long[numColumns][];
+        for (int i = 0; i < numColumns; i++) {
+            totalBits += table.getColumnRange(i);
+            if (pattern.get(i).equals("*")) {
+                continue;
+            }
+            TreeSet<Long> hashes = new TreeSet<>();
+            for (String value : LookupPattern.choices(pattern.get(i))) {
+                hashes.add(Util.hashOneValue(value, table, i));
+            }
+            components[i] = hashes.stream().mapToLong(Long::longValue).toArray();
+        }
+        long tableMask = totalBits >= 64 ? -1L : (1L << totalBits) - 1;
+
+        long boundMask;
+        long lowFreeMask;
+        long enumeratedMask;
+        while (true) {
+            boundMask = 0;
+            long combinations = 1;
+            int widest = -1;
+            for (int i = 0; i < numColumns; i++) {
+                if (components[i] == null) {
+                    continue;
+                }
+                boundMask |= table.getBitMask(i) << table.getBitOffset(i);
+                // capped, only whether it fits matters
+                combinations = Math.min(combinations * components[i].length, MAX_RANGES + 1);
+                if (components[i].length > 1 && (widest < 0 || components[i].length > components[widest].length)) {
+                    widest = i;
+                }
+            }
+            // free bits below the lowest bound bit stay inside a range
+            lowFreeMask = Long.lowestOneBit(boundMask) - 1;
+            enumeratedMask = tableMask & ~boundMask & ~lowFreeMask;
+            int enumeratedBits = Long.bitCount(enumeratedMask);
+            boolean fits = enumeratedBits <= MAX_ENUMERATED_BITS
+                    && combinations <= (MAX_RANGES >> enumeratedBits);
+            if (boundMask == 0 || fits || widest < 0) {
+                break;
+            }
+            components[widest] = null;
+        }
+        long freeMask = tableMask & ~boundMask;
+
+        if (boundMask == 0) {
+            return new BucketPlan("scan", new ArrayList<>(), 0, 0);
+        }
+
+        int enumeratedBits = Long.bitCount(enumeratedMask);
+        if (enumeratedBits <= MAX_ENUMERATED_BITS) {
+            List<long[]> ranges = new ArrayList<>();
+            for (long boundValue : combineComponents(table, components)) {
+                for (long k = 0; k < (1L << enumeratedBits); k++) {
+                    long low = boundValue | deposit(k, enumeratedMask);
+                    ranges.add(new long[] { low, low | lowFreeMask });
+                }
+            }
+            ranges.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+            String strategy;
+            if (freeMask == 0 || lowFreeMask == 0) {
+                strategy = ranges.size() == 1 ? "exact" : "in-list";
+            } else {
+                strategy = ranges.size() == 1 ? "range" : "ranges";
+            }
+            return new BucketPlan(strategy, ranges, 0, 0);
+        }
+
+        // too many free bits to enumerate, so every IN list was planned like "*" and
+        // the bound columns at the top of the hash are used
+        long boundValue = combineComponents(table, components).get(0);
+        long prefixMask = 0;
+        for (int i = 0; i < numColumns && components[i] != null; i++) {
+            prefixMask |= table.getBitMask(i) << table.getBitOffset(i);
+        }
+        long residualMask = boundMask & ~prefixMask;
+        long residualValue = boundValue & residualMask;
+        if (prefixMask == 0) {
+            return new BucketPlan("scan+mask", new ArrayList<>(), residualMask, residualValue);
+        }
+        List<long[]> ranges = new ArrayList<>();
+        long low = boundValue & prefixMask;
+        ranges.add(new long[] { low, low | (tableMask & ~prefixMask) });
+        return new BucketPlan("prefix-range+mask", ranges, residualMask, residualValue);
+    }
+
+    // the bound bits of every combination of one component per bound column
+    private static List<Long> combineComponents(TableInfo table, long[][] components) {
+        List<Long> combined = new ArrayList<>();
+        combined.add(0L);
+        for (int i = 0; i < components.length; i++) {
+            if (components[i] == null) {
+                continue;
+            }
+            List<Long> next = new ArrayList<>(combined.size() * components[i].length);
+            for (long prefix : combined) {
+                for (long component : components[i]) {
+                    next.add(prefix | component << table.getBitOffset(i));
+                }
+            }
+            combined = next;
+        }
+        return combined;
+    }
+
+    // spreads the low bits of value over the set bits of mask, lowest first
+    private static long deposit(long value, long mask) {
+        long result = 0;
+        for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            if ((value & 1) != 0) {
+                result |= Long.lowestOneBit(remaining);
+            }
+            value >>>= 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,399 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/*
+ * PH_HASH_BUCKETS holds one record per bucket page. A page lists up to
+ * MAX_ROWS_PER_PAGE row numbers packed with RowIdList. When the last page of a
+ * bucket is full the next row starts a new overflow page with the next PAGE_NUM,
+ * so any number of rows can share a bucket and a lookup reads one record per page
+ * instead of one per row.
+ */
+public class BucketStore {
+    public static final int MAX_ROWS_PER_PAGE = 128;
+
+    // most buckets bound in a single IN (...) list when a lookup is split into points
+    private static final int IN_LIST_CHUNK = 500;
+
+    private Connection connection;
+    private PreparedStatement selectTailPage;
+    private PreparedStatement insertPage;
+    private PreparedStatement updatePage;
+
+    public BucketStore(Connection connection) {
+        this.connection = connection;
+    }
+
+    public void initialize(Statement statement) throws SQLException {
+        boolean legacy = hasLegacyLayout(statement);
+        if (legacy) {
+            statement.executeUpdate("ALTER TABLE PH_HASH_BUCKETS RENAME TO PH_HASH_BUCKETS_V1");
+        }
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_HASH_BUCKETS (" +
+                "   TABLE_ID INTEGER," +
+                "   HASH_BUCKET INTEGER," +
+                "   PAGE_NUM INTEGER," +
+                "   ROW_COUNT INTEGER," +
+                "   LAST_ROW_NUM INTEGER," +
+                "   ROW_IDS BLOB," +
+                "   PRIMARY KEY (TABLE_ID, HASH_BUCKET, PAGE_NUM)" +
+                ");");
+        if (legacy) {
+            migrateLegacyBuckets(statement);
+        }
+    }
+
+    // pending buckets of a repartition that never finished, see SqliteStorageEngine
+    public static void dropPendingCopies(Statement statement) throws SQLException {
+        statement.executeUpdate("DELETE FROM PH_HASH_BUCKETS WHERE TABLE_ID < 0");
+    }
+
+    // the first layout had one row per bucket with a ROW_NUM column
+    private boolean hasLegacyLayout(Statement statement) throws SQLException {
+        ResultSet columns = statement.executeQuery("PRAGMA table_info(PH_HASH_BUCKETS)");
+        boolean legacy = false;
+        while (columns.next()) {
+            legacy |= columns.getString("name").equalsIgnoreCase("ROW_NUM");
+        }
+        columns.close();
+        return legacy;
+    }
+
+    private void migrateLegacyBuckets(Statement statement) throws SQLException {
+        boolean autoCommit = this.connection.getAutoCommit();
+        this.connection.setAutoCommit(false);
+        try {
+            ResultSet legacyRows = statement.executeQuery(
+                    "SELECT TABLE_ID, HASH_BUCKET, ROW_NUM FROM PH_HASH_BUCKETS_V1 ORDER BY TABLE_ID, ROW_NUM");
+            Map<Integer, Map<Long, List<Integer>>> rowsByTable = new LinkedHashMap<>();
+            while (legacyRows.next()) {
+                rowsByTable.computeIfAbsent(legacyRows.getInt(1), id -> new LinkedHashMap<>())
+                        .computeIfAbsent(legacyRows.getLong(2), bucket -> new ArrayList<>())
+                        .add(legacyRows.getInt(3));
+            }
+            legacyRows.close();
+            for (Map.Entry<Integer, Map<Long, List<Integer>>> table : rowsByTable.entrySet()) {
+                appendAll(table.getKey(), table.getValue());
+            }
+            statement.executeUpdate("DROP TABLE PH_HASH_BUCKETS_V1");
+            this.connection.commit();
+        } catch (SQLException e) {
+            this.connection.rollback();
+            throw e;
+        } finally {
+            this.connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // rows of each bucket have to be in the order they were inserted
+    public void appendAll(int tableID, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        for (Map.Entry<Long, List<Integer>> bucket : rowsByBucket.entrySet()) {
+            appendRows(tableID, bucket.getKey(), bucket.getValue());
+        }
+        flushWrites();
+    }
+
+    // for buckets that have no pages yet, which are written without reading a tail page
+    public void loadAll(int tableID, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        prepareWriteStatements();
+        for (Map.Entry<Long, List<Integer>> bucket : rowsByBucket.entrySet()) {
+            insertPages(tableID, bucket.getKey(), bucket.getValue(), 0, 0);
+        }
+        flushWrites();
+    }
+
+    // page writes are batched, every bucket of a call touches different pages
+    private void flushWrites() throws SQLException {
+        Stats.countSqlStatements(this.updatePage.executeBatch().length + this.insertPage.executeBatch().length);
+    }
+
+    private void appendRows(int tableID, long bucket, List<Integer> rows) throws SQLException {
+        prepareWriteStatements();
+        this.selectTailPage.setInt(1, tableID);
+        this.selectTailPage.setLong(2, bucket);
+        ResultSet tail = this.selectTailPage.executeQuery();
+        Stats.countSqlStatements(1);
+        int pageNum = -1;
+        int rowCount = MAX_ROWS_PER_PAGE;
+        int lastRowNum = 0;
+        byte[] rowIds = null;
+        if (tail.next()) {
+            pageNum = tail.getInt(1);
+            rowCount = tail.getInt(2);
+            lastRowNum = tail.getInt(3);
+            rowIds = tail.getBytes(4);
+        }
+        tail.close();
+
+        int next = 0;
+        // fill up the free space of the current tail page first
+        if (rowCount < MAX_ROWS_PER_PAGE) {
+            List<Integer> fill = rows.subList(0, Math.min(rows.size(), MAX_ROWS_PER_PAGE - rowCount));
+            this.updatePage.setInt(1, rowCount + fill.size());
+            this.updatePage.setInt(2, fill.get(fill.size() - 1));
+            this.updatePage.setBytes(3, RowIdList.append(rowIds, lastRowNum, fill));
+            this.updatePage.setInt(4, tableID);
+            this.updatePage.setLong(5, bucket);
+            this.updatePage.setInt(6, pageNum);
+            this.updatePage.addBatch();
+            next = fill.size();
+        }
+        // then chain as many new overflow pages as needed
+        insertPages(tableID, bucket, rows, next, pageNum + 1);
+    }
+
+    // the rows from next on as new pages, numbered from pageNum
+    private void insertPages(int tableID, long bucket, List<Integer> rows, int next, int pageNum)
+            throws SQLException {
+        while (next < rows.size()) {
+            List<Integer> page = rows.subList(next, Math.min(rows.size(), next + MAX_ROWS_PER_PAGE));
+            this.insertPage.setInt(1, tableID);
+            this.insertPage.setLong(2, bucket);
+            this.insertPage.setInt(3, pageNum);
+            this.insertPage.setInt(4, page.size());
+            this.insertPage.setInt(5, page.get(page.size() - 1));
+            this.insertPage.setBytes(6, RowIdList.encode(page));
+            this.insertPage.addBatch();
+            next += page.size();
+            pageNum++;
+        }
+    }
+
+    private void prepareWriteStatements() throws SQLException {
+        if (this.selectTailPage != null) {
+            return;
+        }
+        this.selectTailPage = this.connection.prepareStatement(
+                "SELECT PAGE_NUM, ROW_COUNT, LAST_ROW_NUM, ROW_IDS FROM PH_HASH_BUCKETS" +
+                        " WHERE TABLE_ID = ? AND HASH_BUCKET = ? ORDER BY PAGE_NUM DESC LIMIT 1");
+        this.insertPage = this.connection.prepareStatement(
+                "INSERT INTO PH_HASH_BUCKETS (TABLE_ID, HASH_BUCKET, PAGE_NUM, ROW_COUNT, LAST_ROW_NUM, ROW_IDS)" +
+                        " VALUES (?, ?, ?, ?, ?, ?)");
+        this.updatePage = this.connection.prepareStatement(
+                "UPDATE PH_HASH_BUCKETS SET ROW_COUNT = ?, LAST_ROW_NUM = ?, ROW_IDS = ?" +
+                        " WHERE TABLE_ID = ? AND HASH_BUCKET = ? AND PAGE_NUM = ?");
+    }
+
+    public void deleteAll(int tableID) throws SQLException {
+        PreparedStatement pStatement = this.connection.prepareStatement(
+                "DELETE FROM PH_HASH_BUCKETS WHERE TABLE_ID = ?");
+        pStatement.setInt(1, tableID);
+        pStatement.executeUpdate();
+        pStatement.close();
+        Stats.countSqlStatements(1);
+    }
+
+    /*
+     * Drops the rows from firstRow on from the pages of the table. Those have to be
+     * the rows appended to their buckets last, so every page that holds one of them
+     * has one of them as its LAST_ROW_NUM, and only those pages are rewritten, or
+     * deleted when nothing is left in them. They are the last pages of their
+     * buckets, so the pages that stay are still numbered without gaps.
+     */
+    public void deleteRowsFrom(int tableID, int firstRow) throws SQLException {
+        PreparedStatement selectPages = this.connection.prepareStatement(
+                "SELECT HASH_BUCKET, PAGE_NUM, ROW_IDS FROM PH_HASH_BUCKETS WHERE TABLE_ID = ? AND LAST_ROW_NUM >= ?");
+        selectPages.setInt(1, tableID);
+        selectPages.setInt(2, firstRow);
+        ResultSet pages = selectPages.executeQuery();
+        Stats.countSqlStatements(1);
+        PreparedStatement deletePage = this.connection.prepareStatement(
+                "DELETE FROM PH_HASH_BUCKETS WHERE TABLE_ID = ? AND HASH_BUCKET = ? AND PAGE_NUM = ?");
+        prepareWriteStatements();
+        int statements = 0;
+        while (pages.next()) {
+            List<Integer> kept = new ArrayList<>();
+            RowIdList.decode(pages.getBytes(3), row -> {
+                if (row < firstRow) {
+                    kept.add(row);
+                }
+            });
+            if (kept.isEmpty()) {
+                deletePage.setInt(1, tableID);
+                deletePage.setLong(2, pages.getLong(1));
+                deletePage.setInt(3, pages.getInt(2));
+                deletePage.executeUpdate();
+            } else {
+                this.updatePage.setInt(1, kept.size());
+                this.updatePage.setInt(2, kept.get(kept.size() - 1));
+                this.updatePage.setBytes(3, RowIdList.encode(kept));
+                this.updatePage.setInt(4, tableID);
+                this.updatePage.setLong(5, pages.getLong(1));
+                this.updatePage.setInt(6, pages.getInt(2));
+                this.updatePage.executeUpdate();
+            }
+            statements++;
+        }
+        pages.close();
+        selectPages.close();
+        deletePage.close();
+        Stats.countSqlStatements(statements);
+    }
+
+    // hands every page of one table id to another, which must not have any yet
+    public void moveAll(int fromTableID, int toTableID) throws SQLException {
+        PreparedStatement pStatement = this.connection.prepareStatement(
+                "UPDATE PH_HASH_BUCKETS SET TABLE_ID = ? WHERE TABLE_ID = ?");
+        pStatement.setInt(1, toTableID);
+        pStatement.setInt(2, fromTableID);
+        pStatement.executeUpdate();
+        pStatement.close();
+        Stats.countSqlStatements(1);
+    }
+
+    // the first page of every bucket, read from the primary key alone
+    public void forEachBucket(int tableID, LongConsumer consumer) throws SQLException {
+        PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT HASH_BUCKET FROM PH_HASH_BUCKETS WHERE TABLE_ID = ? AND PAGE_NUM = 0");
+        pStatement.setInt(1, tableID);
+        ResultSet buckets = pStatement.executeQuery();
+        long rows = 0;
+        while (buckets.next()) {
+            consumer.accept(buckets.getLong(1));
+            rows++;
+        }
+        pStatement.close();
+        Stats.countSqlStatements(1);
+        Stats.current().countRowsStepped(rows);
+    }
+
+    public void forEachBucketRow(int tableID, StorageEngine.BucketRowConsumer consumer) throws SQLException {
+        PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT HASH_BUCKET, ROW_IDS FROM PH_HASH_BUCKETS WHERE TABLE_ID = ?");
+        pStatement.setInt(1, tableID);
+        ResultSet pages = pStatement.executeQuery();
+        long rows = 0;
+        while (pages.next()) {
+            long bucket = pages.getLong(1);
+            RowIdList.decode(pages.getBytes(2), row -> consumer.accept(bucket, row));
+            rows++;
+        }
+        pStatement.close();
+        Stats.countSqlStatements(1);
+        Stats.current().countRowsStepped(rows);
+    }
+
+    /*
+     * The row numbers of every bucket the plan covers, read page by page as the
+     * cursor advances. Point plans are sent as IN lists, range plans as one BETWEEN
+     * per range, and both go through the (TABLE_ID, HASH_BUCKET, PAGE_NUM) primary
+     * key. Every row is in exactly one page, so no row comes out twice.
+     */
+    public RowIdCursor openRows(int tableID, BucketPlan plan) {
+        String residual = plan.hasResidual() ? " AND (HASH_BUCKET & ?) = ?" : "";
+        long[] residualParams = plan.hasResidual()
+                ? new long[] { plan.getResidualMask(), plan.getResidualValue() }
+                : new long[0];
+        List<String> queries = new ArrayList<>();
+        List<long[]> params = new ArrayList<>();
+
+        if (plan.isScan()) {
+            queries.add("SELECT ROW_IDS FROM PH_HASH_BUCKETS WHERE TABLE_ID = ?" + residual);
+            params.add(residualParams);
+        } else if (plan.isPointLookup()) {
+            List<long[]> ranges = plan.getRanges();
+            for (int start = 0; start < ranges.size(); start += IN_LIST_CHUNK) {
+                List<long[]> chunk = ranges.subList(start, Math.min(start + IN_LIST_CHUNK, ranges.size()));
+                String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                queries.add("SELECT ROW_IDS FROM PH_HASH_BUCKETS WHERE TABLE_ID = ? AND HASH_BUCKET IN ("
+                        + placeholders + ")");
+                long[] buckets = new long[chunk.size()];
+                for (int k = 0; k < chunk.size(); k++) {
+                    buckets[k] = chunk.get(k)[0];
+                }
+                params.add(buckets);
+            }
+        } else {
+            for (long[] range : plan.getRanges()) {
+                queries.add("SELECT ROW_IDS FROM PH_HASH_BUCKETS WHERE TABLE_ID = ? AND HASH_BUCKET BETWEEN ? AND ?"
+                        + residual);
+                long[] rangeParams = Arrays.copyOf(new long[] { range[0], range[1] }, 2 + residualParams.length);
+                System.arraycopy(residualParams, 0, rangeParams, 2, residualParams.length);
+                params.add(rangeParams);
+            }
+        }
+        return new PageCursor(tableID, queries, params);
+    }
+
+    // runs the queries one after the other and decodes one page at a time
+    private class PageCursor implements RowIdCursor {
+        private int tableID;
+        private List<String> queries;
+        private List<long[]> params;
+        private int nextQuery = 0;
+        private PreparedStatement statement = null;
+        private ResultSet results = null;
+        private int[] page = new int[MAX_ROWS_PER_PAGE];
+        private int pageSize = 0;
+        private int pagePosition = 0;
+        private TableStats stats = Stats.current();
+
+        private PageCursor(int tableID, List<String> queries, List<long[]> params) {
+            this.tableID = tableID;
+            this.queries = queries;
+            this.params = params;
+        }
+
+        public int next() throws SQLException {
+            while (this.pagePosition == this.pageSize) {
+                if (!nextPage()) {
+                    return -1;
+                }
+            }
+            return this.page[this.pagePosition++];
+        }
+
+        private boolean nextPage() throws SQLException {
+            while (this.results == null || !this.results.next()) {
+                if (this.results != null) {
+                    this.results.close();
+                    this.results = null;
+                }
+                if (this.nextQuery == this.queries.size()) {
+                    close();
+                    return false;
+                }
+                // the ranges of a plan all share one statement
+                String sql = this.queries.get(this.nextQuery);
+                if (this.nextQuery == 0 || !sql.equals(this.queries.get(this.nextQuery - 1))) {
+                    close();
+                    this.statement = connection.prepareStatement(sql);
+                }
+                this.statement.setInt(1, this.tableID);
+                long[] queryParams = this.params.get(this.nextQuery);
+                for (int k = 0; k < queryParams.length; k++) {
+                    this.statement.setLong(k + 2, queryParams[k]);
+                }
+                this.nextQuery++;
+                this.results = this.statement.executeQuery();
+                this.stats.countSqlStatements(1);
+            }
+            this.stats.countRowsStepped(1);
+            this.pageSize = 0;
+            this.pagePosition = 0;
+            RowIdList.decode(this.results.getBytes(1), row -> {
+                if (this.pageSize == this.page.length) {
+                    this.page = Arrays.copyOf(this.page, this.page.length * 2);
+                }
+                this.page[this.pageSize++] = row;
+            });
+            return true;
+        }
+
+        public void close() throws SQLException {
+            if (this.statement != null) {
+                this.statement.close();
+                this.statement = null;
+            }
+        }
+    }
+}
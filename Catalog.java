@@ -0,0 +1,65 @@
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In memory copy of the catalog (PH_TABLE and PH_COL_RANGES for sqlite). The whole
+ * catalog is read once at startup so the "i" and "l" instructions do not have to
+ * query it again. LAST_ROW is counted in memory and only written back to the
+ * storage engine by flushLastRows, which should be called right before each commit.
+ *
+ * lookup may be called from the hashing threads of the InstructionPipeline while
+ * the writer registers tables, everything else belongs to the writer.
+ */
+public class Catalog {
+    private StorageEngine storage;
+    private volatile Map<String, TableInfo> tablesByName = new ConcurrentHashMap<>();
+    // tables whose LAST_ROW moved since the last flush
+    private Set<TableInfo> dirtyTables = new LinkedHashSet<>();
+
+    public Catalog(StorageEngine storage) {
+        this.storage = storage;
+    }
+
+    public void load() throws SQLException {
+        Map<String, TableInfo> loaded = new ConcurrentHashMap<>();
+        for (TableInfo table : this.storage.loadTables()) {
+            loaded.put(table.getName(), table);
+        }
+        this.tablesByName = loaded;
+        this.dirtyTables.clear();
+    }
+
+    // returns null when there is no table with this name
+    public TableInfo lookup(String name) {
+        return this.tablesByName.get(name);
+    }
+
+    public Collection<TableInfo> tables() {
+        return this.tablesByName.values();
+    }
+
+    // called by DDL once the storage engine has recorded the table
+    public void register(TableInfo table) {
+        this.tablesByName.put(table.getName(), table);
+    }
+
+    public void unregister(String name) {
+        this.tablesByName.remove(name);
+    }
+
+    public int allocateRow(TableInfo table) {
+        this.dirtyTables.add(table);
+        return table.nextRow();
+    }
+
+    public void flushLastRows() throws SQLException {
+        for (TableInfo table : this.dirtyTables) {
+            this.storage.updateLastRow(table);
+        }
+        this.dirtyTables.clear();
+    }
+}
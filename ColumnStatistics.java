@@ -0,0 +1,241 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * What the rows of a table look like column by column, for estimating how many
+ * rows a lookup reads down each access path (see AccessPathChoice). For every
+ * column it keeps a DistinctCounter and the HEAVY_HITTERS most frequent values
+ * with the Space-Saving algorithm: a value that is not tracked yet takes the place
+ * of the least frequent tracked one and inherits its count, so a tracked count
+ * overestimates by at most the count it inherited, and every value with more than
+ * rows / HEAVY_HITTERS rows is tracked. Since the counts always add up to the rows,
+ * estimates go by the guaranteed part of each count, the count less what it
+ * inherited, and the rows not guaranteed to a tracked value are assumed to be
+ * spread evenly over the other distinct values.
+ *
+ * The storage engine keeps them with the table (see StorageEngine.saveStatistics),
+ * with the LAST_ROW of the table they were saved at. Database saves them in every
+ * transaction that deletes rows and once every Database.UNSAVED_ROWS inserted
+ * rows, and the next program reads them back and only adds the rows from that
+ * LAST_ROW on. Only a table saved by a version that did not keep them is scanned
+ * once to build them. Deleted rows are taken out of the row count and the tracked
+ * counts, but a DistinctCounter cannot forget a value, so the distinct counts only
+ * go down when a compaction builds the statistics of the rows it copies.
+ */
+class ColumnStatistics {
+    static final int HEAVY_HITTERS = 16;
+
+    private static class HeavyHitters {
+        // value -> { count, count inherited from the value it replaced }
+        private Map<String, long[]> counts = new HashMap<>();
+
+        void add(String value) {
+            long[] count = this.counts.get(value);
+            if (count != null) {
+                count[0]++;
+                return;
+            }
+            if (this.counts.size() < HEAVY_HITTERS) {
+                this.counts.put(value, new long[] { 1, 0 });
+                return;
+            }
+            String least = null;
+            long leastCount = Long.MAX_VALUE;
+            for (Map.Entry<String, long[]> tracked : this.counts.entrySet()) {
+                if (tracked.getValue()[0] < leastCount) {
+                    least = tracked.getKey();
+                    leastCount = tracked.getValue()[0];
+                }
+            }
+            this.counts.remove(least);
+            this.counts.put(value, new long[] { leastCount + 1, leastCount });
+        }
+
+        // takes a row off the guaranteed part of the count first. A count that gets
+        // to 0 stays tracked, it is the first to be replaced
+        void remove(String value) {
+            long[] count = this.counts.get(value);
+            if (count == null || count[0] == 0) {
+                return;
+            }
+            if (count[0] == count[1]) {
+                count[1]--;
+            }
+            count[0]--;
+        }
+    }
+
+    private long rows = 0;
+    // the LAST_ROW of the table when they were saved, the rows from it on are not
+    // in the saved ones
+    private int lastRow = 0;
+    private DistinctCounter[] distinct;
+    private HeavyHitters[] heavyHitters;
+    // the sketches that changed since they were saved, which a storage engine only
+    // has to write again when they did
+    private boolean[] sketchChanged;
+
+    ColumnStatistics(TableInfo table) {
+        this.distinct = new DistinctCounter[table.getNumColumns()];
+        this.heavyHitters = new HeavyHitters[table.getNumColumns()];
+        this.sketchChanged = new boolean[table.getNumColumns()];
+        for (int i = 0; i < table.getNumColumns(); i++) {
+            this.distinct[i] = new DistinctCounter();
+            this.heavyHitters[i] = new HeavyHitters();
+            this.sketchChanged[i] = true;
+        }
+    }
+
+    // the statistics that were saved with encodeSketch, by column, and encodeHeavyHitters
+    static ColumnStatistics decode(TableInfo table, int lastRow, long rows, List<byte[]> sketches,
+            byte[] heavyHitters) {
+        ByteBuffer in = ByteBuffer.wrap(heavyHitters);
+        int numColumns = in.getInt();
+        if (sketches.size() != table.getNumColumns() || numColumns != table.getNumColumns()) {
+            throw new IllegalArgumentException("the statistics of table " + table.getName() + " have "
+                    + sketches.size() + " sketches and " + numColumns + " columns of heavy hitters, the table has "
+                    + table.getNumColumns() + " columns");
+        }
+        ColumnStatistics statistics = new ColumnStatistics(table);
+        statistics.lastRow = lastRow;
+        statistics.rows = rows;
+        for (int i = 0; i < numColumns; i++) {
+            statistics.distinct[i] = new DistinctCounter(sketches.get(i));
+            statistics.sketchChanged[i] = false;
+            int entries = in.getInt();
+            for (int k = 0; k < entries; k++) {
+                byte[] value = new byte[in.getInt()];
+                in.get(value);
+                statistics.heavyHitters[i].counts.put(new String(value, StandardCharsets.UTF_8),
+                        new long[] { in.getLong(), in.getLong() });
+            }
+        }
+        return statistics;
+    }
+
+    synchronized void add(List<String> record) {
+        for (int i = 0; i < this.distinct.length; i++) {
+            this.sketchChanged[i] |= this.distinct[i].add(record.get(i));
+            this.heavyHitters[i].add(record.get(i));
+        }
+        this.rows++;
+    }
+
+    synchronized void remove(List<String> record) {
+        for (int i = 0; i < this.heavyHitters.length; i++) {
+            this.heavyHitters[i].remove(record.get(i));
+        }
+        this.rows--;
+    }
+
+    synchronized long getRows() {
+        return this.rows;
+    }
+
+    // column is 0 indexed, like the values of a pattern
+    synchronized long estimateDistinct(int column) {
+        return Math.max(1, Math.min(this.rows, this.distinct[column].estimate()));
+    }
+
+    // whether the value is guaranteed more than rows / HEAVY_HITTERS of the rows
+    synchronized boolean isHeavyHitter(int column, String value) {
+        long[] count = this.heavyHitters[column].counts.get(value);
+        return count != null && (count[0] - count[1]) * HEAVY_HITTERS > this.rows;
+    }
+
+    // the number of rows whose column has the value, or any value of an IN list
+    synchronized double estimateRows(int column, String value) {
+        if (LookupPattern.isInList(value)) {
+            double rows = 0;
+            for (String choice : LookupPattern.choices(value)) {
+                rows += estimateRows(column, choice);
+            }
+            return Math.min(this.rows, rows);
+        }
+        Map<String, long[]> tracked = this.heavyHitters[column].counts;
+        long[] count = tracked.get(value);
+        if (tracked.size() < HEAVY_HITTERS) {
+            // nothing was ever evicted, so every value of the column is tracked exactly
+            return count == null ? 0 : count[0];
+        }
+        long guaranteedRows = 0;
+        long leastTracked = Long.MAX_VALUE;
+        for (long[] trackedCount : tracked.values()) {
+            guaranteedRows += trackedCount[0] - trackedCount[1];
+            leastTracked = Math.min(leastTracked, trackedCount[0]);
+        }
+        // a value was evicted to get here, so there is at least one other
+        long others = Math.max(1, estimateDistinct(column) - tracked.size());
+        double spread = Math.min(leastTracked, (this.rows - guaranteedRows) / (double) others);
+        return count == null ? spread : Math.min(count[0], Math.max(count[0] - count[1], spread));
+    }
+
+    // ========== saving ========== //
+
+    synchronized int getLastRow() {
+        return this.lastRow;
+    }
+
+    synchronized int getNumColumns() {
+        return this.distinct.length;
+    }
+
+    synchronized boolean isSketchChanged(int column) {
+        return this.sketchChanged[column];
+    }
+
+    synchronized byte[] encodeSketch(int column) {
+        return this.distinct[column].encode();
+    }
+
+    // the tracked values of every column, which change with every row:
+    //   int num_columns, then per column: int entries, then per entry: int length,
+    //      the UTF-8 bytes of the value, long count, long count inherited
+    synchronized byte[] encodeHeavyHitters() {
+        List<byte[]> values = new ArrayList<>();
+        List<long[]> counts = new ArrayList<>();
+        int size = 4;
+        for (HeavyHitters column : this.heavyHitters) {
+            size += 4;
+            for (Map.Entry<String, long[]> tracked : column.counts.entrySet()) {
+                byte[] value = tracked.getKey().getBytes(StandardCharsets.UTF_8);
+                values.add(value);
+                counts.add(tracked.getValue());
+                size += 4 + value.length + 16;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(this.heavyHitters.length);
+        int k = 0;
+        for (HeavyHitters column : this.heavyHitters) {
+            out.putInt(column.counts.size());
+            for (int end = k + column.counts.size(); k < end; k++) {
+                out.putInt(values.get(k).length).put(values.get(k));
+                out.putLong(counts.get(k)[0]).putLong(counts.get(k)[1]);
+            }
+        }
+        return out.array();
+    }
+
+    // called by the storage engine once it wrote them at the LAST_ROW given
+    synchronized void saved(int lastRow) {
+        this.lastRow = lastRow;
+        Arrays.fill(this.sketchChanged, false);
+    }
+
+    // the 0 indexed columns the pattern binds
+    static List<Integer> boundColumns(List<String> values) {
+        List<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            if (!values.get(i).equals("*")) {
+                columns.add(i);
+            }
+        }
+        return columns;
+    }
+}
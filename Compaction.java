@@ -0,0 +1,124 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A table whose deleted rows are being dropped while it stays in use, see
+ * Database.startCompaction. Its live rows are copied SLICE row numbers at a time,
+ * in row order, into a pending copy of the table (see StorageEngine) as rows 1, 2,
+ * 3 ... and hashed into pending buckets under the table's own ranges. The table
+ * itself does not change until the end, so lookups keep reading it and never see
+ * the copy. Rows inserted in the meantime get row numbers past the ones copied so
+ * far and are copied when the slices get to them, and a row deleted after it was
+ * copied is also deleted in the copy. Once the slices have caught up with LAST_ROW
+ * the storage engine swaps the copy and its buckets in for the table in one commit,
+ * which leaves the table without the records and bucket entries of its deleted
+ * rows and with its live rows numbered without gaps.
+ *
+ * Which row of the copy each copied row went to is kept as one int per row. The
+ * copied rows are also counted into ColumnStatistics of their own, which replace
+ * the ones of the table with the switch.
+ */
+class Compaction {
+    static final int SLICE = 4096;
+
+    private TableInfo table;
+    // the rows below it are copied, only moved once the slice that got there committed
+    private int watermark = 1;
+    private int nextWatermark = 1;
+    // the rows copied so far in row order, the k-th one is row k + 1 of the copy
+    private int[] copiedRows = new int[SLICE];
+    private int numCopied = 0;
+    // copied by the slice that has not committed yet
+    private int sliceCopied = 0;
+    // rows of the copy deleted after they were copied
+    private int deletedCopies = 0;
+    private ColumnStatistics statistics;
+
+    Compaction(TableInfo table) {
+        this.table = table;
+        this.statistics = new ColumnStatistics(table);
+    }
+
+    TableInfo getTable() { return this.table; }
+
+    boolean isOf(TableInfo table) {
+        return this.table.getName().equals(table.getName());
+    }
+
+    // the catalog was reloaded after a rollback, the slice that was rolled back was never published
+    void rebind(TableInfo table) {
+        this.table = table;
+    }
+
+    boolean isDone() {
+        return this.watermark >= this.table.getLastRow();
+    }
+
+    // copies the live rows of the next slice, inside the caller's transaction
+    void copySlice(StorageEngine storage) throws SQLException {
+        int end = Math.min(this.table.getLastRow(), this.watermark + SLICE);
+        int[] rows = new int[end - this.watermark];
+        for (int k = 0; k < rows.length; k++) {
+            rows[k] = this.watermark + k;
+        }
+        Map<Long, List<Integer>> rowsByBucket = new LinkedHashMap<>();
+        this.sliceCopied = 0;
+        try (RecordCursor records = storage.openRecords(this.table, rows)) {
+            List<String> record;
+            while ((record = records.next()) != null) {
+                int copied = this.numCopied + this.sliceCopied;
+                if (copied == this.copiedRows.length) {
+                    this.copiedRows = Arrays.copyOf(this.copiedRows, 2 * copied);
+                }
+                this.copiedRows[copied] = records.getRowNum();
+                this.sliceCopied++;
+                storage.addPendingRow(this.table, copied + 1, record);
+                this.statistics.add(record);
+                rowsByBucket.computeIfAbsent(Util.partitionedHash(record, this.table), bucket -> new ArrayList<>())
+                        .add(copied + 1);
+            }
+        }
+        storage.flushRows();
+        storage.appendPendingBuckets(this.table, rowsByBucket);
+        this.nextWatermark = end;
+    }
+
+    // called once the slice of copySlice has committed
+    void publishSlice() {
+        this.watermark = this.nextWatermark;
+        this.numCopied += this.sliceCopied;
+        this.sliceCopied = 0;
+    }
+
+    // the row of the copy that a row of the table went to, -1 while it is not copied
+    int copyOf(int row) {
+        int k = Arrays.binarySearch(this.copiedRows, 0, this.numCopied, row);
+        return k < 0 ? -1 : k + 1;
+    }
+
+    // called with the records of the rows of the copy once their deletes have committed
+    void countDeletedCopies(List<List<String>> records) {
+        this.deletedCopies += records.size();
+        for (List<String> record : records) {
+            this.statistics.remove(record);
+        }
+    }
+
+    // LAST_ROW of the copy
+    int getLastRow() {
+        return this.numCopied + 1;
+    }
+
+    int getDeletedRows() {
+        return this.deletedCopies;
+    }
+
+    // the live rows of the copy
+    ColumnStatistics getStatistics() {
+        return this.statistics;
+    }
+}
@@ -1,104 +1,312 @@
 import java.io.BufferedReader;
-import java.sql.*;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 public class Database {
-    private String dbName;
-    private Connection connection = null;
+    private StorageEngine storage;
+    private Catalog catalog;
 
-    private String sqlite_url = "jdbc:sqlite:";
+    // bulk ingest: when batchSize > 0 consecutive "i" instructions are buffered and
+    // written together in one transaction of at most batchSize rows
+    private int batchSize = 0;
+    private List<Instruction> pendingInserts = new ArrayList<>();
+
+    // online repartitioning: while a table moves to new column ranges, one slice of
+    // its rows is hashed into the new buckets every REPARTITION_INTERVAL instructions
+    private static final int REPARTITION_INTERVAL = 64;
+    private volatile Repartition repartition = null;
+    private int instructionsSinceSlice = 0;
+
+    // compaction: once COMPACT_SHARE of the rows of a table are deleted, its live rows
+    // are copied under new row numbers one slice every compactionInterval instructions
+    // and then replace the table, see Compaction
+    private static final double COMPACT_SHARE = 0.25;
+    private int compactionInterval = REPARTITION_INTERVAL;
+    private volatile Compaction compaction = null;
+    private int instructionsSinceCompaction = 0;
+
+    // pipelined processing: when pipelineDepth > 0 up to pipelineDepth instructions are
+    // read and hashed on hashThreads threads ahead of the one that executes them
+    private int pipelineDepth = 0;
+    private int hashThreads = 1;
+
+    // concurrent lookups: with lookupThreads > 1 and a storage engine that allows it,
+    // consecutive "l" instructions run on a pool and their output is printed in order
+    private int lookupThreads = 1;
+    private ExecutorService lookupExecutor = null;
+    private Deque<Future<ByteArrayOutputStream>> pendingLookups = new ArrayDeque<>();
+
+    // shared scans: when lookupBatch > 0 up to lookupBatch consecutive lookups on one
+    // table that would each read the whole table are answered together, see SharedScan
+    private int lookupBatch = 0;
+    private List<Instruction> batchedLookups = new ArrayList<>();
+
+    // result cache: when set the row numbers of recent lookups are kept until the next
+    // write to their table, see LookupCache
+    private LookupCache lookupCache = null;
+
+    // latencies and storage counters per table, printed by the "s" instruction
+    private Stats stats = new Stats();
+    // which columns the lookups bind, for the "a" instruction
+    private WorkloadAdvisor advisor = new WorkloadAdvisor();
+    // which buckets of each table hold rows, built by the first indexed lookup of the
+    // table and kept up to date by the inserts after it
+    private Map<String, BucketOccupancy> occupancyByTable = new ConcurrentHashMap<>();
+    // the values of the columns of each table, for "auto" lookups and the "e" instruction,
+    // read from the storage engine by the first instruction that needs them and saved
+    // back by every transaction that deletes rows of the table, and by an insert once
+    // UNSAVED_ROWS rows were inserted since they were saved
+    private Map<String, ColumnStatistics> statisticsByTable = new ConcurrentHashMap<>();
+    // tables whose statistics the next commit saves
+    private Set<String> unsavedStatistics = ConcurrentHashMap.newKeySet();
+    // the most rows inserted since the statistics were saved, which the next program
+    // reads and counts when it loads them
+    static final int UNSAVED_ROWS = 4096;
 
     public Database(String db_name) {
-        this.dbName = db_name;
-        this.connectToDbms(this.dbName);
+        this(new ShardedStorageEngine(db_name, 0));
     }
 
-    public boolean connectToDbms(String db_name) {
-        String url = sqlite_url + db_name;
-        try {
-            Class.forName("org.sqlite.JDBC");
-            this.connection = DriverManager.getConnection(url);
-        } catch (Exception e) {
-            System.out.println("encountered an error connecting to sqlite file at");
-            System.out.println("url: " + url);
-            System.out.println(e);
+    public Database(StorageEngine storage) {
+        this.storage = storage;
+        this.catalog = new Catalog(storage);
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            System.out.println("batch size must be non-negative, got: " + batchSize);
+            System.exit(1);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setPipeline(int pipelineDepth, int hashThreads) {
+        if (pipelineDepth < 0 || hashThreads < 1) {
+            System.out.println("pipeline depth must be non-negative and hash threads positive, got: "
+                    + pipelineDepth + ", " + hashThreads);
+            System.exit(1);
         }
+        this.pipelineDepth = pipelineDepth;
+        this.hashThreads = hashThreads;
+    }
 
-        return connection == null;
+    // how many instructions run between two slices of a compaction, which keeps the
+    // compaction from taking more than its share of the time between lookups
+    public void setCompactionInterval(int compactionInterval) {
+        if (compactionInterval < 1) {
+            System.out.println("compaction interval must be positive, got: " + compactionInterval);
+            System.exit(1);
+        }
+        this.compactionInterval = compactionInterval;
     }
 
-    public void initial_tables() {
-        if (this.connection == null) {
-            System.out.print("db connection is null");
-            return;
+    public void setLookupThreads(int lookupThreads) {
+        if (lookupThreads < 1) {
+            System.out.println("lookup threads must be positive, got: " + lookupThreads);
+            System.exit(1);
         }
-        try {
-            Statement statement = this.connection.createStatement();
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_TABLE (" +
-                    "   TABLE_ID INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "   NAME TEXT UNIQUE," +
-                    "   NUM_COLUMNS INTEGER," +
-                    "   LAST_ROW INTEGER" +
-                    ");");
-            statement.executeUpdate("CREATE INDEX IF NOT EXISTS PH_TABLE_NAME_INDEX ON PH_TABLE(NAME)");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_COL_RANGES (" +
-                    "   TABLE_ID INTEGER," +
-                    "   COL_NUM INTEGER," +
-                    "   COL_RANGE INTEGER," +
-                    "   PRIMARY KEY (TABLE_ID, COL_NUM)" +
-                    ");");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_TABLE_ROWS (" +
-                    "   TABLE_ID INTEGER," +
-                    "   ROW_NUM INTEGER," +
-                    "   COL_NUM INTEGER," +
-                    "   VALUE TEXT," +
-                    "   PRIMARY KEY (TABLE_ID, ROW_NUM, COL_NUM)" +
-                    ");");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_HASH_BUCKETS (" +
-                    "   TABLE_ID INTEGER," +
-                    "   HASH_BUCKET INTEGER," +
-                    "   ROW_NUM INTEGER," +
-                    "   PRIMARY KEY (TABLE_ID, HASH_BUCKET)" +
-                    ");");
+        this.lookupThreads = lookupThreads;
+    }
+
+    public void setLookupBatch(int lookupBatch) {
+        if (lookupBatch < 0) {
+            System.out.println("lookup batch must be non-negative, got: " + lookupBatch);
+            System.exit(1);
+        }
+        this.lookupBatch = lookupBatch;
+    }
+
+    // keeps the results of recent lookups in at most about maxBytes, 0 turns it off
+    public void setLookupCache(long maxBytes) {
+        if (maxBytes < 0) {
+            System.out.println("lookup cache size must be non-negative, got: " + maxBytes);
+            System.exit(1);
+        }
+        this.lookupCache = maxBytes > 0 ? new LookupCache(maxBytes, stats) : null;
+    }
+
+    public Stats getStats() {
+        return this.stats;
+    }
 
+    public void initial_tables() {
+        try {
+            this.storage.open();
+            this.catalog.load();
         } catch (Exception e) {
             System.out.println(e);
         }
+        if (lookupThreads > 1 && storage.supportsConcurrentReads()) {
+            lookupExecutor = Executors.newFixedThreadPool(lookupThreads, task -> {
+                Thread thread = new Thread(task, "pht-lookup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void close() {
+        finishRepartition();
+        finishCompaction();
+        for (Map.Entry<String, ColumnStatistics> statistics : statisticsByTable.entrySet()) {
+            TableInfo table = catalog.lookup(statistics.getKey());
+            if (table != null && statistics.getValue().getLastRow() < table.getLastRow()) {
+                unsavedStatistics.add(statistics.getKey());
+            }
+        }
+        if (!unsavedStatistics.isEmpty()) {
+            // the rows inserted since they were saved, or a scan for a lookup, so the
+            // next program does not have to read them again
+            try {
+                storage.begin();
+                saveStatistics();
+                storage.commit();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                rollback();
+            }
+        }
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdown();
+        }
+        try {
+            this.storage.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
     }
 
     public void parse_instructions(String instuctions) {
-        try (BufferedReader br = new BufferedReader(new FileReader(instuctions))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] words = line.split("\\s+", 2);
-                if (words[0].equals("c")) {
-                    create_table(words[1]);
-                } else if (words[0].equals("i")) {
-                    insert_into_table(words[1]);
-                } else if (words[0].equals("l")) {
-                    lookup_in_table(words[1]);
-                } else {
-                    System.out.println(
-                            "Please enter one of the following format: \nc table_name col_1_hash_range col_2_hash_range  ... col_n_hash_range"
-                                    +
-                                    "\ni table_name col_1_value col_2_value ... col_n_value" +
-                                    "\nl table_name use_index_or_not col_choice_1 ... col_choice_n");
+        try {
+            if (pipelineDepth > 0) {
+                new InstructionPipeline(catalog, pipelineDepth, hashThreads).run(instuctions, this::execute);
+            } else {
+                try (BufferedReader br = new BufferedReader(new FileReader(instuctions))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        execute(Instruction.parse(line));
+                    }
                 }
             }
+            drainLookups();
+            flushLookupBatch();
+            flushPendingInserts();
+            finishRepartition();
+            finishCompaction();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void execute(Instruction instruction) {
+        String command = instruction.getCommand();
+        if (!command.equals("l")) {
+            // lookups in flight must not see the writes that come after them
+            drainLookups();
+            flushLookupBatch();
+        }
+        // a slice writes, so it waits for a point where no lookup is in flight
+        if (repartition != null && ++instructionsSinceSlice >= REPARTITION_INTERVAL && pendingLookups.isEmpty()) {
+            instructionsSinceSlice = 0;
+            migrateSlice();
+        }
+        if (compaction != null && ++instructionsSinceCompaction >= compactionInterval && pendingLookups.isEmpty()) {
+            instructionsSinceCompaction = 0;
+            compactSlice();
+        }
+        if (batchSize > 0 && command.equals("i")) {
+            pendingInserts.add(instruction);
+            if (pendingInserts.size() >= batchSize) {
+                flushPendingInserts();
+            }
+            return;
+        }
+        // any other instruction has to see the rows buffered before it
+        flushPendingInserts();
+        if (command.equals("c")) {
+            timed("c", instruction.getTableName(), () -> create_table(instruction.getArguments()));
+        } else if (command.equals("i")) {
+            timed("i", instruction.getTableName(), () -> insert_into_table(instruction));
+        } else if (command.equals("l")) {
+            // timed where it runs, which may be a lookup thread
+            lookup_in_table(instruction);
+        } else if (command.equals("m")) {
+            timed("m", instruction.getTableName(), () -> migrate_table(instruction.getArguments()));
+        } else if (command.equals("s")) {
+            print_stats(instruction.getArguments());
+        } else if (command.equals("a")) {
+            timed("a", instruction.getTableName(), () -> advise_table(instruction.getArguments()));
+        } else if (command.equals("r")) {
+            timed("r", instruction.getTableName(), () -> repartition_table(instruction.getArguments()));
+        } else if (command.equals("e")) {
+            timed("e", instruction.getTableName(), () -> explain_lookup(instruction.getArguments()));
+        } else if (command.equals("d")) {
+            timed("d", instruction.getTableName(), () -> delete_from_table(instruction));
+        } else if (command.equals("u")) {
+            timed("u", instruction.getTableName(), () -> update_table(instruction));
+        } else if (command.equals("x")) {
+            timed("x", instruction.getTableName(), () -> export_table(instruction.getArguments()));
+        } else if (command.equals("b")) {
+            timed("b", instruction.getTableName(), () -> import_table(instruction.getArguments()));
+        } else if (command.equals("j")) {
+            timed("j", instruction.getTableName(), () -> join_tables(instruction.getArguments()));
+        } else {
+            System.out.println(
+                    "Please enter one of the following format: \nc table_name col_1_hash_range col_2_hash_range  ... col_n_hash_range"
+                            +
+                            "\ni table_name col_1_value col_2_value ... col_n_value" +
+                            "\nl table_name use_index_or_not|auto col_choice_1 ... col_choice_n" +
+                            "\nm table_name cells|indexed|packed" +
+                            "\ns table_name" +
+                            "\na table_name [apply]" +
+                            "\nr table_name col_1_hash_range col_2_hash_range  ... col_n_hash_range" +
+                            "\ne table_name use_index_or_not|auto col_choice_1 ... col_choice_n" +
+                            "\nd table_name col_choice_1 ... col_choice_n" +
+                            "\nu table_name col_choice_1 ... col_choice_n new_value_1 ... new_value_n" +
+                            "\nx table_name snapshot_file" +
+                            "\nb table_name snapshot_file" +
+                            "\nj left_table right_table left_col=right_col ... left_col=right_col");
+        }
+    }
+
+    // runs an instruction with the SQL statements and rows it makes the storage go
+    // through counted against its table, then records how long it took
+    private void timed(String type, String tableName, Runnable instruction) {
+        TableStats table = stats.forTable(tableName);
+        TableStats previous = Stats.enter(table);
+        long start = System.nanoTime();
+        try {
+            instruction.run();
+        } finally {
+            stats.recordLatency(table, type, System.nanoTime() - start);
+            Stats.exit(previous);
+        }
+    }
+
     /*
      * A create, "c", command should insert a row to PH_TABLE with the name of the
      * table,
@@ -109,19 +317,58 @@ public class Database {
      * value of the TABLE_ID from this insert then also insert rows in PH_COL_RANGES
      * for
      * the ranges given in the c instruction.
+     *
+     * The ranges may be followed by key=value options for the table:
+     * hash=md5|murmur3|xxhash64 picks the function used for the partitioned hash.
+     * rows=cells|indexed|packed picks how the rows are stored, see RowStore.
+     * shards=N spreads the rows over N files, a power of two, see ShardedStorageEngine.
      */
     public void create_table(String argumentsString) {
         String[] args = argumentsString.split(" ");
         String tableName = args[0];
-        int numColumns = args.length - 1;
+        int firstOption = args.length;
+        while (firstOption > 1 && args[firstOption - 1].contains("=")) {
+            firstOption--;
+        }
+        Map<String, String> options = parseTableOptions(tableName, Arrays.copyOfRange(args, firstOption, args.length));
 
-        int newID;
-        List<Integer> columnRanges = List.of(Arrays.copyOfRange(args, 1, args.length))
+        List<Integer> columnRanges = List.of(Arrays.copyOfRange(args, 1, firstOption))
                 .stream().map(Integer::parseInt)
                 .collect(Collectors.toList());
+        PartitionHashFunction hashFunction = null;
+        try {
+            hashFunction = PartitionHashFunction.forName(options.getOrDefault("hash", Util.DEFAULT_HASH_FUNCTION));
+        } catch (IllegalArgumentException e) {
+            System.out.println("error creating table: " + tableName + ", " + e.getMessage());
+            System.exit(1);
+        }
+        String rowFormat = options.getOrDefault("rows", RowStore.FORMAT_CELLS);
+        if (!RowStore.isFormat(rowFormat)) {
+            System.out.println("error creating table: " + tableName + ", unknown row format: " + rowFormat);
+            System.exit(1);
+        }
+        checkColumnRanges(tableName, columnRanges);
+        int shards = 1;
+        try {
+            shards = Integer.parseInt(options.getOrDefault("shards", "1"));
+        } catch (NumberFormatException e) {
+            shards = 0;
+        }
+        int totalBits = columnRanges.stream().mapToInt(Integer::intValue).sum();
+        if (shards < 1 || shards > ShardedStorageEngine.MAX_SHARDS || Integer.bitCount(shards) != 1
+                || Integer.numberOfTrailingZeros(shards) > totalBits) {
+            System.out.println("error creating table: " + tableName + ", shards has to be a power of two up to "
+                    + ShardedStorageEngine.MAX_SHARDS + " and at most 2^(sum of the ranges): "
+                    + options.get("shards"));
+            System.exit(1);
+        }
+        if (shards > 1) {
+            create_sharded_table(tableName, columnRanges, hashFunction, rowFormat, shards);
+            return;
+        }
         try {
-            newID = insertTableData(tableName, numColumns);
-            insertColumnRanges(tableName, columnRanges, newID);
+            // keep the cached catalog in step with the stored one
+            catalog.register(storage.createTable(tableName, columnRanges, hashFunction, rowFormat));
         } catch (SQLException e) {
             System.out.println("error creating table: " + tableName);
             e.printStackTrace();
@@ -130,6 +377,25 @@ public class Database {
         System.out.println("CREATED " + tableName);
     }
 
+    // the table and its shards are created in one transaction, see StorageEngine.shardTable
+    private void create_sharded_table(String tableName, List<Integer> columnRanges,
+            PartitionHashFunction hashFunction, String rowFormat, int shards) {
+        TableInfo table;
+        try {
+            storage.begin();
+            table = storage.createTable(tableName, columnRanges, hashFunction, rowFormat);
+            storage.shardTable(table, shards);
+            storage.commit();
+        } catch (SQLException e) {
+            System.out.println("error creating table: " + tableName + ", " + e.getMessage());
+            rollback();
+            System.exit(1);
+            return;
+        }
+        catalog.register(table);
+        System.out.println("CREATED " + tableName + " in " + shards + " shards");
+    }
+
     /*
      * An insert, "i", should look up the row for the table_name of the insert in
      * PH_TABLE.
@@ -140,8 +406,13 @@ public class Database {
      * also add a row into PH_HASH_BUCKETS using the appropriate hash value.
      */
     public void insert_into_table(String argumentString) {
+        insert_into_table(new Instruction("i", argumentString));
+    }
+
+    private void insert_into_table(Instruction instruction) {
         // resetrict inserts to not be of the symbol *
 
+        String argumentString = instruction.getArguments();
         String[] args = argumentString.split(" ");
         String tableName = args[0];
         int numColumnsArg = args.length - 1;
@@ -154,30 +425,327 @@ public class Database {
             TableInfo lookupResult = lookupPHTable(tableName);
             int tableID = lookupResult.getID();
             int numColumns = lookupResult.getNumColumns();
-            int lastRow = lookupResult.getLastRow();
             if (numColumnsArg != numColumns) {
                 System.out.println("error encountered when trying to insert: " + argumentString);
                 System.out.println("num columns in insert does not match num columns in table");
                 System.exit(1);
             }
 
-            List<Pair<Integer, Integer>> columnNumRangePairs = lookupHashInfo(tableID);
-            List<Integer> columHashRanges = columnNumRangePairs.stream()
-                    .map(Pair::getSecond)
-                    .collect(Collectors.toList());
-
-            insertRow(tableID, lastRow, valuesList);
-            updateLastRow(tableID, lastRow);
-            insertHashBucket(tableID, lastRow, valuesList, columHashRanges);
+            // the row, its bucket and LAST_ROW are committed together, with the
+            // statistics once UNSAVED_ROWS rows were inserted since they were saved
+            statistics(lookupResult);
+            storage.begin();
+            int lastRow = catalog.allocateRow(lookupResult);
+            insertRow(lookupResult, lastRow, valuesList);
+            long hashValue = instruction.hashFor(lookupResult, valuesList);
+            insertHashBucket(lookupResult, lastRow, hashValue);
+            noteBuckets(lookupResult, List.of(hashValue));
+            noteRow(lookupResult, valuesList);
+            Repartition running = repartition;
+            if (running != null && running.isOf(lookupResult)) {
+                storage.appendPendingBuckets(lookupResult, Map.of(running.hashPending(valuesList), List.of(lastRow)));
+            }
+            catalog.flushLastRows();
+            saveStatistics();
+            storage.commit();
+            invalidateLookups(lookupResult);
 
             System.out.println("Inserted into: " + tableName);
         } catch (SQLException e) {
             System.out.println("encountered an sql exception when trying to insertt: " + argumentString);
             e.printStackTrace();
+            rollback();
         }
 
     }
 
+    /*
+     * Bulk version of insert_into_table used when a batch size is configured. All
+     * of the buffered inserts are written in a single transaction: the rows are
+     * sent with addBatch/executeBatch, the rows of each bucket are appended to its
+     * page together and LAST_ROW is written once per table instead of once per
+     * row. If one of the buffered inserts is invalid the inserts in front of it are
+     * still committed before the program stops, the same as when every insert runs
+     * on its own.
+     */
+    private void flushPendingInserts() {
+        if (pendingInserts.isEmpty()) {
+            return;
+        }
+        List<String> insertedTables = new ArrayList<>();
+        String failedInsert = null;
+        String failure = null;
+        Map<TableInfo, Map<Long, List<Integer>>> bucketsByTable = new LinkedHashMap<>();
+        // the buckets of the rows of a table that is being repartitioned under its new ranges
+        Repartition running = repartition;
+        Map<Long, List<Integer>> pendingBuckets = new LinkedHashMap<>();
+        // the rows of every table go out in one batch, so only the buckets are counted per table
+        TableStats previous = Stats.enter(stats.total());
+        long start = System.nanoTime();
+
+        try {
+            for (Instruction instruction : pendingInserts) {
+                TableInfo table = catalog.lookup(instruction.getTableName());
+                if (table != null) {
+                    statistics(table);
+                }
+            }
+            storage.begin();
+            for (Instruction instruction : pendingInserts) {
+                String argumentString = instruction.getArguments();
+                String[] args = argumentString.split(" ");
+                String tableName = args[0];
+                List<String> valuesList = Arrays.asList(args).subList(1, args.length);
+
+                TableInfo table = catalog.lookup(tableName);
+                if (table == null) {
+                    failedInsert = argumentString;
+                    failure = "Table: " + tableName + "cannot be inserted because it does not exist in the database";
+                    break;
+                }
+                if (valuesList.size() != table.getNumColumns()) {
+                    failedInsert = argumentString;
+                    failure = "num columns in insert does not match num columns in table";
+                    break;
+                }
+                if (valuesList.contains("*")) {
+                    failedInsert = argumentString;
+                    failure = "error insering a * character";
+                    break;
+                }
+
+                int rowNum = catalog.allocateRow(table);
+                storage.addRow(table, rowNum, valuesList);
+                noteRow(table, valuesList);
+                bucketsByTable.computeIfAbsent(table, t -> new LinkedHashMap<>())
+                        .computeIfAbsent(instruction.hashFor(table, valuesList), bucket -> new ArrayList<>())
+                        .add(rowNum);
+                if (running != null && running.isOf(table)) {
+                    pendingBuckets.computeIfAbsent(running.hashPending(valuesList), bucket -> new ArrayList<>())
+                            .add(rowNum);
+                }
+                insertedTables.add(tableName);
+            }
+            storage.flushRows();
+            for (Map.Entry<TableInfo, Map<Long, List<Integer>>> tableBuckets : bucketsByTable.entrySet()) {
+                Stats.enter(stats.forTable(tableBuckets.getKey().getName()));
+                storage.appendBuckets(tableBuckets.getKey(), tableBuckets.getValue());
+                noteBuckets(tableBuckets.getKey(), tableBuckets.getValue().keySet());
+                if (running != null && running.isOf(tableBuckets.getKey())) {
+                    storage.appendPendingBuckets(tableBuckets.getKey(), pendingBuckets);
+                }
+                Stats.enter(stats.total());
+            }
+            catalog.flushLastRows();
+            saveStatistics();
+            storage.commit();
+            for (TableInfo table : bucketsByTable.keySet()) {
+                invalidateLookups(table);
+            }
+        } catch (SQLException e) {
+            System.out.println("encountered an sql exception when trying to insert a batch of "
+                    + pendingInserts.size() + " rows, the batch was rolled back");
+            e.printStackTrace();
+            insertedTables.clear();
+            rollback();
+        } finally {
+            pendingInserts.clear();
+            Stats.exit(previous);
+        }
+        // one sample per batch, for every table the batch wrote to
+        long elapsed = System.nanoTime() - start;
+        for (TableInfo table : bucketsByTable.keySet()) {
+            stats.forTable(table.getName()).recordLatency("batch", elapsed);
+        }
+        stats.total().recordLatency("batch", elapsed);
+
+        for (String tableName : insertedTables) {
+            System.out.println("Inserted into: " + tableName);
+        }
+        if (failedInsert != null) {
+            System.out.println("error encountered when trying to insert: " + failedInsert);
+            System.out.println(failure);
+            System.exit(1);
+        }
+    }
+
+    /*
+     * A delete, "d", instruction removes every row that matches a lookup pattern:
+     *   d table_name col_choice_1 ... col_choice_n
+     * The rows are found through the partitioned hash like an indexed lookup and
+     * each gets a tombstone (see StorageEngine.deleteRows), all in one transaction.
+     * Their records and bucket entries are dropped later, by a compaction of the
+     * table that starts once COMPACT_SHARE of its rows are deleted.
+     */
+    public void delete_from_table(String argumentString) {
+        delete_from_table(new Instruction("d", argumentString));
+    }
+
+    private void delete_from_table(Instruction instruction) {
+        String argumentString = instruction.getArguments();
+        String[] args = argumentString.split(" ");
+        TableInfo table = lookupPHTable(args[0]);
+        if (args.length - 1 != table.getNumColumns()) {
+            System.out.println("error deleting from table, expected: d table_name col_choice_1 ... col_choice_n");
+            System.exit(1);
+        }
+        List<String> pattern = Arrays.asList(args).subList(1, args.length);
+        try {
+            TreeMap<Integer, List<String>> matched = matchingRows(instruction, table, pattern);
+            List<List<String>> deletedCopies = List.of();
+            if (!matched.isEmpty()) {
+                statistics(table);
+                storage.begin();
+                deletedCopies = deleteRows(table, matched);
+                saveStatistics();
+                storage.commit();
+            }
+            System.out.println("Deleted " + matched.size() + " rows from: " + table.getName());
+            // a compaction this starts reports itself after the delete
+            if (!matched.isEmpty()) {
+                rowsDeleted(table, deletedCopies);
+            }
+        } catch (SQLException e) {
+            System.out.println("error deleting from table: " + argumentString);
+            e.printStackTrace();
+            rollback();
+        }
+    }
+
+    /*
+     * An update, "u", instruction changes every row that matches a lookup pattern:
+     *   u table_name col_choice_1 ... col_choice_n new_value_1 ... new_value_n
+     * where a new value of "*" keeps the value the row has. Since the bucket of a
+     * row follows from its values, each matching row is deleted like by a "d"
+     * instruction and inserted again with the new values under a new row number,
+     * all in one transaction.
+     */
+    public void update_table(String argumentString) {
+        update_table(new Instruction("u", argumentString));
+    }
+
+    private void update_table(Instruction instruction) {
+        String argumentString = instruction.getArguments();
+        String[] args = argumentString.split(" ");
+        TableInfo table = lookupPHTable(args[0]);
+        int numColumns = table.getNumColumns();
+        if (args.length - 1 != 2 * numColumns) {
+            System.out.println("error updating table, expected: u table_name col_choice_1 ... col_choice_n"
+                    + " new_value_1 ... new_value_n");
+            System.exit(1);
+        }
+        List<String> pattern = Arrays.asList(args).subList(1, 1 + numColumns);
+        List<String> newValues = Arrays.asList(args).subList(1 + numColumns, args.length);
+        try {
+            TreeMap<Integer, List<String>> matched = matchingRows(instruction, table, pattern);
+            List<List<String>> deletedCopies = List.of();
+            if (!matched.isEmpty()) {
+                statistics(table);
+                storage.begin();
+                deletedCopies = deleteRows(table, matched);
+                List<List<String>> updated = new ArrayList<>();
+                for (List<String> record : matched.values()) {
+                    List<String> values = new ArrayList<>(record);
+                    for (int k = 0; k < numColumns; k++) {
+                        if (!newValues.get(k).equals("*")) {
+                            values.set(k, newValues.get(k));
+                        }
+                    }
+                    updated.add(values);
+                }
+                insertRows(table, updated);
+                catalog.flushLastRows();
+                saveStatistics();
+                storage.commit();
+            }
+            System.out.println("Updated " + matched.size() + " rows in: " + table.getName());
+            if (!matched.isEmpty()) {
+                rowsDeleted(table, deletedCopies);
+            }
+        } catch (SQLException e) {
+            System.out.println("error updating table: " + argumentString);
+            e.printStackTrace();
+            rollback();
+        }
+    }
+
+    // the rows that match the pattern by row number, found through the buckets
+    private TreeMap<Integer, List<String>> matchingRows(Instruction instruction, TableInfo table, List<String> pattern)
+            throws SQLException {
+        TreeMap<Integer, List<String>> matched = new TreeMap<>();
+        LookupPattern lookup = new LookupPattern(table, true, pattern, instruction.planFor(table, pattern));
+        try (RecordCursor rows = openStoredLookup(lookup)) {
+            List<String> record;
+            while ((record = rows.next()) != null) {
+                matched.put(rows.getRowNum(), record);
+            }
+        }
+        return matched;
+    }
+
+    // tombstones for the rows, and for their copies when a running compaction copied
+    // them already. Returns the records of the copies deleted, to count once committed.
+    private List<List<String>> deleteRows(TableInfo table, TreeMap<Integer, List<String>> rows)
+            throws SQLException {
+        int[] sortedRows = rows.keySet().stream().mapToInt(Integer::intValue).toArray();
+        storage.deleteRows(table, sortedRows);
+        for (List<String> record : rows.values()) {
+            forgetRow(table, record);
+        }
+        Compaction running = compaction;
+        if (running == null || !running.isOf(table)) {
+            return List.of();
+        }
+        // rows keep their order in the copy, so these are sorted too
+        int[] copies = IntStream.of(sortedRows).map(running::copyOf).filter(row -> row >= 0).toArray();
+        if (copies.length == 0) {
+            return List.of();
+        }
+        storage.deletePendingRows(table, copies);
+        List<List<String>> deletedCopies = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> row : rows.entrySet()) {
+            if (running.copyOf(row.getKey()) >= 0) {
+                deletedCopies.add(row.getValue());
+            }
+        }
+        return deletedCopies;
+    }
+
+    // the rows and their buckets, inside the caller's transaction
+    private void insertRows(TableInfo table, List<List<String>> rows) throws SQLException {
+        Map<Long, List<Integer>> rowsByBucket = new LinkedHashMap<>();
+        Repartition running = repartition;
+        Map<Long, List<Integer>> pendingBuckets = new LinkedHashMap<>();
+        for (List<String> values : rows) {
+            int rowNum = catalog.allocateRow(table);
+            storage.addRow(table, rowNum, values);
+            noteRow(table, values);
+            rowsByBucket.computeIfAbsent(Util.partitionedHash(values, table), bucket -> new ArrayList<>())
+                    .add(rowNum);
+            if (running != null && running.isOf(table)) {
+                pendingBuckets.computeIfAbsent(running.hashPending(values), bucket -> new ArrayList<>()).add(rowNum);
+            }
+        }
+        storage.flushRows();
+        storage.appendBuckets(table, rowsByBucket);
+        noteBuckets(table, rowsByBucket.keySet());
+        if (!pendingBuckets.isEmpty()) {
+            storage.appendPendingBuckets(table, pendingBuckets);
+        }
+    }
+
+    // called once the deletes of a "d" or "u" instruction have committed
+    private void rowsDeleted(TableInfo table, List<List<String>> deletedCopies) {
+        if (!deletedCopies.isEmpty()) {
+            compaction.countDeletedCopies(deletedCopies);
+        }
+        invalidateLookups(table);
+        if (compaction == null && repartition == null && table.getDeletedRows() > 0
+                && table.getDeletedRows() >= COMPACT_SHARE * (table.getLastRow() - 1)) {
+            startCompaction(table);
+        }
+    }
+
     /*
      * This looks up all entries which match the sequence of column choices. The
      * column choice "*" matches
@@ -214,15 +782,146 @@ public class Database {
      * possible. This completes the description of the homework.
      */
     public void lookup_in_table(String argumentString) {
+        lookup(new Instruction("l", argumentString), System.out);
+    }
+
+    private void lookup_in_table(Instruction instruction) {
+        if (lookupBatch > 0 && isValidLookup(instruction) && canShareScan(instruction)) {
+            if (!batchedLookups.isEmpty() && !batchedLookups.get(0).getTableName().equals(instruction.getTableName())) {
+                flushLookupBatch();
+            }
+            batchedLookups.add(instruction);
+            if (batchedLookups.size() >= lookupBatch) {
+                flushLookupBatch();
+            }
+            return;
+        }
+        // the batched lookups come first
+        flushLookupBatch();
+        if (lookupExecutor == null) {
+            lookup(instruction, System.out);
+            return;
+        }
+        if (!isValidLookup(instruction)) {
+            // the lookups in front of it print first, then it fails like it would on its own
+            drainLookups();
+            lookup(instruction, System.out);
+            return;
+        }
+        if (pendingLookups.size() >= lookupThreads * 4) {
+            printLookup(pendingLookups.poll());
+        }
+        pendingLookups.add(lookupExecutor.submit(() -> {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(output);
+            lookup(instruction, out);
+            out.flush();
+            return output;
+        }));
+    }
+
+    /*
+     * Same as lookup_in_table but prints the matching rows to out. With a storage
+     * engine that supports concurrent reads it can be called from several threads
+     * at once, as long as nothing is written at the same time.
+     */
+    public void lookup_in_table(String argumentString, PrintStream out) {
+        lookup(new Instruction("l", argumentString), out);
+    }
+
+    // whether lookup gets past its checks without printing an error and exiting
+    private boolean isValidLookup(Instruction instruction) {
+        String[] args = instruction.getArguments().split(" ");
+        TableInfo table = catalog.lookup(args[0]);
+        return args.length >= 2 && table != null && args.length - 2 == table.getNumColumns();
+    }
+
+    private void printLookup(Future<ByteArrayOutputStream> lookup) {
+        try {
+            lookup.get().writeTo(System.out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException | IOException e) {
+            throw new IllegalStateException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    private void drainLookups() {
+        while (!pendingLookups.isEmpty()) {
+            printLookup(pendingLookups.poll());
+        }
+    }
+
+    private boolean canShareScan(Instruction instruction) {
+        String[] args = instruction.getArguments().split(" ");
+        TableInfo table = catalog.lookup(args[0]);
+        List<String> values = Arrays.asList(args).subList(2, args.length);
+        boolean useIndex = useIndex(instruction, table, args[1], values);
+        return SharedScan.canShare(new LookupPattern(table, useIndex, values,
+                useIndex ? instruction.planFor(table, values) : null), storage);
+    }
+
+    /*
+     * Answers the batched lookups with one SharedScan and prints their rows, each
+     * lookup's in row order and the lookups in instruction order. The batch is timed
+     * as one "lookup-batch", like the inserts of a batch.
+     */
+    private void flushLookupBatch() {
+        if (batchedLookups.isEmpty()) {
+            return;
+        }
+        // lookups that went to the pool before the batch started print before it
+        drainLookups();
+        List<Instruction> batch = batchedLookups;
+        batchedLookups = new ArrayList<>();
+        TableInfo table = lookupPHTable(batch.get(0).getTableName());
+        List<LookupPattern> patterns = new ArrayList<>();
+        for (Instruction instruction : batch) {
+            String[] args = instruction.getArguments().split(" ");
+            List<String> values = Arrays.asList(args).subList(2, args.length);
+            boolean useIndex = useIndex(instruction, table, args[1], values);
+            LookupPattern pattern = new LookupPattern(table, useIndex, values,
+                    useIndex ? instruction.planFor(table, values) : null);
+            advisor.recordLookup(table, values);
+            patterns.add(pattern);
+        }
+        List<StringBuilder> outputs = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            outputs.add(new StringBuilder());
+        }
+        String lineSeparator = System.lineSeparator();
+        timed("lookup-batch", table.getName(), () -> {
+            try {
+                new SharedScan(table, patterns).run(storage,
+                        (p, record) -> outputs.get(p).append(formatRecord(record)).append(lineSeparator));
+            } catch (SQLException e) {
+                for (int i = 0; i < batch.size(); i++) {
+                    outputs.set(i, new StringBuilder("error looking up information: " + batch.get(i).getArguments()
+                            + lineSeparator));
+                }
+                e.printStackTrace();
+            }
+        });
+        for (StringBuilder output : outputs) {
+            System.out.print(output);
+        }
+    }
+
+    private void lookup(Instruction instruction, PrintStream out) {
+        timed("l", instruction.getTableName(), () -> runLookup(instruction, out));
+    }
+
+    private void runLookup(Instruction instruction, PrintStream out) {
         // try first to write naive lookup using only the first 3 tables
         // check that the num of columns in the query string is similar to the num of
         // columns for that table
         // find the set of row numbers which satisfies the constraint for each column
         // independently
         // find the set representing the intersection of the sets for each column
+        String argumentString = instruction.getArguments();
         String[] args = argumentString.split(" ");
         String tableName = args[0];
-        boolean useIndex = Boolean.valueOf(args[1]);
         List<String> argsList = new ArrayList<>(Arrays.asList(args));
         List<String> valuesList = argsList.subList(2, argsList.size());
 
@@ -235,73 +934,673 @@ public class Database {
                 System.exit(1);
             }
 
-            if (useIndex) {
-                // find the hash ranges information for the table
-                List<Pair<Integer, Integer>> columnNumRangePairs = lookupHashInfo(lookupTarget.getID());
-                List<Integer> columHashRanges = columnNumRangePairs.stream()
-                        .map(Pair::getSecond)
-                        .collect(Collectors.toList());
-                // find the rows that satisfy the query for the hash constraints
-                Set<Integer> bucketRows = selectRowsInBuckets(lookupTarget, columHashRanges, valuesList);
-                queryValidatePrint(lookupTarget, bucketRows, valuesList);
+            boolean useIndex = useIndex(instruction, lookupTarget, args[1], valuesList);
+            BucketPlan plan = useIndex ? instruction.planFor(lookupTarget, valuesList) : null;
+            try (RecordCursor rows = openLookup(new LookupPattern(lookupTarget, useIndex, valuesList, plan))) {
+                List<String> record;
+                while ((record = rows.next()) != null) {
+                    out.println(formatRecord(record));
+                }
+            }
+        } catch (SQLException e) {
+            out.println("error looking up information: " + argumentString);
+            e.printStackTrace();
+        }
 
-            } else {
-                // design choice: list of sets with one set for each row is zero indexed but the
-                // rows in the
-                // table are all one indexed
-                List<Set<Integer>> validRowsPerColumn = new ArrayList<>(Collections.nCopies(valuesList.size(), null));
-                for (int i = 0; i < valuesList.size(); i++) {
-                    validRowsPerColumn.set(i, selectValidRows(lookupTarget.getID(), i + 1, valuesList.get(i)));
+    }
+
+    // use_index_or_not of a lookup, where "auto" takes the path AccessPathChoice expects to be cheaper
+    private boolean useIndex(Instruction instruction, TableInfo table, String flag, List<String> values) {
+        if (!AccessPathChoice.isAuto(flag)) {
+            return Boolean.valueOf(flag);
+        }
+        return chooseAccessPath(table, flag, values, instruction.planFor(table, values)).usesIndex();
+    }
+
+    /*
+     * The access path of a lookup by the column statistics of its table. When they
+     * cannot be read the choice falls back to the statistics of an empty table, which
+     * picks the index for "auto".
+     */
+    private AccessPathChoice chooseAccessPath(TableInfo table, String flag, List<String> values, BucketPlan plan) {
+        ColumnStatistics tableStatistics;
+        try {
+            tableStatistics = statistics(table);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            tableStatistics = new ColumnStatistics(table);
+        }
+        return new AccessPathChoice(table, values, flag, plan, tableStatistics, storage.hasColumnIndex(table));
+    }
+
+    // ========== lookup API for code that embeds the engine ========== //
+
+    /*
+     * Checks a lookup against the catalog and plans it once, so it can be opened any
+     * number of times. Where the "l" instruction prints an error and stops the
+     * program this throws IllegalArgumentException.
+     */
+    public LookupPattern prepareLookup(String tableName, boolean useIndex, List<String> values) {
+        TableInfo table = catalog.lookup(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("no such table: " + tableName);
+        }
+        if (values.size() != table.getNumColumns()) {
+            throw new IllegalArgumentException("table " + tableName + " has " + table.getNumColumns()
+                    + " columns, the pattern has " + values.size());
+        }
+        List<String> pattern = List.copyOf(values);
+        return new LookupPattern(table, useIndex, pattern, useIndex ? BucketPlanner.plan(table, pattern) : null);
+    }
+
+    // like prepareLookup with use_index_or_not "auto"
+    public LookupPattern prepareLookup(String tableName, List<String> values) {
+        LookupPattern indexed = prepareLookup(tableName, true, values);
+        if (chooseAccessPath(indexed.getTable(), "auto", indexed.getValues(), indexed.getPlan()).usesIndex()) {
+            return indexed;
+        }
+        return new LookupPattern(indexed.getTable(), false, indexed.getValues(), null);
+    }
+
+    /*
+     * Streams the rows that match the pattern. Rows are read from the storage as the
+     * cursor advances and never all held at once, except that the non-index lookup of
+     * a cells table first intersects the row numbers of every column. The cursor has
+     * to be closed. Like lookup_in_table(String, PrintStream) it may be used from
+     * several threads when the storage engine supports concurrent reads.
+     */
+    public RecordCursor openLookup(LookupPattern pattern) throws SQLException {
+        advisor.recordLookup(pattern.getTable(), pattern.getValues());
+        if (lookupCache == null) {
+            return openStoredLookup(pattern);
+        }
+        return lookupCache.open(pattern, storage, () -> openStoredLookup(pattern));
+    }
+
+    /*
+     * Streams the equi-join of two tables: for every pair of rows whose columns
+     * leftColumns[k] and rightColumns[k] are equal for every k, the record of the
+     * left row followed by that of the right one, in no particular order. Column
+     * numbers are 1 indexed like in the "j" instruction. See HashJoin for how it
+     * is split up; a running repartition of either table is finished first, since
+     * the join reads the buckets of the current layout. The cursor has to be closed.
+     */
+    public RecordCursor openJoin(String leftTable, String rightTable, int[] leftColumns, int[] rightColumns)
+            throws SQLException {
+        if (leftColumns.length == 0 || leftColumns.length != rightColumns.length) {
+            throw new IllegalArgumentException("a join needs one right column for every left column");
+        }
+        if (repartition != null && (repartition.getTable().getName().equals(leftTable)
+                || repartition.getTable().getName().equals(rightTable))) {
+            finishRepartition();
+        }
+        TableInfo left = catalog.lookup(leftTable);
+        TableInfo right = catalog.lookup(rightTable);
+        if (left == null || right == null) {
+            throw new IllegalArgumentException("no such table: " + (left == null ? leftTable : rightTable));
+        }
+        int[] left0 = new int[leftColumns.length];
+        int[] right0 = new int[rightColumns.length];
+        for (int k = 0; k < leftColumns.length; k++) {
+            left0[k] = leftColumns[k] - 1;
+            right0[k] = rightColumns[k] - 1;
+        }
+        return new HashJoin(storage, left, right, left0, right0);
+    }
+
+    // the lookup without the cache
+    private RecordCursor openStoredLookup(LookupPattern pattern) throws SQLException {
+        TableInfo table = pattern.getTable();
+        RecordCursor candidates;
+        Repartition running = repartition;
+        if (pattern.usesIndex() && running != null && running.isOf(table)) {
+            // half way through a repartition every row is in the buckets of one layout or the other
+            candidates = storage.openBucketRecords(table, pattern.planFor(table),
+                    running.planPending(pattern.getValues()), running.migratedRows());
+        } else if (pattern.usesIndex()) {
+            // buckets known to be empty are dropped before any query is sent
+            BucketPlan plan = occupancy(table).prune(pattern.planFor(table));
+            // not all of the rows hashed to valid buckets satisfy our query requirements, kinda like collisions
+            candidates = plan == null ? RecordCursor.empty() : storage.openBucketRecords(table, plan);
+        } else if (!storage.hasColumnIndex(table)) {
+            // without a per column index, test every record of the table instead
+            candidates = storage.openScan(table);
+        } else {
+            RowBitmap intersectionRows = intersectBoundColumns(table, pattern.getValues());
+            // with no column bound every row is valid
+            candidates = intersectionRows == null ? storage.openScan(table)
+                    : storage.openRecords(table, intersectionRows.toArray());
+        }
+        if (!pattern.usesIndex()) {
+            return candidates.filter(pattern::matches);
+        }
+        // every row the buckets hand back that the pattern rejects is a false positive
+        TableStats tableStats = stats.forTable(table.getName());
+        return candidates.filter(record -> {
+            boolean matched = pattern.matches(record);
+            tableStats.countCandidate(matched);
+            return matched;
+        });
+    }
+
+    /*
+     * The rows of the non-index lookup that are left after intersecting the rows of
+     * its bound columns, or null when it binds none. "*" columns match every row and
+     * are skipped, an IN list column gives the union of the rows of its values. The
+     * columns are taken from the fewest rows to the most, so the intersection only
+     * shrinks: by the counts of the storage, or by the estimates of the column
+     * statistics when the storage cannot count cheaply and there are statistics, and
+     * in column order otherwise. It stops once the intersection is empty or has so
+     * few rows that reading their records (numColumns cells each) costs less than
+     * reading the row numbers of the next column; the pattern then rejects whatever
+     * the skipped columns would have. Column numbers are 1 indexed.
+     */
+    private RowBitmap intersectBoundColumns(TableInfo table, List<String> values) throws SQLException {
+        List<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            if (!values.get(i).equals("*")) {
+                columns.add(i + 1);
+            }
+        }
+        if (columns.isEmpty()) {
+            return null;
+        }
+        Map<Integer, Long> counts = new HashMap<>();
+        if (columns.size() > 1) {
+            ColumnStatistics statistics = statisticsByTable.get(table.getName());
+            for (int column : columns) {
+                long count = countColumnRows(table, column, values.get(column - 1));
+                if (count == 0) {
+                    return new RowBitmap();
+                }
+                if (count < 0 && statistics != null) {
+                    // the storage cannot count them cheaply, the statistics estimate them instead
+                    count = Math.max(1, Math.round(statistics.estimateRows(column - 1, values.get(column - 1))));
                 }
+                counts.put(column, count);
+            }
+            if (!counts.containsValue(-1L)) {
+                columns.sort((a, b) -> Long.compare(counts.get(a), counts.get(b)));
+            }
+        }
+        RowBitmap intersectionRows = null;
+        for (int column : columns) {
+            if (intersectionRows != null && ((long) intersectionRows.getCardinality() * table.getNumColumns()
+                    < counts.get(column) || intersectionRows.isEmpty())) {
+                break;
+            }
+            RowBitmap validRows = selectColumnRows(table, column, values.get(column - 1));
+            intersectionRows = intersectionRows == null ? validRows : intersectionRows.and(validRows);
+        }
+        return intersectionRows;
+    }
+
+    // the rows of a bound column, for an IN list those of any of its values
+    private RowBitmap selectColumnRows(TableInfo table, int column, String value) throws SQLException {
+        RowBitmap rows = null;
+        for (String choice : LookupPattern.choices(value)) {
+            RowBitmap choiceRows = storage.selectValidRows(table, column, choice);
+            rows = rows == null ? choiceRows : rows.or(choiceRows);
+        }
+        return rows;
+    }
+
+    // -1 when the storage cannot count the rows of a value cheaply
+    private long countColumnRows(TableInfo table, int column, String value) throws SQLException {
+        long count = 0;
+        for (String choice : LookupPattern.choices(value)) {
+            long choiceCount = storage.countValidRows(table, column, choice);
+            if (choiceCount < 0) {
+                return -1;
+            }
+            count += choiceCount;
+        }
+        return count;
+    }
+
+    /*
+     * An explain, "e", instruction takes the arguments of an "l" instruction and,
+     * instead of running the lookup, prints the access path it would take with the
+     * column statistics of the table, the estimated rows of every bound value and
+     * the estimated cost of both paths, see AccessPathChoice.
+     */
+    public void explain_lookup(String argumentString) {
+        String[] args = argumentString.split(" ");
+        TableInfo table = lookupPHTable(args[0]);
+        if (args.length < 2 || args.length - 2 != table.getNumColumns()) {
+            System.out.println("error explaining lookup, expected: e table_name use_index_or_not|auto"
+                    + " col_choice_1 ... col_choice_n");
+            System.exit(1);
+        }
+        List<String> values = Arrays.asList(args).subList(2, args.length);
+        AccessPathChoice choice = chooseAccessPath(table, args[1], values, BucketPlanner.plan(table, values));
+        for (String line : choice.describe()) {
+            System.out.println(line);
+        }
+    }
+
+    /*
+     * A migrate, "m", instruction rewrites every row of an existing table in the
+     * given row format, cells or packed (see RowStore), in one transaction. The
+     * buckets keep pointing at the same row numbers.
+     */
+    public void migrate_table(String argumentString) {
+        String[] args = argumentString.split(" ");
+        if (args.length != 2 || !RowStore.isFormat(args[1])) {
+            System.out.println("error migrating table, expected: m table_name cells|indexed|packed");
+            System.exit(1);
+        }
+        // the pending copy of a compaction is in the format the table had when it started
+        finishCompaction();
+        TableInfo table = lookupPHTable(args[0]);
+        try {
+            storage.begin();
+            storage.convertRows(table, args[1]);
+            storage.commit();
+            System.out.println("MIGRATED " + table.getName() + " to " + args[1]);
+        } catch (SQLException e) {
+            System.out.println("error migrating table: " + argumentString);
+            e.printStackTrace();
+            rollback();
+        }
+    }
+
+    /*
+     * An export, "x", instruction writes the live rows of a table and its buckets to
+     * a Snapshot file:
+     *   x table_name snapshot_file
+     */
+    public void export_table(String argumentString) {
+        String[] args = argumentString.split(" ");
+        if (args.length != 2) {
+            System.out.println("error exporting table, expected: x table_name snapshot_file");
+            System.exit(1);
+        }
+        TableInfo table = lookupPHTable(args[0]);
+        try {
+            int rows = Snapshot.write(storage, table, Paths.get(args[1]));
+            System.out.println("EXPORTED " + table.getName() + ", " + rows + " rows to " + args[1]);
+        } catch (SQLException | IOException e) {
+            System.out.println("error exporting table: " + argumentString);
+            e.printStackTrace();
+        }
+    }
 
-                Set<Integer> intersectionRows = new HashSet<>(validRowsPerColumn.get(0));
-                for (int i = 1; i < validRowsPerColumn.size(); i++) {
-                    intersectionRows.retainAll(validRowsPerColumn.get(i));
+    /*
+     * An import, "b", instruction creates a table from a Snapshot file, with the
+     * column ranges, hash function and row format it was exported with:
+     *   b table_name snapshot_file
+     * The records and buckets are copied into the storage engine as they are, in
+     * batches and inside one transaction, without hashing the rows, and an index the
+     * storage engine would otherwise update row by row is built once at the end (see
+     * StorageEngine.beginBulkLoad). The records are only decoded for the column
+     * statistics of the table, saved in the same transaction.
+     */
+    public void import_table(String argumentString) {
+        String[] args = argumentString.split(" ");
+        if (args.length != 2) {
+            System.out.println("error importing table, expected: b table_name snapshot_file");
+            System.exit(1);
+        }
+        String tableName = args[0];
+        if (catalog.lookup(tableName) != null) {
+            System.out.println("error importing table: " + tableName + ", table already exists");
+            System.exit(1);
+        }
+        try (Snapshot.Reader snapshot = new Snapshot.Reader(Paths.get(args[1]))) {
+            PartitionHashFunction hashFunction = PartitionHashFunction.forName(snapshot.getHashFunction());
+            checkColumnRanges(tableName, snapshot.getColumnRanges());
+            int rows = 0;
+            TableInfo table;
+            ColumnStatistics statistics;
+            try {
+                storage.begin();
+                table = storage.createTable(tableName, snapshot.getColumnRanges(), hashFunction,
+                        snapshot.getRowFormat());
+                statistics = new ColumnStatistics(table);
+                storage.beginBulkLoad(table, snapshot.getRows());
+                byte[] record;
+                while ((record = snapshot.nextRecord()) != null) {
+                    // the snapshot numbers its rows from 1 like a new table does
+                    storage.addEncodedRow(table, catalog.allocateRow(table), record);
+                    statistics.add(RecordCodec.decode(record, table.getNumColumns()));
+                    if (++rows % Snapshot.LOAD_BATCH == 0) {
+                        storage.flushRows();
+                    }
                 }
-                // System.out.println("printing the intersection of the sets of valid rows for
-                // each column");
-                // for (Integer elem: intersectionRows){
-                // System.out.print(elem.toString() + ", ");
-                // }
-                // System.out.println();
-                // at this point intersection rows holds all the valid rows
-                queryAndPrint(lookupTarget, intersectionRows);
+                storage.flushRows();
+                Map<Long, List<Integer>> rowsByBucket;
+                while (!(rowsByBucket = snapshot.nextBuckets(Snapshot.LOAD_BATCH)).isEmpty()) {
+                    storage.loadBuckets(table, rowsByBucket);
+                }
+                storage.endBulkLoad(table);
+                catalog.flushLastRows();
+                storage.saveStatistics(table, statistics);
+                storage.commit();
+            } catch (SQLException | IOException e) {
+                System.out.println("error importing table: " + argumentString);
+                e.printStackTrace();
+                rollback();
+                return;
+            }
+            catalog.register(table);
+            statisticsByTable.put(tableName, statistics);
+            System.out.println("IMPORTED " + tableName + ", " + rows + " rows from " + args[1]);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("error importing table: " + argumentString + ", " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+     * A join, "j", instruction prints every pair of rows of two tables whose join
+     * columns are equal, the values of the left row followed by those of the right:
+     *   j left_table right_table left_col=right_col ... left_col=right_col
+     * with 1 indexed column numbers. See openJoin.
+     */
+    public void join_tables(String argumentString) {
+        String[] args = argumentString.split(" ");
+        if (args.length < 3) {
+            System.out.println("error joining tables, expected: j left_table right_table left_col=right_col ...");
+            System.exit(1);
+        }
+        TableInfo left = lookupPHTable(args[0]);
+        TableInfo right = lookupPHTable(args[1]);
+        int[] leftColumns = new int[args.length - 2];
+        int[] rightColumns = new int[args.length - 2];
+        for (int k = 0; k < leftColumns.length; k++) {
+            String[] pair = args[k + 2].split("=");
+            try {
+                leftColumns[k] = Integer.parseInt(pair[0]);
+                rightColumns[k] = Integer.parseInt(pair[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                leftColumns[k] = 0;
+            }
+            if (pair.length != 2 || leftColumns[k] < 1 || leftColumns[k] > left.getNumColumns()
+                    || rightColumns[k] < 1 || rightColumns[k] > right.getNumColumns()) {
+                System.out.println("error joining tables, not a pair of columns of " + left.getName() + " and "
+                        + right.getName() + ": " + args[k + 2]);
+                System.exit(1);
+            }
+        }
+        try (RecordCursor rows = openJoin(left.getName(), right.getName(), leftColumns, rightColumns)) {
+            List<String> record;
+            while ((record = rows.next()) != null) {
+                System.out.println(formatRecord(record));
             }
         } catch (SQLException e) {
-            System.out.println("error looking up information: " + argumentString);
+            System.out.println("error joining tables: " + argumentString);
             e.printStackTrace();
         }
+    }
 
+    /*
+     * A stats, "s", instruction prints what the instructions on a table have cost
+     * so far: for every instruction type the number run and their latencies, then
+     * the SQL statements and rows the storage went through for them and how many
+     * of the rows read through the bucket index were false positives. Inserts that
+     * were batched are timed as one "batch" per flush.
+     */
+    public void print_stats(String argumentString) {
+        String tableName = argumentString.split(" ")[0];
+        lookupPHTable(tableName);
+        TableStats table = stats.getTable(tableName);
+        System.out.println("STATS " + tableName);
+        for (String line : (table != null ? table : new TableStats(null)).describe()) {
+            System.out.println(line);
+        }
     }
 
-    // ========== helper functions for create table ========== //
+    /*
+     * An advise, "a", instruction reads the table to estimate how many distinct
+     * values each column has and, from the columns the lookups so far have bound,
+     * recommends new COL_RANGE values (see WorkloadAdvisor). With apply, a
+     * recommendation that lowers the expected cost by at least RangeAdvice.MIN_SAVING
+     * is also carried out by repartitioning the table, like an "r" instruction.
+     */
+    public void advise_table(String argumentString) {
+        String[] args = argumentString.split(" ");
+        if (args.length > 2 || (args.length == 2 && !args[1].equals("apply"))) {
+            System.out.println("error advising table, expected: a table_name [apply]");
+            System.exit(1);
+        }
+        TableInfo table = lookupPHTable(args[0]);
+        RangeAdvice advice = null;
+        try (RecordCursor rows = storage.openScan(table)) {
+            advice = advisor.advise(table, rows);
+        } catch (SQLException e) {
+            System.out.println("error advising table: " + argumentString);
+            e.printStackTrace();
+            return;
+        }
+        for (String line : advice.describe()) {
+            System.out.println(line);
+        }
+        if (args.length == 2 && advice.isChange()) {
+            startRepartition(table, advice.getRecommended());
+        } else if (args.length == 2) {
+            System.out.println("KEPT " + table.getName() + " at " + RangeAdvice.join(table.getColumnRanges()));
+        }
+    }
 
-    private int insertTableData(String tableName, int numColumns) throws SQLException {
-        int newID = -1;
-        String sqlInsertTable = "INSERT INTO PH_TABLE (NAME, NUM_COLUMNS, LAST_ROW) VALUES (?, ?, ?)";
-        PreparedStatement insertStatementTable = connection.prepareStatement(sqlInsertTable,
-                PreparedStatement.RETURN_GENERATED_KEYS);
-        insertStatementTable.setString(1, tableName);
-        insertStatementTable.setInt(2, numColumns);
-        insertStatementTable.setInt(3, 1);
-        insertStatementTable.executeUpdate();
-        ResultSet keys = insertStatementTable.getGeneratedKeys();
-        if (keys.next()) {
-            newID = keys.getInt(1);
-        } else {
-            System.out.println("No auto-generated keys returned.");
+    /*
+     * A repartition, "r", instruction moves a table to new column ranges:
+     *   r table_name col_1_hash_range col_2_hash_range ... col_n_hash_range
+     * The buckets are rebuilt under the new ranges one slice of rows at a time in
+     * between the instructions that follow (see Repartition), and lookups return
+     * every matching row all along. The table switches to the new ranges with the
+     * last slice, or at the latest when the instructions run out. Only one table is
+     * repartitioned at a time, a second "r" first finishes the one that is running.
+     */
+    public void repartition_table(String argumentString) {
+        String[] args = argumentString.split(" ");
+        TableInfo table = lookupPHTable(args[0]);
+        if (args.length - 1 != table.getNumColumns()) {
+            System.out.println("error repartitioning table, expected one range per column: " + argumentString);
             System.exit(1);
         }
-        insertStatementTable.close();
-        return newID;
+        List<Integer> columnRanges = List.of(Arrays.copyOfRange(args, 1, args.length))
+                .stream().map(Integer::parseInt)
+                .collect(Collectors.toList());
+        checkColumnRanges(table.getName(), columnRanges);
+        startRepartition(table, columnRanges);
     }
 
-    private void insertColumnRanges(String tableName, List<Integer> columnRanges, int tableID) throws SQLException {
-        String sqlInsertColRange = "INSERT INTO PH_COL_RANGES (TABLE_ID, COL_NUM, COL_RANGE) VALUES (?, ?, ?)";
-        PreparedStatement insertStatementColRanges = connection.prepareStatement(sqlInsertColRange);
-        int runningColumnRangeSum = 0;
+    private void startRepartition(TableInfo table, List<Integer> columnRanges) {
+        finishRepartition();
+        // a compaction holds the pending buckets until it is done
+        finishCompaction();
+        // finishing may have reloaded the catalog
+        table = lookupPHTable(table.getName());
+        if (table.getShards() > 1) {
+            System.out.println("error repartitioning table: " + table.getName()
+                    + ", the rows of a sharded table are placed by its column ranges");
+            return;
+        }
+        if (columnRanges.equals(table.getColumnRanges())) {
+            System.out.println("KEPT " + table.getName() + " at " + RangeAdvice.join(columnRanges));
+            return;
+        }
+        Repartition started = new Repartition(table, columnRanges);
+        try {
+            storage.createPendingBuckets(table, started.getLayout());
+        } catch (SQLException e) {
+            System.out.println("error repartitioning table: " + table.getName());
+            e.printStackTrace();
+            return;
+        }
+        repartition = started;
+        instructionsSinceSlice = 0;
+        System.out.println("REPARTITIONING " + table.getName() + " to " + RangeAdvice.join(columnRanges));
+    }
+
+    // runs the repartition in progress, if any, to its end
+    private void finishRepartition() {
+        while (repartition != null) {
+            migrateSlice();
+        }
+    }
+
+    // hashes the next slice of the running repartition, and switches the table over after the last one
+    private void migrateSlice() {
+        Repartition running = repartition;
+        timed("repartition", running.getTable().getName(), () -> {
+            TableInfo table = running.getTable();
+            try {
+                storage.begin();
+                running.migrateSlice(storage);
+                storage.commit();
+                running.publishSlice();
+                if (!running.isDone()) {
+                    return;
+                }
+                storage.begin();
+                storage.switchToPendingBuckets(table, running.getLayout());
+                storage.commit();
+            } catch (SQLException e) {
+                System.out.println("error repartitioning table: " + table.getName());
+                e.printStackTrace();
+                rollback();
+                abandonRepartition();
+                return;
+            }
+            repartition = null;
+            // the lookups recorded so far were measured against the old layout
+            advisor.reset(table.getName());
+            System.out.println("REPARTITIONED " + table.getName() + " to "
+                    + RangeAdvice.join(table.getColumnRanges()));
+        });
+    }
+
+    // the table stays at its old ranges
+    private void abandonRepartition() {
+        Repartition running = repartition;
+        repartition = null;
+        try {
+            storage.dropPendingBuckets(running.getTable());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // design choice java array list is zero indexed but sql table is one indexed
+    /*
+     * Starts copying the live rows of the table into a pending copy, see Compaction.
+     * A slice is copied every compactionInterval instructions, at a point where no
+     * lookup is in flight, and the copy replaces the table after the last one, or at
+     * the latest when the instructions run out.
+     */
+    private void startCompaction(TableInfo table) {
+        Compaction started = new Compaction(table);
+        try {
+            // compacted under its own ranges
+            storage.createPendingBuckets(table, table);
+            storage.createPendingRows(table);
+        } catch (SQLException e) {
+            System.out.println("error compacting table: " + table.getName());
+            e.printStackTrace();
+            return;
+        }
+        compaction = started;
+        instructionsSinceCompaction = 0;
+        System.out.println("COMPACTING " + table.getName() + ", " + table.getDeletedRows() + " of "
+                + (table.getLastRow() - 1) + " rows deleted");
+    }
+
+    // runs the compaction in progress, if any, to its end
+    private void finishCompaction() {
+        while (compaction != null) {
+            compactSlice();
+        }
+    }
+
+    // copies the next slice of the running compaction, and swaps the copy in after the last one
+    private void compactSlice() {
+        Compaction running = compaction;
+        timed("compaction", running.getTable().getName(), () -> {
+            TableInfo table = running.getTable();
+            int droppedRows;
+            try {
+                storage.begin();
+                running.copySlice(storage);
+                storage.commit();
+                running.publishSlice();
+                if (!running.isDone()) {
+                    return;
+                }
+                droppedRows = table.getDeletedRows() - running.getDeletedRows();
+                storage.begin();
+                storage.switchToPendingBuckets(table, table);
+                storage.switchToPendingRows(table, running.getLastRow(), running.getDeletedRows());
+                // the statistics of the copy, whose sketches never saw the dropped rows
+                storage.saveStatistics(table, running.getStatistics());
+                storage.commit();
+            } catch (SQLException e) {
+                System.out.println("error compacting table: " + table.getName());
+                e.printStackTrace();
+                rollback();
+                abandonCompaction();
+                return;
+            }
+            compaction = null;
+            statisticsByTable.put(table.getName(), running.getStatistics());
+            unsavedStatistics.remove(table.getName());
+            // cached row numbers are stale, and the buckets of the deleted rows are empty now
+            invalidateLookups(table);
+            occupancyByTable.remove(table.getName());
+            System.out.println("COMPACTED " + table.getName() + ", dropped " + droppedRows + " deleted rows");
+        });
+    }
+
+    // the table keeps its deleted rows
+    private void abandonCompaction() {
+        Compaction running = compaction;
+        compaction = null;
+        try {
+            storage.dropPendingBuckets(running.getTable());
+            storage.dropPendingRows(running.getTable());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // rolls back the open transaction and reloads the catalog, whose in memory
+    // LAST_ROW counters and row formats may have moved past the rolled back writes.
+    // The column statistics in memory may count the rolled back rows too, they are
+    // read again from the storage engine when next needed
+    private void rollback() {
+        statisticsByTable.clear();
+        unsavedStatistics.clear();
+        try {
+            storage.rollback();
+            catalog.load();
+            if (repartition != null) {
+                repartition.rebind(catalog.lookup(repartition.getTable().getName()));
+            }
+            if (compaction != null) {
+                compaction.rebind(catalog.lookup(compaction.getTable().getName()));
+            }
+        } catch (SQLException rollbackError) {
+            rollbackError.printStackTrace();
+        }
+    }
+
+    // ========== helper functions for create table ========== //
+
+    private Map<String, String> parseTableOptions(String tableName, String[] optionArgs) {
+        Map<String, String> options = new HashMap<>();
+        for (String option : optionArgs) {
+            String[] keyValue = option.split("=", 2);
+            if (!keyValue[0].equals("hash") && !keyValue[0].equals("rows") && !keyValue[0].equals("shards")) {
+                System.out.println("error creating table: " + tableName + ", unknown option: " + option);
+                System.exit(1);
+            }
+            options.put(keyValue[0], keyValue[1]);
+        }
+        return options;
+    }
+
+    private void checkColumnRanges(String tableName, List<Integer> columnRanges) {
+        int runningColumnRangeSum = 0;
         for (int i = 0; i < columnRanges.size(); i++) {
             if (columnRanges.get(i).intValue() < 1) {
                 System.out.println("error creating table: " + tableName + ", non-positive hash range");
@@ -313,216 +1612,150 @@ public class Database {
                 System.out.println("Sum of the bits for the columns exceeds 64 for table: " + tableName);
                 System.exit(1);
             }
-            insertStatementColRanges.setInt(1, tableID);
-            insertStatementColRanges.setInt(2, i + 1);
-            insertStatementColRanges.setInt(3, columnRanges.get(i).intValue());
-            insertStatementColRanges.executeUpdate();
         }
-        // insertStatementTable.close();
-        insertStatementColRanges.close();
-
     }
 
     // ========== helper functions for insert in table ========== //
 
-    private TableInfo lookupPHTable(String name) throws SQLException {
-        String sql = "SELECT TABLE_ID, NUM_COLUMNS, LAST_ROW FROM PH_TABLE WHERE NAME = ?";
-        PreparedStatement pStatement = this.connection.prepareStatement(sql);
-        pStatement.setString(1, name);
-        ResultSet result = pStatement.executeQuery();
-        if (!result.next()) {
+    private TableInfo lookupPHTable(String name) {
+        TableInfo table = catalog.lookup(name);
+        if (table == null) {
             System.out.println("Table: " + name + "cannot be inserted because it does not exist in the database");
             System.exit(1);
         }
-        int tableID = result.getInt(1);
-        int numColumns = result.getInt(2);
-        int lastRow = result.getInt(3);
-        pStatement.close();
-        return new TableInfo(name, tableID, numColumns, lastRow);
+        return table;
     }
 
-    private List<Pair<Integer, Integer>> lookupHashInfo(int tableID) throws SQLException {
-        String sqlGetHashInfo = "SELECT COL_NUM, COL_RANGE FROM PH_COL_RANGES WHERE TABLE_ID = ?";
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlGetHashInfo);
-        pStatement.setInt(1, tableID);
-        ResultSet result = pStatement.executeQuery();
-        if (!result.next()) {
-            System.out.println("TableID: " + Integer.toString(tableID) + "not found in col ranges information table");
+    private void insertRow(TableInfo table, int rowNum, List<String> valuesList) throws SQLException {
+        if (valuesList.contains("*")) {
+            System.out.println("error insering a * character");
             System.exit(1);
         }
-        List<Pair<Integer, Integer>> columnNumRangePairs = new ArrayList<>();
-        do {
-            columnNumRangePairs.add(new Pair<Integer, Integer>(result.getInt(1), result.getInt(2)));
-        } while (result.next());
-        pStatement.close();
-        Collections.sort(columnNumRangePairs, Comparator.comparing(Pair::getFirst));
-        return columnNumRangePairs;
-    }
-
-    // design choice: column numbers are 1 indexed
-    private void insertRow(int tableID, int rowNum, List<String> valuesList) throws SQLException {
-        String sqlAddRows = "INSERT INTO PH_TABLE_ROWS (TABLE_ID, ROW_NUM, COL_NUM, VALUE) VALUES (?, ?, ?, ?)";
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlAddRows);
-        pStatement.setInt(1, tableID);
-        pStatement.setInt(2, rowNum);
-        for (int i = 0; i < valuesList.size(); i++) {
-            if (valuesList.get(i).equals("*")) {
-                System.out.println("error insering a * character");
-                System.exit(1);
-            }
-            pStatement.setInt(3, i + 1);
-            pStatement.setString(4, valuesList.get(i));
-            pStatement.executeUpdate();
-        }
-        pStatement.close();
-    }
-
-    private void updateLastRow(int tableID, int previousValue) throws SQLException {
-        String sqlUpdateLastRow = "UPDATE PH_TABLE SET LAST_ROW = ? WHERE TABLE_ID = ?";
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlUpdateLastRow);
-        pStatement.setInt(1, previousValue + 1);
-        pStatement.setInt(2, tableID);
-        pStatement.executeUpdate();
-        pStatement.close();
+        storage.addRow(table, rowNum, valuesList);
+        storage.flushRows();
     }
 
-    private void insertHashBucket(int tableID, int rowNum, List<String> valuesList,
-            List<Integer> columHashRanges) throws SQLException {
-        String sqlAddBucket = "INSERT INTO PH_HASH_BUCKETS (TABLE_ID, HASH_BUCKET, ROW_NUM) VALUES (?, ?, ?)";
-        // System.out.println("calling hash here");
-        long hashValue = Util.partitionedHash(valuesList, columHashRanges);
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlAddBucket);
-        pStatement.setInt(1, tableID);
-        pStatement.setLong(2, hashValue);
-        pStatement.setInt(3, rowNum);
-        pStatement.executeUpdate();
-        pStatement.close();
+    private void insertHashBucket(TableInfo table, int rowNum, long hashValue) throws SQLException {
+        storage.appendBuckets(table, Map.of(hashValue, List.of(rowNum)));
     }
 
     // ========== Helper functions for lookup ========== //
 
-    private Set<Integer> selectValidRows(int tableID, int columnNum, String value) throws SQLException {
-        String sqlSelectRows = "SELECT ROW_NUM FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND COL_NUM = ? AND VALUE = ?";
-        String sqlSelectRowsStar = "SELECT ROW_NUM FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND COL_NUM = ?";
-        Set<Integer> validRows = new HashSet<>();
-        PreparedStatement pStatement;
-
-        if (value.equals("*")) {
-            pStatement = this.connection.prepareStatement(sqlSelectRowsStar);
-            pStatement.setInt(1, tableID);
-            pStatement.setInt(2, columnNum);
-        } else {
-            pStatement = this.connection.prepareStatement(sqlSelectRows);
-            pStatement.setInt(1, tableID);
-            pStatement.setInt(2, columnNum);
-            pStatement.setString(3, value);
-        }
-
-        ResultSet result = pStatement.executeQuery();
-        while (result.next()) {
-            validRows.add(result.getInt(1));
-        }
-        pStatement.close();
-        // System.out.println("Printing the valid rows in the set for column: " + columnNum);
-        // for (Integer elem : validRows) {
-        //     System.out.print(elem.toString() + ", ");
-        // }
-        // System.out.println();
-        return validRows;
-
-    }
-
-    private Set<Integer> selectRowsInBuckets(TableInfo lookupTarget, List<Integer> columnHashRanges,
-            List<String> queryValuesList) throws SQLException {
-        StringBuilder sqlSelectRowsBuilder = new StringBuilder("SELECT ROW_NUM from PH_HASH_BUCKETS WHERE TABLE_ID = ");
-        sqlSelectRowsBuilder.append(Integer.toString(lookupTarget.getID()));
-        for (int i = 0; i < columnHashRanges.size(); i++) {
-            if (queryValuesList.get(i).equals("*")) {
-                continue;
-            }
-            // FLOOR((HASH_BUCKET % 256) / 8) = 30;
-            // design choice column nums are 1 indexed but the list of column hash ranges is
-            // zero indexed
-            // however for the right bound we want to take the sum of all the column ranges
-            // following
-            // the ith column like [i + 1 : end). so i + 1 = columnNum
-            int sumColumnRangesInclusive = columnHashRanges.subList(i, columnHashRanges.size()).stream()
-                    .mapToInt(Integer::intValue).sum();
-            int sumColumnRangesExclusive = columnHashRanges.subList(i + 1, columnHashRanges.size()).stream()
-                    .mapToInt(Integer::intValue).sum();
-
-            int leftBound = (int) Math.pow(2, Double.valueOf(sumColumnRangesInclusive));
-            int rightBound = (int) Math.pow(2, Double.valueOf(sumColumnRangesExclusive));
-            int expectedWordHash = Util.hashOneValue(queryValuesList.get(i), columnHashRanges.get(i));
-            sqlSelectRowsBuilder.append(String.format(" AND FLOOR((HASH_BUCKET %% %d) / %d)  = %d", leftBound,
-                    rightBound, expectedWordHash));
-        }
-        // System.out.println(sqlSelectRowsBuilder.toString());
-        Statement statement = this.connection.createStatement();
-        ResultSet results = statement.executeQuery(sqlSelectRowsBuilder.toString());
-        Set<Integer> validRows = new HashSet<>();
-        while (results.next()) {
-            validRows.add(results.getInt(1));
-        }
-        statement.close();
-        return validRows;
-    }
-
-    private void queryAndPrint(TableInfo lookupTarget, Set<Integer> validRows) throws SQLException {
-        // for each row, query all the columns for that row, then print
-        // remember that columns in the sql databse are 1 indexed
-        // System.out.println("printing the valid rows in query and print");
-        // for (Integer elem: validRows){
-        // System.out.print(elem.toString() + ", ");
-        // }
-        List<Integer> validRowsList = new ArrayList<>(validRows);
-        Collections.sort(validRowsList);
-        String sqlSelectRow = "SELECT COL_NUM, VALUE FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND ROW_NUM = ? ORDER BY COL_NUM ASC";
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlSelectRow);
-        pStatement.setInt(1, lookupTarget.getID());
-        for (int j = 0; j < validRowsList.size(); j++) {
-            pStatement.setInt(2, validRowsList.get(j));
-            ResultSet resultSet = pStatement.executeQuery();
-            while (resultSet.next()) {
-                String value = resultSet.getString(2);
-                System.out.print(value + " ");
-            }
-            System.out.println();
-        }
-        pStatement.close();
-    }
-
-    private void queryValidatePrint(TableInfo lookupTarget, Set<Integer> bucketRows, List<String> valuesList) throws SQLException{
-        List<Integer> bucketRowsList = new ArrayList<>(bucketRows);
-        Collections.sort(bucketRowsList);
-        String sqlSelectRow = "SELECT COL_NUM, VALUE FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND ROW_NUM = ? ORDER BY COL_NUM ASC";
-        PreparedStatement pStatement = this.connection.prepareStatement(sqlSelectRow);
-        pStatement.setInt(1, lookupTarget.getID());
-        for(int j = 0; j < bucketRowsList.size(); j++){
-            pStatement.setInt(2, bucketRowsList.get(j));
-            ResultSet results = pStatement.executeQuery();
-            // read the columns for the row into record
-            List<String> record = new ArrayList<>();
-            while (results.next()) {
-                // sql is 1 indexed
-                String temp = results.getString(2);
-                record.add(temp);
+    // built again when the table was repartitioned or rolled back, or a Bloom filter filled up
+    private BucketOccupancy occupancy(TableInfo table) throws SQLException {
+        BucketOccupancy occupancy = occupancyByTable.get(table.getName());
+        if (occupancy == null || !occupancy.isFor(table) || occupancy.isFull()) {
+            LongStream.Builder buckets = LongStream.builder();
+            storage.forEachBucket(table, buckets);
+            long[] stored = buckets.build().toArray();
+            occupancy = new BucketOccupancy(table, stored.length);
+            for (long bucket : stored) {
+                occupancy.add(bucket);
             }
+            occupancyByTable.put(table.getName(), occupancy);
+        }
+        return occupancy;
+    }
 
-            // not all of the rows hashed to valid buckets satisfy our query requirements, kinda like collisions
-            boolean flag = true;
-            for (int k = 0; k < valuesList.size(); k++){
-                if (!record.get(k).equals(valuesList.get(k)) && !valuesList.get(k).equals("*")) {
-                    flag = false;
+    // cached lookups on the table stop answering, called once its write has committed
+    private void invalidateLookups(TableInfo table) {
+        if (lookupCache != null) {
+            lookupCache.invalidate(table.getName());
+        }
+    }
+
+    // the saved statistics of the table with the rows inserted after they were saved,
+    // or for a table saved without them one scan of its rows, which the next
+    // transaction that saves statistics saves too. A write gets them before its
+    // transaction begins, so neither read sees its rows.
+    private ColumnStatistics statistics(TableInfo table) throws SQLException {
+        ColumnStatistics statistics = statisticsByTable.get(table.getName());
+        if (statistics != null) {
+            return statistics;
+        }
+        statistics = storage.loadStatistics(table);
+        if (statistics == null) {
+            statistics = new ColumnStatistics(table);
+            try (RecordCursor rows = storage.openScan(table)) {
+                List<String> record;
+                while ((record = rows.next()) != null) {
+                    statistics.add(record);
+                }
+            }
+            unsavedStatistics.add(table.getName());
+        } else if (statistics.getLastRow() < table.getLastRow()) {
+            // every delete saves them, so none of these rows is deleted
+            int[] inserted = IntStream.range(statistics.getLastRow(), table.getLastRow()).toArray();
+            try (RecordCursor rows = storage.openRecords(table, inserted)) {
+                List<String> record;
+                while ((record = rows.next()) != null) {
+                    statistics.add(record);
                 }
             }
+        }
+        statisticsByTable.put(table.getName(), statistics);
+        return statistics;
+    }
 
-            if (flag) {
-                System.out.println(String.join(" ", record));
+    // inside the transaction that changed the rows, right before its commit and after
+    // the LAST_ROW of its tables is final
+    private void saveStatistics() throws SQLException {
+        for (String name : unsavedStatistics) {
+            TableInfo table = catalog.lookup(name);
+            ColumnStatistics statistics = statisticsByTable.get(name);
+            if (table != null && statistics != null) {
+                storage.saveStatistics(table, statistics);
             }
         }
+        unsavedStatistics.clear();
+    }
 
+    private void noteRow(TableInfo table, List<String> values) {
+        ColumnStatistics statistics = statisticsByTable.get(table.getName());
+        if (statistics != null) {
+            statistics.add(values);
+            if (table.getLastRow() - statistics.getLastRow() >= UNSAVED_ROWS) {
+                unsavedStatistics.add(table.getName());
+            }
+        }
     }
 
+    // a deleted row stays in the bucket occupancy, which may then answer "maybe" for an empty bucket
+    private void forgetRow(TableInfo table, List<String> values) {
+        ColumnStatistics statistics = statisticsByTable.get(table.getName());
+        if (statistics != null) {
+            statistics.remove(values);
+            unsavedStatistics.add(table.getName());
+        }
+    }
 
+    // a bucket noted before its transaction rolls back only costs a query that finds nothing
+    private void noteBuckets(TableInfo table, Collection<Long> buckets) {
+        BucketOccupancy occupancy = occupancyByTable.get(table.getName());
+        if (occupancy != null && occupancy.isFor(table)) {
+            for (long bucket : buckets) {
+                occupancy.add(bucket);
+            }
+        }
+    }
+
+    // the quoted form of the spec: "ketchup" "relish" "oregano"
+    private static String formatRecord(List<String> record) {
+        StringBuilder line = new StringBuilder();
+        for (String value : record) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+            line.append('"');
+        }
+        return line.toString();
+    }
 }
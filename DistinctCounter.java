@@ -0,0 +1,58 @@
+/*
+ * Estimates the number of distinct values it has been given with a HyperLogLog of
+ * 2^PRECISION registers: about 3% standard error in 1KB, however many values go
+ * through it. Values are hashed with xxhash64 whatever the hash function of the
+ * table, the estimate needs all 64 bits to be well mixed.
+ */
+class DistinctCounter {
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private byte[] registers = new byte[REGISTERS];
+
+    DistinctCounter() {
+    }
+
+    // the registers of encode
+    DistinctCounter(byte[] registers) {
+        if (registers.length != REGISTERS) {
+            throw new IllegalArgumentException("a sketch has " + REGISTERS + " registers, got: " + registers.length);
+        }
+        this.registers = registers.clone();
+    }
+
+    // returns whether a register changed, which gets rarer the more values went through
+    boolean add(String value) {
+        long hash = XxHash64PartitionHash.INSTANCE.hash(value);
+        int register = (int) (hash >>> (64 - PRECISION));
+        // position of the first set bit of the rest, counting from 1
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank <= this.registers[register]) {
+            return false;
+        }
+        this.registers[register] = (byte) rank;
+        return true;
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : this.registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        // linear counting is the better estimate while many registers are still empty
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    byte[] encode() {
+        return this.registers.clone();
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * An equi-join of two PH tables, see Database.openJoin. It returns the record of
+ * the left table followed by the record of the right one for every pair of rows
+ * whose join columns are equal, in no particular order.
+ *
+ * The join is split into partitions that rows with equal join values never cross,
+ * which are joined one at a time: the rows of the smaller table in the partition
+ * go into a hash map by their join values and the rows of the other table in it
+ * are streamed past the map. Only about one partition of the smaller table is held
+ * in memory, BATCH_ROWS rows unless a single partition is larger. The partitions
+ * come from one of two places:
+ *   - buckets: when both tables hash with the same function, equal values have the
+ *     same low min(range) bits in their hash components in both tables, so buckets
+ *     that differ in those bits of the join columns never join. Buckets are grouped
+ *     by them and every partition reads its groups with one bucket plan per table,
+ *     without hashing or writing anything
+ *   - grace: otherwise both tables are read once and their rows written to partition
+ *     files in a temporary directory by the hash of their join values, then the files
+ *     are joined pair by pair. A table of up to BATCH_ROWS rows is one partition,
+ *     which is read straight from the storage engine instead
+ */
+class HashJoin implements RecordCursor {
+    static final int BATCH_ROWS = 1 << 16;
+
+    // the rows of one partition at a time, the build side read before the probe side
+    private interface Partitions {
+        // false once every partition has been joined
+        boolean advance() throws SQLException;
+
+        RecordCursor openBuild() throws SQLException;
+
+        RecordCursor openProbe() throws SQLException;
+
+        void close() throws SQLException;
+    }
+
+    private boolean buildLeft;
+    private int[] buildColumns;
+    private int[] probeColumns;
+    private Partitions partitions;
+
+    // the build rows of the current partition by their join values
+    private Map<List<String>, List<List<String>>> built;
+    private RecordCursor probe;
+    private List<String> probeRecord;
+    private List<List<String>> matches;
+    private int nextMatch;
+
+    // columns are 0 indexed, the k-th left column is joined with the k-th right one
+    HashJoin(StorageEngine storage, TableInfo left, TableInfo right, int[] leftColumns, int[] rightColumns) {
+        this.buildLeft = liveRows(left) <= liveRows(right);
+        TableInfo build = this.buildLeft ? left : right;
+        TableInfo probe = this.buildLeft ? right : left;
+        this.buildColumns = this.buildLeft ? leftColumns : rightColumns;
+        this.probeColumns = this.buildLeft ? rightColumns : leftColumns;
+        boolean sameHash = left.getHashFunction().getName().equals(right.getHashFunction().getName());
+        this.partitions = sameHash
+                ? new BucketPartitions(storage, build, probe, this.buildColumns, this.probeColumns)
+                : new GracePartitions(storage, build, probe, this.buildColumns, this.probeColumns);
+    }
+
+    public List<String> next() throws SQLException {
+        while (true) {
+            if (this.matches != null && this.nextMatch < this.matches.size()) {
+                List<String> match = this.matches.get(this.nextMatch++);
+                return this.buildLeft ? concat(match, this.probeRecord) : concat(this.probeRecord, match);
+            }
+            this.matches = null;
+            if (this.probe != null) {
+                this.probeRecord = this.probe.next();
+                if (this.probeRecord != null) {
+                    this.matches = this.built.get(joinValues(this.probeRecord, this.probeColumns));
+                    this.nextMatch = 0;
+                    continue;
+                }
+                this.probe.close();
+                this.probe = null;
+            }
+            if (!this.partitions.advance()) {
+                return null;
+            }
+            this.built = new HashMap<>();
+            try (RecordCursor records = this.partitions.openBuild()) {
+                List<String> record;
+                while ((record = records.next()) != null) {
+                    this.built.computeIfAbsent(joinValues(record, this.buildColumns), values -> new ArrayList<>())
+                            .add(record);
+                }
+            }
+            this.probe = this.partitions.openProbe();
+        }
+    }
+
+    public void close() throws SQLException {
+        try {
+            if (this.probe != null) {
+                this.probe.close();
+                this.probe = null;
+            }
+        } finally {
+            this.partitions.close();
+        }
+    }
+
+    private static long liveRows(TableInfo table) {
+        return table.getLastRow() - 1 - table.getDeletedRows();
+    }
+
+    private static List<String> joinValues(List<String> record, int[] columns) {
+        List<String> values = new ArrayList<>(columns.length);
+        for (int column : columns) {
+            values.add(record.get(column));
+        }
+        return values;
+    }
+
+    private static List<String> concat(List<String> left, List<String> right) {
+        List<String> joined = new ArrayList<>(left.size() + right.size());
+        joined.addAll(left);
+        joined.addAll(right);
+        return joined;
+    }
+
+    // ========== partitions by bucket ========== //
+
+    private static class BucketPartitions implements Partitions {
+        private StorageEngine storage;
+        private TableInfo build;
+        private TableInfo probe;
+        private int[] buildColumns;
+        private int[] probeColumns;
+        // for every join column pair, the hash bits both tables give equal values
+        private int[] sharedBits;
+
+        // join bits -> the buckets of each table that have them, only the ones both tables have
+        private Iterator<Map.Entry<Long, List<Long>>> buildGroups;
+        private Map<Long, List<Long>> probeGroups;
+        private Map<Long, Integer> buildRowsByBucket = new HashMap<>();
+        // every bucket of each table in unsigned order, so a batch can be read as ranges
+        private long[] buildBuckets;
+        private long[] probeBuckets;
+        private BucketPlan buildPlan;
+        private BucketPlan probePlan;
+
+        BucketPartitions(StorageEngine storage, TableInfo build, TableInfo probe, int[] buildColumns,
+                int[] probeColumns) {
+            this.storage = storage;
+            this.build = build;
+            this.probe = probe;
+            this.buildColumns = buildColumns;
+            this.probeColumns = probeColumns;
+            this.sharedBits = new int[buildColumns.length];
+            for (int k = 0; k < buildColumns.length; k++) {
+                // the masks rather than the ranges, an md5 column of 32 or more bits keeps fewer
+                this.sharedBits[k] = Long.bitCount(build.getBitMask(buildColumns[k])
+                        & probe.getBitMask(probeColumns[k]));
+            }
+        }
+
+        // the low sharedBits of the hash component of every join column, concatenated
+        private long joinBits(long bucket, TableInfo table, int[] columns) {
+            long bits = 0;
+            for (int k = 0; k < columns.length; k++) {
+                long component = (bucket >>> table.getBitOffset(columns[k])) & table.getBitMask(columns[k]);
+                long shared = this.sharedBits[k] >= 64 ? -1L : (1L << this.sharedBits[k]) - 1;
+                bits = (bits << this.sharedBits[k]) | (component & shared);
+            }
+            return bits;
+        }
+
+        private void groupBuckets() throws SQLException {
+            this.storage.forEachBucketRow(this.build, (bucket, row) -> this.buildRowsByBucket.merge(bucket, 1,
+                    Integer::sum));
+            Set<Long> probeBuckets = new HashSet<>();
+            this.storage.forEachBucket(this.probe, probeBuckets::add);
+            this.probeGroups = new HashMap<>();
+            for (long bucket : probeBuckets) {
+                this.probeGroups.computeIfAbsent(joinBits(bucket, this.probe, this.probeColumns),
+                        bits -> new ArrayList<>()).add(bucket);
+            }
+            Map<Long, List<Long>> buildGroups = new TreeMap<>();
+            for (long bucket : this.buildRowsByBucket.keySet()) {
+                long bits = joinBits(bucket, this.build, this.buildColumns);
+                if (this.probeGroups.containsKey(bits)) {
+                    buildGroups.computeIfAbsent(bits, b -> new ArrayList<>()).add(bucket);
+                }
+            }
+            this.buildGroups = buildGroups.entrySet().iterator();
+            this.buildBuckets = sortedBuckets(this.buildRowsByBucket.keySet());
+            this.probeBuckets = sortedBuckets(probeBuckets);
+        }
+
+        private static long[] sortedBuckets(Set<Long> buckets) {
+            return buckets.stream().sorted(Long::compareUnsigned).mapToLong(Long::longValue).toArray();
+        }
+
+        public boolean advance() throws SQLException {
+            if (this.buildGroups == null) {
+                groupBuckets();
+            }
+            Set<Long> buildBatch = new HashSet<>();
+            Set<Long> probeBatch = new HashSet<>();
+            int rows = 0;
+            while (rows < BATCH_ROWS && this.buildGroups.hasNext()) {
+                Map.Entry<Long, List<Long>> group = this.buildGroups.next();
+                for (long bucket : group.getValue()) {
+                    buildBatch.add(bucket);
+                    rows += this.buildRowsByBucket.get(bucket);
+                }
+                probeBatch.addAll(this.probeGroups.get(group.getKey()));
+            }
+            if (buildBatch.isEmpty()) {
+                return false;
+            }
+            this.buildPlan = batchPlan(this.buildBuckets, buildBatch);
+            this.probePlan = batchPlan(this.probeBuckets, probeBatch);
+            return true;
+        }
+
+        /*
+         * Reads the buckets of the batch. Buckets of the batch that follow each other
+         * among the buckets of the table become one range, since no other bucket of
+         * the table lies between them, which is the whole batch when the join columns
+         * lead the hash.
+         */
+        private static BucketPlan batchPlan(long[] tableBuckets, Set<Long> batch) {
+            List<long[]> ranges = new ArrayList<>();
+            long[] range = null;
+            for (long bucket : tableBuckets) {
+                if (!batch.contains(bucket)) {
+                    range = null;
+                } else if (range == null) {
+                    range = new long[] { bucket, bucket };
+                    ranges.add(range);
+                } else {
+                    range[1] = bucket;
+                }
+            }
+            boolean points = ranges.stream().allMatch(r -> r[0] == r[1]);
+            return new BucketPlan(points ? "in-list" : "ranges", ranges, 0, 0);
+        }
+
+        public RecordCursor openBuild() throws SQLException {
+            return this.storage.openBucketRecords(this.build, this.buildPlan);
+        }
+
+        public RecordCursor openProbe() throws SQLException {
+            return this.storage.openBucketRecords(this.probe, this.probePlan);
+        }
+
+        public void close() {
+        }
+    }
+
+    // ========== partitions spilled to files ========== //
+
+    private static class GracePartitions implements Partitions {
+        private StorageEngine storage;
+        private TableInfo build;
+        private TableInfo probe;
+        private int[] buildColumns;
+        private int[] probeColumns;
+        private int numPartitions;
+        private Path dir = null;
+        // the partition advance moved to, -1 before the first
+        private int partition = -1;
+
+        GracePartitions(StorageEngine storage, TableInfo build, TableInfo probe, int[] buildColumns,
+                int[] probeColumns) {
+            this.storage = storage;
+            this.build = build;
+            this.probe = probe;
+            this.buildColumns = buildColumns;
+            this.probeColumns = probeColumns;
+            this.numPartitions = (int) Math.max(1, (liveRows(build) + BATCH_ROWS - 1) / BATCH_ROWS);
+        }
+
+        public boolean advance() throws SQLException {
+            if (this.partition == -1 && this.numPartitions > 1) {
+                try {
+                    this.dir = Files.createTempDirectory("phjoin");
+                    spill(this.build, this.buildColumns, "build");
+                    spill(this.probe, this.probeColumns, "probe");
+                } catch (IOException e) {
+                    throw new SQLException("could not spill the join to disk", e);
+                }
+            }
+            this.partition++;
+            return this.partition < this.numPartitions;
+        }
+
+        private void spill(TableInfo table, int[] columns, String side) throws SQLException, IOException {
+            DataOutputStream[] outs = new DataOutputStream[this.numPartitions];
+            try (RecordCursor records = this.storage.openScan(table)) {
+                for (int p = 0; p < this.numPartitions; p++) {
+                    outs[p] = new DataOutputStream(new BufferedOutputStream(
+                            Files.newOutputStream(partitionFile(side, p)), 1 << 14));
+                }
+                List<String> record;
+                while ((record = records.next()) != null) {
+                    // spread over the partitions by bits the HashMap of a partition does not use much
+                    int hash = joinValues(record, columns).hashCode() * 0x9E3779B9;
+                    byte[] encoded = RecordCodec.encode(record);
+                    DataOutputStream out = outs[Math.floorMod(hash >> 16, this.numPartitions)];
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            } finally {
+                for (DataOutputStream out : outs) {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+            }
+        }
+
+        private Path partitionFile(String side, int partition) {
+            return this.dir.resolve(side + "_" + partition);
+        }
+
+        public RecordCursor openBuild() throws SQLException {
+            return this.dir == null ? this.storage.openScan(this.build)
+                    : openPartition(partitionFile("build", this.partition), this.build.getNumColumns());
+        }
+
+        public RecordCursor openProbe() throws SQLException {
+            return this.dir == null ? this.storage.openScan(this.probe)
+                    : openPartition(partitionFile("probe", this.partition), this.probe.getNumColumns());
+        }
+
+        private static RecordCursor openPartition(Path file, int numColumns) throws SQLException {
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 14));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            return new RecordCursor() {
+                public List<String> next() throws SQLException {
+                    try {
+                        byte[] record = new byte[in.readInt()];
+                        in.readFully(record);
+                        return RecordCodec.decode(record, numColumns);
+                    } catch (EOFException e) {
+                        return null;
+                    } catch (IOException e) {
+                        throw new SQLException(e);
+                    }
+                }
+
+                public void close() throws SQLException {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw new SQLException(e);
+                    }
+                }
+            };
+        }
+
+        public void close() throws SQLException {
+            if (this.dir == null) {
+                return;
+            }
+            try {
+                for (int p = 0; p < this.numPartitions; p++) {
+                    Files.deleteIfExists(partitionFile("build", p));
+                    Files.deleteIfExists(partitionFile("probe", p));
+                }
+                Files.deleteIfExists(this.dir);
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            this.dir = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * One line of an instruction file, split into its command letter and the rest of
+ * the line. prepare does the CPU work of an "i", "l", "d" or "u" instruction that
+ * only needs the catalog (splitting the values, hashing and planning them) so that
+ * it can run on a hashing thread of the InstructionPipeline ahead of the writer. It never prints
+ * or exits: anything that is wrong with the instruction is left for the writer to
+ * report when it gets there, in instruction order.
+ */
+public class Instruction {
+    private String command;
+    private String arguments;
+
+    // filled in by prepare, only valid for the table and column ranges it saw
+    private TableInfo table;
+    private List<Integer> columnRanges;
+    private long hash;
+    private BucketPlan plan;
+
+    public Instruction(String command, String arguments) {
+        this.command = command;
+        this.arguments = arguments;
+    }
+
+    public static Instruction parse(String line) {
+        String[] words = line.split("\\s+", 2);
+        return new Instruction(words[0], words.length > 1 ? words[1] : null);
+    }
+
+    public String getCommand() { return this.command; }
+
+    // like words[1] of the split line, throws when the line has no arguments
+    public String getArguments() {
+        if (this.arguments == null) {
+            throw new ArrayIndexOutOfBoundsException("instruction has no arguments: " + this.command);
+        }
+        return this.arguments;
+    }
+
+    // the first argument, which names the table for every command
+    public String getTableName() {
+        String arguments = getArguments();
+        int space = arguments.indexOf(' ');
+        return space < 0 ? arguments : arguments.substring(0, space);
+    }
+
+    public void prepare(Catalog catalog) {
+        if (this.arguments == null) {
+            return;
+        }
+        try {
+            String[] args = this.arguments.split(" ");
+            TableInfo target = catalog.lookup(args[0]);
+            if (target == null) {
+                return;
+            }
+            List<Integer> ranges = target.getColumnRanges();
+            if (this.command.equals("i")) {
+                List<String> values = Arrays.asList(args).subList(1, args.length);
+                if (values.size() == target.getNumColumns() && !values.contains("*")) {
+                    this.hash = Util.partitionedHash(values, target);
+                    this.columnRanges = ranges;
+                    this.table = target;
+                }
+            } else if (this.command.equals("l") && (Boolean.valueOf(args[1]) || AccessPathChoice.isAuto(args[1]))) {
+                List<String> values = Arrays.asList(args).subList(2, args.length);
+                if (values.size() == target.getNumColumns()) {
+                    this.plan = BucketPlanner.plan(target, values);
+                    this.columnRanges = ranges;
+                    this.table = target;
+                }
+            } else if (this.command.equals("d") || this.command.equals("u")) {
+                // the rows of a delete or an update are found through the buckets
+                int numColumns = target.getNumColumns();
+                if (args.length >= 1 + numColumns) {
+                    this.plan = BucketPlanner.plan(target, Arrays.asList(args).subList(1, 1 + numColumns));
+                    this.columnRanges = ranges;
+                    this.table = target;
+                }
+            }
+            if (target.getColumnRanges() != ranges) {
+                // the writer changed the layout of the table while this was hashing
+                this.table = null;
+            }
+        } catch (RuntimeException e) {
+            // left unprepared, the writer runs into the same problem and reports it
+            this.table = null;
+        }
+    }
+
+    private boolean preparedFor(TableInfo target) {
+        return this.table == target && this.columnRanges == target.getColumnRanges();
+    }
+
+    public long hashFor(TableInfo target, List<String> values) {
+        return preparedFor(target) ? this.hash : Util.partitionedHash(values, target);
+    }
+
+    public BucketPlan planFor(TableInfo target, List<String> values) {
+        return preparedFor(target) && this.plan != null ? this.plan : BucketPlanner.plan(target, values);
+    }
+}
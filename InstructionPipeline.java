@@ -0,0 +1,95 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/*
+ * Runs an instruction file in three stages so that reading, splitting and hashing
+ * overlap with the storage I/O:
+ *
+ *   reader thread    reads and parses the lines, hands each one to the hashers
+ *   hashing threads  Instruction.prepare, the values of "i" and "l" are hashed
+ *   writer           the calling thread, executes the instructions one at a time
+ *
+ * The reader puts the future of every instruction in a queue of pipelineDepth
+ * entries and the writer takes them out in the same order, so instructions are
+ * executed (and print) in file order and at most pipelineDepth of them are in
+ * flight. The writer is the only stage that touches storage or prints, so an
+ * instruction that stops the program still stops it right after everything in
+ * front of it.
+ */
+public class InstructionPipeline {
+    // queued after the last line, or after the reader failed
+    private static final Instruction END = new Instruction("", null);
+
+    private Catalog catalog;
+    private int pipelineDepth;
+    private int hashThreads;
+    private volatile IOException readError = null;
+
+    public InstructionPipeline(Catalog catalog, int pipelineDepth, int hashThreads) {
+        this.catalog = catalog;
+        this.pipelineDepth = pipelineDepth;
+        this.hashThreads = hashThreads;
+    }
+
+    public void run(String instructions, Consumer<Instruction> writer) throws IOException {
+        BlockingQueue<Future<Instruction>> queue = new ArrayBlockingQueue<>(this.pipelineDepth);
+        ExecutorService hashers = Executors.newFixedThreadPool(this.hashThreads, task -> {
+            Thread thread = new Thread(task, "pht-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread reader = new Thread(() -> read(instructions, queue, hashers), "pht-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            while (true) {
+                Instruction instruction = queue.take().get();
+                if (instruction == END) {
+                    break;
+                }
+                writer.accept(instruction);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the next instruction", e);
+        } catch (ExecutionException e) {
+            // prepare catches its own errors, so this is a bug rather than a bad instruction
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            reader.interrupt();
+            hashers.shutdownNow();
+        }
+        if (this.readError != null) {
+            throw this.readError;
+        }
+    }
+
+    private void read(String instructions, BlockingQueue<Future<Instruction>> queue, ExecutorService hashers) {
+        try {
+            try (BufferedReader br = new BufferedReader(new FileReader(instructions))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    Instruction instruction = Instruction.parse(line);
+                    queue.put(hashers.submit(() -> {
+                        instruction.prepare(this.catalog);
+                        return instruction;
+                    }));
+                }
+            } catch (IOException e) {
+                this.readError = e;
+            }
+            queue.put(hashers.submit(() -> END));
+        } catch (InterruptedException e) {
+            // the writer stopped first
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The row numbers that recent lookups matched, keyed by table, use_index_or_not and
+ * pattern, see Database.setLookupCache. A repeated lookup only reads the records of
+ * those rows instead of planning and reading its buckets or columns again.
+ *
+ * Every table has a version that each write to it moves on, and an entry only
+ * answers lookups while its table is at the version the entry was filled at. An
+ * insert therefore costs one counter increment and the stale entries are dropped
+ * when they are next looked at or evicted. A lookup without an entry of its own can
+ * still be answered by an entry of the same table and use_index_or_not whose
+ * pattern has "*" wherever the lookup's has and the same values elsewhere, by
+ * filtering that entry's rows with the lookup's pattern. The smallest such entry is
+ * used, and only when it has no more rows than the buckets of the lookup are
+ * expected to hold, LAST_ROW over 2 to the COL_RANGE bits of its bound columns (or
+ * COVER_MIN_ROWS), since reading the rows of a broad entry can cost more than the
+ * lookup would on its own.
+ *
+ * The entries are evicted least recently used first once their estimated size goes
+ * over maxBytes: ENTRY_BYTES per entry, VALUE_BYTES per pattern value and 4 per row.
+ */
+class LookupCache {
+    private static final long ENTRY_BYTES = 128;
+    private static final long VALUE_BYTES = 48;
+    private static final int COVER_MIN_ROWS = 64;
+
+    // how a lookup reads its records when the cache cannot answer it
+    interface Miss {
+        RecordCursor open() throws SQLException;
+    }
+
+    private static class Entry {
+        private List<Object> key;
+        private String tableName;
+        private boolean useIndex;
+        private List<String> values;
+        private int[] rows;
+        private long version;
+        private long bytes;
+    }
+
+    private long maxBytes;
+    private long bytes = 0;
+    private Stats stats;
+    // in access order, the least recently used first
+    private LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // table -> its entries, for finding broader patterns
+    private Map<String, Set<Entry>> entriesByTable = new HashMap<>();
+    // table -> writes to it so far
+    private Map<String, Long> versions = new HashMap<>();
+
+    LookupCache(long maxBytes, Stats stats) {
+        this.maxBytes = maxBytes;
+        this.stats = stats;
+    }
+
+    // called after every committed write to the table
+    synchronized void invalidate(String tableName) {
+        this.versions.merge(tableName, 1L, Long::sum);
+    }
+
+    /*
+     * The records that match the pattern, from the cache when it can answer it and
+     * from miss otherwise. What miss returns is remembered once it has been read to
+     * the end.
+     */
+    RecordCursor open(LookupPattern pattern, StorageEngine storage, Miss miss) throws SQLException {
+        TableInfo table = pattern.getTable();
+        TableStats tableStats = this.stats.forTable(table.getName());
+        List<Object> key = List.of(table.getName(), pattern.usesIndex(), List.copyOf(pattern.getValues()));
+        long version;
+        Entry cached;
+        boolean filtered = false;
+        synchronized (this) {
+            version = this.versions.getOrDefault(table.getName(), 0L);
+            cached = current(this.entries.get(key), version);
+            if (cached == null) {
+                cached = broadestCover(table.getName(), pattern, version);
+                filtered = cached != null;
+            }
+        }
+        if (cached != null && !filtered) {
+            tableStats.countCacheHit(false);
+            return storage.openRecords(table, cached.rows);
+        }
+        RecordCursor records;
+        if (filtered) {
+            tableStats.countCacheHit(true);
+            records = storage.openRecords(table, cached.rows).filter(pattern::matches);
+        } else {
+            tableStats.countCacheMiss();
+            records = miss.open();
+        }
+        return remembering(records, key, pattern, version);
+    }
+
+    // the entry when it is still at the version of its table, dropping it otherwise
+    private Entry current(Entry entry, long version) {
+        if (entry == null || entry.version == version) {
+            return entry;
+        }
+        remove(entry);
+        return null;
+    }
+
+    // the entry with the fewest rows whose pattern is broader than the lookup's
+    private Entry broadestCover(String tableName, LookupPattern pattern, long version) {
+        Set<Entry> tableEntries = this.entriesByTable.get(tableName);
+        if (tableEntries == null) {
+            return null;
+        }
+        long maxRows = Math.max(COVER_MIN_ROWS, expectedBucketRows(pattern));
+        Entry best = null;
+        List<Entry> stale = new ArrayList<>();
+        for (Entry entry : tableEntries) {
+            if (entry.version != version) {
+                stale.add(entry);
+            } else if (entry.useIndex == pattern.usesIndex() && entry.rows.length <= maxRows
+                    && covers(entry.values, pattern.getValues())
+                    && (best == null || entry.rows.length < best.rows.length)) {
+                best = entry;
+            }
+        }
+        for (Entry entry : stale) {
+            remove(entry);
+        }
+        if (best != null) {
+            // counts as a use for the eviction order
+            this.entries.get(best.key);
+        }
+        return best;
+    }
+
+    private static long expectedBucketRows(LookupPattern pattern) {
+        TableInfo table = pattern.getTable();
+        List<Integer> columnRanges = table.getColumnRanges();
+        int boundBits = 0;
+        for (int k = 0; k < columnRanges.size(); k++) {
+            if (!pattern.getValues().get(k).equals("*")) {
+                boundBits += columnRanges.get(k);
+            }
+        }
+        return boundBits >= 63 ? 0 : table.getLastRow() >> boundBits;
+    }
+
+    private static boolean covers(List<String> broader, List<String> values) {
+        for (int k = 0; k < values.size(); k++) {
+            if (!broader.get(k).equals("*") && !broader.get(k).equals(values.get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // passes the records through and keeps their row numbers, stored once the last one was read
+    private RecordCursor remembering(RecordCursor records, List<Object> key, LookupPattern pattern, long version) {
+        long maxRows = (this.maxBytes - ENTRY_BYTES - VALUE_BYTES * pattern.getValues().size()) / 4;
+        return new RecordCursor() {
+            private int[] rows = new int[16];
+            private int numRows = 0;
+            // false once a row number is unknown or there are too many rows to keep
+            private boolean keeping = maxRows >= 0;
+
+            public List<String> next() throws SQLException {
+                List<String> record = records.next();
+                if (!this.keeping) {
+                    return record;
+                }
+                if (record == null) {
+                    this.keeping = false;
+                    int[] sorted = Arrays.copyOf(this.rows, this.numRows);
+                    Arrays.sort(sorted);
+                    put(key, pattern, sorted, version);
+                    return null;
+                }
+                int row = records.getRowNum();
+                if (row < 0 || this.numRows >= maxRows) {
+                    this.keeping = false;
+                    this.rows = null;
+                    return record;
+                }
+                if (this.numRows == this.rows.length) {
+                    this.rows = Arrays.copyOf(this.rows, 2 * this.rows.length);
+                }
+                this.rows[this.numRows++] = row;
+                return record;
+            }
+
+            public int getRowNum() {
+                return records.getRowNum();
+            }
+
+            public void close() throws SQLException {
+                records.close();
+            }
+        };
+    }
+
+    private synchronized void put(List<Object> key, LookupPattern pattern, int[] rows, long version) {
+        String tableName = pattern.getTable().getName();
+        // a write since the lookup started would make the rows stale already
+        if (this.versions.getOrDefault(tableName, 0L) != version) {
+            return;
+        }
+        Entry replaced = this.entries.get(key);
+        if (replaced != null) {
+            remove(replaced);
+        }
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.tableName = tableName;
+        entry.useIndex = pattern.usesIndex();
+        entry.values = List.copyOf(pattern.getValues());
+        entry.rows = rows;
+        entry.version = version;
+        entry.bytes = ENTRY_BYTES + VALUE_BYTES * entry.values.size() + 4L * rows.length;
+        this.entries.put(key, entry);
+        this.entriesByTable.computeIfAbsent(tableName, t -> new LinkedHashSet<>()).add(entry);
+        this.bytes += entry.bytes;
+        Iterator<Entry> leastRecent = this.entries.values().iterator();
+        while (this.bytes > this.maxBytes && leastRecent.hasNext()) {
+            Entry evicted = leastRecent.next();
+            leastRecent.remove();
+            forget(evicted);
+            this.stats.forTable(evicted.tableName).countCacheEviction();
+        }
+    }
+
+    private void remove(Entry entry) {
+        this.entries.remove(entry.key);
+        forget(entry);
+    }
+
+    // drops everything but the entry in entries
+    private void forget(Entry entry) {
+        Set<Entry> tableEntries = this.entriesByTable.get(entry.tableName);
+        tableEntries.remove(entry);
+        if (tableEntries.isEmpty()) {
+            this.entriesByTable.remove(entry.tableName);
+        }
+        this.bytes -= entry.bytes;
+    }
+}
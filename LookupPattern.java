@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A lookup checked against the catalog, see Database.prepareLookup: the table, the
+ * value or "*" for every column and, when the partitioned hash is used, the bucket
+ * plan of the pattern under the column ranges the table had then.
+ *
+ * A column choice can also be an IN list {a,b,c}, which matches any of its values.
+ */
+public class LookupPattern {
+    private TableInfo table;
+    private boolean useIndex;
+    private List<String> values;
+    private BucketPlan plan;
+    private List<Integer> columnRanges;
+    // the values of every IN list, null for the other columns
+    private List<Set<String>> inLists = new ArrayList<>();
+
+    public LookupPattern(TableInfo table, boolean useIndex, List<String> values, BucketPlan plan) {
+        this.table = table;
+        this.useIndex = useIndex;
+        this.values = values;
+        this.plan = plan;
+        this.columnRanges = table.getColumnRanges();
+        for (String value : values) {
+            this.inLists.add(isInList(value) ? new HashSet<>(choices(value)) : null);
+        }
+    }
+
+    public static boolean isInList(String value) {
+        return value.length() > 2 && value.startsWith("{") && value.endsWith("}");
+    }
+
+    // the distinct values of an IN list in the order given, any other choice by itself
+    public static List<String> choices(String value) {
+        if (!isInList(value)) {
+            return List.of(value);
+        }
+        return new ArrayList<>(new LinkedHashSet<>(Arrays.asList(value.substring(1, value.length() - 1).split(","))));
+    }
+
+    public TableInfo getTable() { return this.table; }
+    public boolean usesIndex() { return this.useIndex; }
+    public List<String> getValues() { return this.values; }
+    public BucketPlan getPlan() { return this.plan; }
+
+    // the plan, made again when the table has been repartitioned since
+    public BucketPlan planFor(TableInfo table) {
+        return this.columnRanges == table.getColumnRanges() ? this.plan : BucketPlanner.plan(table, this.values);
+    }
+
+    public boolean matches(List<String> record) {
+        for (int k = 0; k < this.values.size(); k++) {
+            Set<String> inList = this.inLists.get(k);
+            if (inList != null) {
+                if (!inList.contains(record.get(k))) {
+                    return false;
+                }
+            } else if (!record.get(k).equals(this.values.get(k)) && !this.values.get(k).equals("*")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * One set of bucket files of a MappedTable, laid out for a fixed number of hash bits:
+ *
+ *   <prefix>.dir    one slot per value of the top DIR_BITS bits of the hash,
+ *                   holding the offset + 1 of the first page of the slot
+ *   <prefix>.pages  bucket pages [long next page offset + 1][int count] followed
+ *                   by PAGE_ENTRIES (long hash, int row) entries
+ *
+ * A slot covers every bucket that shares its top bits, so a lookup of a bucket
+ * range only walks the slots the range covers and filters their entries. When the
+ * first page of a slot is full a new page is put in front of it.
+ */
+class MappedBuckets {
+    static final int MAX_DIR_BITS = 16;
+    private static final int PAGE_ENTRIES = 32;
+    private static final int ENTRY_SIZE = 12;
+    private static final int PAGE_SIZE = 12 + PAGE_ENTRIES * ENTRY_SIZE;
+
+    private Path directoryPath;
+    private Path pagesPath;
+    private int totalBits;
+    private int dirBits;
+    private long tableMask;
+    private MappedFile directory;
+    private MappedFile pages;
+
+    MappedBuckets(Path dir, String prefix, int totalBits) throws IOException {
+        this.directoryPath = dir.resolve(prefix + ".dir");
+        this.pagesPath = dir.resolve(prefix + ".pages");
+        this.totalBits = totalBits;
+        this.dirBits = Math.min(totalBits, MAX_DIR_BITS);
+        this.tableMask = totalBits >= 64 ? -1L : (1L << totalBits) - 1;
+        this.directory = new MappedFile(this.directoryPath);
+        this.directory.ensureCapacity(MappedFile.HEADER + 8L * (1 << this.dirBits));
+        this.pages = new MappedFile(this.pagesPath);
+    }
+
+    static void deleteFiles(Path dir, String prefix) throws IOException {
+        Files.deleteIfExists(dir.resolve(prefix + ".dir"));
+        Files.deleteIfExists(dir.resolve(prefix + ".pages"));
+    }
+
+    private long slotOf(long hash) {
+        return hash >>> (this.totalBits - this.dirBits);
+    }
+
+    private long slotPosition(long slot) {
+        return MappedFile.HEADER + 8 * slot;
+    }
+
+    void append(Map<Long, List<Integer>> rowsByBucket) throws IOException {
+        for (Map.Entry<Long, List<Integer>> bucket : rowsByBucket.entrySet()) {
+            long hash = bucket.getKey();
+            long slotPosition = slotPosition(slotOf(hash));
+            for (int row : bucket.getValue()) {
+                long page = this.directory.getLong(slotPosition) - 1;
+                int count = page < 0 ? PAGE_ENTRIES : this.pages.getInt(page + 8);
+                if (count == PAGE_ENTRIES) {
+                    long newPage = this.pages.append(PAGE_SIZE);
+                    this.pages.putLong(newPage, page + 1);
+                    this.directory.putLong(slotPosition, newPage + 1);
+                    page = newPage;
+                    count = 0;
+                }
+                long entry = page + 12 + (long) count * ENTRY_SIZE;
+                this.pages.putLong(entry, hash);
+                this.pages.putInt(entry + 8, row);
+                this.pages.putInt(page + 8, count + 1);
+            }
+        }
+    }
+
+    // drops the entries of rows from lastRow on, see MappedTable.recover
+    void dropRowsFrom(int lastRow) throws IOException {
+        long slots = 1L << this.dirBits;
+        for (long slot = 0; slot < slots; slot++) {
+            for (long page = this.directory.getLong(slotPosition(slot)) - 1; page >= 0;
+                    page = this.pages.getLong(page) - 1) {
+                int count = this.pages.getInt(page + 8);
+                int kept = 0;
+                for (int i = 0; i < count; i++) {
+                    long entry = page + 12 + (long) i * ENTRY_SIZE;
+                    int row = this.pages.getInt(entry + 8);
+                    if (row < lastRow) {
+                        long keptEntry = page + 12 + (long) kept++ * ENTRY_SIZE;
+                        this.pages.putLong(keptEntry, this.pages.getLong(entry));
+                        this.pages.putInt(keptEntry + 8, row);
+                    }
+                }
+                this.pages.putInt(page + 8, kept);
+            }
+        }
+    }
+
+    void forEachBucketRow(StorageEngine.BucketRowConsumer consumer) {
+        long slots = 1L << this.dirBits;
+        long entries = 0;
+        for (long slot = 0; slot < slots; slot++) {
+            for (long page = this.directory.getLong(slotPosition(slot)) - 1; page >= 0;
+                    page = this.pages.getLong(page) - 1) {
+                int count = this.pages.getInt(page + 8);
+                for (int i = 0; i < count; i++) {
+                    long entry = page + 12 + (long) i * ENTRY_SIZE;
+                    consumer.accept(this.pages.getLong(entry), this.pages.getInt(entry + 8));
+                }
+                entries += count;
+            }
+        }
+        Stats.current().countRowsStepped(entries);
+    }
+
+    /*
+     * The rows of the entries of every slot the plan covers that fall in one of its
+     * ranges and match its residual. The slots are walked lazily, one page at a time.
+     */
+    RowIdCursor openRows(BucketPlan plan) {
+        // a scan is a single range over every bucket
+        List<long[]> ranges = plan.isScan() ? List.of(new long[] { 0, this.tableMask }) : plan.getRanges();
+        long residualMask = plan.getResidualMask();
+        long residualValue = plan.getResidualValue();
+        return new RowIdCursor() {
+            private int range = -1;
+            private long slot = 0;
+            private long lastSlot = -1;
+            private long page = -1;
+            private int entry = 0;
+            private TableStats stats = Stats.current();
+
+            public int next() {
+                while (true) {
+                    if (this.page >= 0) {
+                        int count = pages.getInt(this.page + 8);
+                        long[] bounds = ranges.get(this.range);
+                        while (this.entry < count) {
+                            this.stats.countRowsStepped(1);
+                            long position = this.page + 12 + (long) this.entry++ * ENTRY_SIZE;
+                            long hash = pages.getLong(position);
+                            if (Long.compareUnsigned(hash, bounds[0]) >= 0 && Long.compareUnsigned(hash, bounds[1]) <= 0
+                                    && (hash & residualMask) == residualValue) {
+                                return pages.getInt(position + 8);
+                            }
+                        }
+                        this.page = pages.getLong(this.page) - 1;
+                        this.entry = 0;
+                    } else if (this.range >= 0 && Long.compareUnsigned(this.slot, this.lastSlot) < 0) {
+                        this.slot++;
+                        this.page = directory.getLong(slotPosition(this.slot)) - 1;
+                    } else if (this.range + 1 < ranges.size()) {
+                        long[] bounds = ranges.get(++this.range);
+                        this.slot = slotOf(bounds[0]);
+                        this.lastSlot = slotOf(bounds[1]);
+                        this.page = directory.getLong(slotPosition(this.slot)) - 1;
+                    } else {
+                        return -1;
+                    }
+                }
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    void force() {
+        this.directory.force();
+        this.pages.force();
+    }
+
+    void close() throws IOException {
+        this.directory.close();
+        this.pages.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.directoryPath);
+        Files.deleteIfExists(this.pagesPath);
+    }
+}
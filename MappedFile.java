@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A file read and written through a MappedByteBuffer. The first 8 bytes hold the
+ * number of bytes in use (header included), so append only has to bump it. The
+ * mapping is doubled whenever a write goes past its end, which also grows the file.
+ * Nothing is durable until force is called.
+ */
+class MappedFile {
+    static final int HEADER = 8;
+    private static final long INITIAL_CAPACITY = 64 * 1024;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long capacity;
+    private boolean dirty = false;
+
+    MappedFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        map(Math.max(INITIAL_CAPACITY, this.channel.size()));
+        if (getUsed() < HEADER) {
+            setUsed(HEADER);
+        }
+    }
+
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("mapped file would grow past 2GB");
+        }
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = size;
+    }
+
+    void ensureCapacity(long size) throws IOException {
+        if (size <= this.capacity) {
+            return;
+        }
+        long newCapacity = this.capacity;
+        while (newCapacity < size) {
+            newCapacity *= 2;
+        }
+        map(newCapacity);
+    }
+
+    long getUsed() { return this.buffer.getLong(0); }
+
+    // shrinking it drops everything past the new end
+    void setUsed(long used) {
+        this.buffer.putLong(0, used);
+        this.dirty = true;
+    }
+
+    // reserves length bytes at the end of the used part and returns their offset
+    long append(int length) throws IOException {
+        long offset = getUsed();
+        ensureCapacity(offset + length);
+        setUsed(offset + length);
+        return offset;
+    }
+
+    long getLong(long position) { return this.buffer.getLong((int) position); }
+
+    int getInt(long position) { return this.buffer.getInt((int) position); }
+
+    void getBytes(long position, byte[] dst) { this.buffer.get((int) position, dst); }
+
+    void putLong(long position, long value) throws IOException {
+        ensureCapacity(position + 8);
+        this.buffer.putLong((int) position, value);
+        this.dirty = true;
+    }
+
+    void putInt(long position, int value) throws IOException {
+        ensureCapacity(position + 4);
+        this.buffer.putInt((int) position, value);
+        this.dirty = true;
+    }
+
+    void putBytes(long position, byte[] src) throws IOException {
+        ensureCapacity(position + src.length);
+        this.buffer.put((int) position, src);
+        this.dirty = true;
+    }
+
+    void force() {
+        if (this.dirty) {
+            this.buffer.force();
+            this.dirty = false;
+        }
+    }
+
+    void close() throws IOException {
+        force();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/*
+ * Keeps every PH table in memory mapped files in one directory instead of sqlite.
+ * Rows are always stored packed (see MappedTable for the file layout) and there is
+ * no per column index, so non-index lookups scan the table. The catalog is the
+ * text file catalog.txt with one line per table:
+ *
+ *   id name num_columns last_row hash_function range,range,... bucket_generation
+ *      row_generation deleted_rows statistics_generation
+ *
+ * (catalogs written before repartitioning, compaction or saved statistics existed
+ * leave out the fields that came with them, which are 0). Writes go straight into
+ * the mapped files. commit forces them to disk and then replaces catalog.txt, whose
+ * LAST_ROW decides which rows exist, so rows written by a transaction that never
+ * committed are ignored after a restart. Tombstones are not undone that way: a
+ * delete that was cut short by a crash may have deleted some of its rows. Rolling
+ * back inside a running program is not supported.
+ */
+public class MappedFileStorageEngine implements StorageEngine {
+    private static final String CATALOG_FILE = "catalog.txt";
+
+    private Path dir;
+    private Map<Integer, TableInfo> tablesByID = new LinkedHashMap<>();
+    private Map<Integer, MappedTable> files = new HashMap<>();
+    // bucket and row files replaced by a switch, deleted once the catalog no longer names them
+    private List<MappedBuckets> replacedBuckets = new ArrayList<>();
+    private List<Path> replacedRowFiles = new ArrayList<>();
+    private boolean inTransaction = false;
+
+    public MappedFileStorageEngine(String dir_name) {
+        this.dir = Paths.get(dir_name);
+    }
+
+    public void open() throws SQLException {
+        try {
+            Files.createDirectories(this.dir);
+        } catch (IOException e) {
+            throw new SQLException("could not create storage directory: " + this.dir, e);
+        }
+    }
+
+    public void close() throws SQLException {
+        try {
+            for (MappedTable table : this.files.values()) {
+                table.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        this.files.clear();
+    }
+
+    public void begin() {
+        this.inTransaction = true;
+    }
+
+    public void commit() throws SQLException {
+        for (MappedTable table : this.files.values()) {
+            table.force();
+        }
+        writeCatalog();
+        this.inTransaction = false;
+        try {
+            for (MappedBuckets buckets : this.replacedBuckets) {
+                buckets.delete();
+            }
+            for (Path file : this.replacedRowFiles) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        this.replacedBuckets.clear();
+        this.replacedRowFiles.clear();
+    }
+
+    public void rollback() throws SQLException {
+        this.inTransaction = false;
+        throw new SQLException("the mmap storage engine cannot roll back a transaction");
+    }
+
+    // the mapped files are only read with absolute gets, which do not move the buffer
+    public boolean supportsConcurrentReads() {
+        return true;
+    }
+
+    // outside of begin/commit every write is committed on its own
+    private void autoCommit() throws SQLException {
+        if (!this.inTransaction) {
+            commit();
+        }
+    }
+
+    private MappedTable files(TableInfo table) {
+        return this.files.get(table.getID());
+    }
+
+    // the files are opened with the catalog, before any row has been handed out
+    private void openFiles(TableInfo table, int generation, int rowGeneration, int statisticsGeneration)
+            throws SQLException {
+        try {
+            this.files.put(table.getID(),
+                    new MappedTable(this.dir, table, generation, rowGeneration, statisticsGeneration));
+        } catch (IOException e) {
+            throw new SQLException("could not open the files of table: " + table.getName(), e);
+        }
+    }
+
+    // ========== catalog ========== //
+
+    public List<TableInfo> loadTables() throws SQLException {
+        close();
+        this.tablesByID.clear();
+        Map<Integer, Integer> generations = new HashMap<>();
+        Map<Integer, Integer> rowGenerations = new HashMap<>();
+        Map<Integer, Integer> statisticsGenerations = new HashMap<>();
+        Path catalog = this.dir.resolve(CATALOG_FILE);
+        if (!Files.exists(catalog)) {
+            return new ArrayList<>();
+        }
+        try {
+            for (String line : Files.readAllLines(catalog, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                List<Integer> ranges = new ArrayList<>();
+                for (String range : fields[5].split(",")) {
+                    ranges.add(Integer.parseInt(range));
+                }
+                TableInfo table = new TableInfo(fields[1], Integer.parseInt(fields[0]), Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), ranges, PartitionHashFunction.forName(fields[4]));
+                table.setRowFormat(RowStore.FORMAT_PACKED);
+                this.tablesByID.put(table.getID(), table);
+                generations.put(table.getID(), fields.length > 6 ? Integer.parseInt(fields[6]) : 0);
+                rowGenerations.put(table.getID(), fields.length > 7 ? Integer.parseInt(fields[7]) : 0);
+                table.setDeletedRows(fields.length > 8 ? Integer.parseInt(fields[8]) : 0);
+                statisticsGenerations.put(table.getID(), fields.length > 9 ? Integer.parseInt(fields[9]) : 0);
+            }
+        } catch (IOException e) {
+            throw new SQLException("could not read " + catalog, e);
+        }
+        for (TableInfo table : this.tablesByID.values()) {
+            openFiles(table, generations.get(table.getID()), rowGenerations.get(table.getID()),
+                    statisticsGenerations.get(table.getID()));
+        }
+        return new ArrayList<>(this.tablesByID.values());
+    }
+
+    // written to a temporary file first so a crash leaves either the old or the new catalog
+    private void writeCatalog() throws SQLException {
+        Path catalog = this.dir.resolve(CATALOG_FILE);
+        Path temp = this.dir.resolve(CATALOG_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (TableInfo table : this.tablesByID.values()) {
+                List<String> ranges = new ArrayList<>();
+                for (int range : table.getColumnRanges()) {
+                    ranges.add(Integer.toString(range));
+                }
+                writer.write(table.getID() + " " + table.getName() + " " + table.getNumColumns() + " "
+                        + table.getLastRow() + " " + table.getHashFunction().getName() + " "
+                        + String.join(",", ranges) + " " + files(table).getGeneration() + " "
+                        + files(table).getRowGeneration() + " " + table.getDeletedRows() + " "
+                        + files(table).getStatisticsGeneration());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new SQLException("could not write " + temp, e);
+        }
+        try {
+            Files.move(temp, catalog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SQLException("could not replace " + catalog, e);
+        }
+    }
+
+    public TableInfo createTable(String name, List<Integer> columnRanges, PartitionHashFunction hashFunction,
+            String rowFormat) throws SQLException {
+        for (TableInfo existing : this.tablesByID.values()) {
+            if (existing.getName().equals(name)) {
+                throw new SQLException("table already exists: " + name);
+            }
+        }
+        int newID = this.tablesByID.isEmpty() ? 1 : Collections.max(this.tablesByID.keySet()) + 1;
+        TableInfo table = new TableInfo(name, newID, columnRanges.size(), 1, columnRanges, hashFunction);
+        // every row is stored packed here whatever the table asked for
+        table.setRowFormat(RowStore.FORMAT_PACKED);
+        this.tablesByID.put(newID, table);
+        openFiles(table, 0, 0, 0);
+        autoCommit();
+        return table;
+    }
+
+    public void updateLastRow(TableInfo table) throws SQLException {
+        // catalog.txt is written from the TableInfo objects at commit
+        autoCommit();
+    }
+
+    // ========== rows ========== //
+
+    public void addRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        try {
+            files(table).addRow(rowNum, values);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public void flushRows() throws SQLException {
+        autoCommit();
+    }
+
+    public void addEncodedRow(TableInfo table, int rowNum, byte[] record) throws SQLException {
+        try {
+            files(table).addEncodedRow(rowNum, record);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public boolean hasColumnIndex(TableInfo table) {
+        return false;
+    }
+
+    public RowBitmap selectValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        return files(table).selectValidRows(columnNum, value);
+    }
+
+    public long countValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        return files(table).selectValidRows(columnNum, value).getCardinality();
+    }
+
+    public RecordCursor openScan(TableInfo table) {
+        return files(table).openScan();
+    }
+
+    public RecordCursor openRecords(TableInfo table, int[] sortedRows) {
+        return files(table).openRecords(RowIdCursor.of(sortedRows));
+    }
+
+    public void convertRows(TableInfo table, String rowFormat) throws SQLException {
+        if (!rowFormat.equals(RowStore.FORMAT_PACKED)) {
+            throw new SQLException("the mmap storage engine only stores packed rows");
+        }
+    }
+
+    // ========== buckets ========== //
+
+    public void appendBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        try {
+            files(table).appendBuckets(rowsByBucket);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        autoCommit();
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan) throws SQLException {
+        MappedTable mapped = files(table);
+        return mapped.openRecords(inRowOrder(mapped.openBucketRows(plan)));
+    }
+
+    // the bucket pages give their rows in bucket order, so they are gathered into a
+    // bitmap first and read in row order, as RowStore does for the sqlite engine
+    private static RowIdCursor inRowOrder(RowIdCursor rows) throws SQLException {
+        RowBitmap sorted = new RowBitmap();
+        try {
+            int row;
+            while ((row = rows.next()) >= 0) {
+                sorted.add(row);
+            }
+        } finally {
+            rows.close();
+        }
+        return RowIdCursor.of(sorted.toArray());
+    }
+
+    public void forEachBucket(TableInfo table, LongConsumer consumer) {
+        files(table).forEachBucketRow((bucket, row) -> consumer.accept(bucket));
+    }
+
+    public void forEachBucketRow(TableInfo table, BucketRowConsumer consumer) {
+        files(table).forEachBucketRow(consumer);
+    }
+
+    // ========== repartitioning ========== //
+
+    public void createPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        try {
+            files(table).createPendingBuckets(layout.getTotalBits());
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public void appendPendingBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        try {
+            files(table).appendPendingBuckets(rowsByBucket);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        autoCommit();
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan, BucketPlan pendingPlan,
+            IntPredicate migrated) throws SQLException {
+        MappedTable mapped = files(table);
+        return mapped.openRecords(inRowOrder(RowIdCursor.concat(
+                mapped.openBucketRows(plan).filter(migrated.negate()),
+                mapped.openPendingBucketRows(pendingPlan).filter(migrated))));
+    }
+
+    // the new ranges and generation reach the disk together in catalog.txt
+    public void switchToPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        table.setColumnRanges(layout.getColumnRanges());
+        this.replacedBuckets.add(files(table).switchToPendingBuckets());
+        autoCommit();
+    }
+
+    public void dropPendingBuckets(TableInfo table) throws SQLException {
+        try {
+            files(table).dropPendingBuckets();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    // ========== deleting and compacting ========== //
+
+    public void deleteRows(TableInfo table, int[] sortedRows) throws SQLException {
+        try {
+            for (int row : sortedRows) {
+                files(table).deleteRow(row);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        table.setDeletedRows(table.getDeletedRows() + sortedRows.length);
+        autoCommit();
+    }
+
+    public void createPendingRows(TableInfo table) throws SQLException {
+        try {
+            files(table).createPendingRows();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public void addPendingRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        try {
+            files(table).addPendingRow(rowNum, values);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public void deletePendingRows(TableInfo table, int[] sortedRows) throws SQLException {
+        try {
+            for (int row : sortedRows) {
+                files(table).deletePendingRow(row);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        autoCommit();
+    }
+
+    // the new LAST_ROW and row generation reach the disk together in catalog.txt
+    public void switchToPendingRows(TableInfo table, int lastRow, int deletedRows) throws SQLException {
+        try {
+            this.replacedRowFiles.addAll(files(table).switchToPendingRows());
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        table.setRows(lastRow, deletedRows);
+        autoCommit();
+    }
+
+    public void dropPendingRows(TableInfo table) throws SQLException {
+        try {
+            files(table).dropPendingRows();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    // ========== column statistics ========== //
+
+    public ColumnStatistics loadStatistics(TableInfo table) throws SQLException {
+        try {
+            return files(table).loadStatistics();
+        } catch (IOException | RuntimeException e) {
+            throw new SQLException("could not read the statistics of table: " + table.getName(), e);
+        }
+    }
+
+    // the new generation reaches the disk in catalog.txt
+    public void saveStatistics(TableInfo table, ColumnStatistics statistics) throws SQLException {
+        try {
+            files(table).saveStatistics(statistics);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        autoCommit();
+    }
+}
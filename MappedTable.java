@@ -0,0 +1,424 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The files of one table in the mmap storage engine:
+ *
+ *   table_<id>.heap    packed records [int rowNum][int length][RecordCodec bytes],
+ *                      appended in row order
+ *   table_<id>.rowidx  for every row number the heap offset of its record + 1,
+ *                      negated once the row is deleted
+ *
+ * and the bucket files of the current generation, see MappedBuckets. Generation 0
+ * is table_<id>.dir and table_<id>.pages, generation g > 0 is table_<id>.<g>.dir
+ * and table_<id>.<g>.pages. A repartition fills the next generation as the pending
+ * buckets, and switching to it is a matter of catalog.txt recording the new number.
+ * The heap and row index have generations of their own, named the same way, and a
+ * compaction fills the next one with the pending copy of the rows.
+ *
+ * The ColumnStatistics of the table have generations too, 0 is a table without
+ * any. Generation g > 0 is in table_<id>.<g % 2>.stats, after the header:
+ *
+ *   int last_row, long rows, int num_columns, then per column: int length, the sketch,
+ *      then int length, the heavy hitters of every column
+ *
+ * The first save of a transaction writes the next generation over the one before
+ * the committed one, the ones after it in the same transaction write it again.
+ */
+class MappedTable {
+    private Path dir;
+    private TableInfo table;
+    private int generation;
+    private int rowGeneration;
+    private MappedFile heap;
+    private MappedFile rowIndex;
+    private MappedBuckets buckets;
+    private MappedBuckets pendingBuckets = null;
+    private MappedFile pendingHeap = null;
+    private MappedFile pendingRowIndex = null;
+    private int statisticsGeneration;
+    // whether the statistics were saved since the last commit, into statisticsGeneration
+    private boolean statisticsSaved = false;
+    // by generation % 2, opened by the first load or save
+    private MappedFile[] statisticsFiles = new MappedFile[2];
+
+    // has to be opened while the LAST_ROW of table is still the committed one
+    MappedTable(Path dir, TableInfo table, int generation, int rowGeneration, int statisticsGeneration)
+            throws IOException {
+        this.dir = dir;
+        this.table = table;
+        this.generation = generation;
+        this.rowGeneration = rowGeneration;
+        this.statisticsGeneration = statisticsGeneration;
+        this.heap = new MappedFile(dir.resolve(prefix(rowGeneration) + ".heap"));
+        this.rowIndex = new MappedFile(dir.resolve(prefix(rowGeneration) + ".rowidx"));
+        this.buckets = new MappedBuckets(dir, prefix(generation), table.getTotalBits());
+        // the generations a crash kept from being deleted after a switch, and the
+        // pending ones of a repartition or compaction that never finished
+        if (generation > 0) {
+            MappedBuckets.deleteFiles(dir, prefix(generation - 1));
+        }
+        MappedBuckets.deleteFiles(dir, prefix(generation + 1));
+        if (rowGeneration > 0) {
+            deleteRowFiles(prefix(rowGeneration - 1));
+        }
+        deleteRowFiles(prefix(rowGeneration + 1));
+        recover();
+    }
+
+    private String prefix(int generation) {
+        return "table_" + this.table.getID() + (generation == 0 ? "" : "." + generation);
+    }
+
+    private void deleteRowFiles(String prefix) throws IOException {
+        Files.deleteIfExists(this.dir.resolve(prefix + ".heap"));
+        Files.deleteIfExists(this.dir.resolve(prefix + ".rowidx"));
+    }
+
+    int getGeneration() {
+        return this.generation;
+    }
+
+    int getRowGeneration() {
+        return this.rowGeneration;
+    }
+
+    int getStatisticsGeneration() {
+        return this.statisticsGeneration;
+    }
+
+    /*
+     * Drops what a transaction that never committed left behind: the records past
+     * LAST_ROW, their row index entries and their bucket entries. Their row numbers
+     * are handed out again, so a stale bucket entry would otherwise return the new
+     * row a second time.
+     */
+    private void recover() throws IOException {
+        long committedEnd = MappedFile.HEADER;
+        int lastRow = this.table.getLastRow();
+        if (lastRow > 1) {
+            // deleted or not
+            long offset = Math.abs(this.rowIndex.getLong(MappedFile.HEADER + 8L * (lastRow - 1))) - 1;
+            if (offset < 0) {
+                throw new IOException("row " + (lastRow - 1) + " of table " + this.table.getName() + " is missing");
+            }
+            committedEnd = offset + 8 + this.heap.getInt(offset + 4);
+        }
+        long used = this.heap.getUsed();
+        if (used <= committedEnd) {
+            return;
+        }
+        for (long offset = committedEnd; offset < used; offset += 8 + this.heap.getInt(offset + 4)) {
+            this.rowIndex.putLong(MappedFile.HEADER + 8L * this.heap.getInt(offset), 0);
+        }
+        this.heap.setUsed(committedEnd);
+        this.buckets.dropRowsFrom(lastRow);
+        force();
+    }
+
+    // ========== rows ========== //
+
+    void addRow(int rowNum, List<String> values) throws IOException {
+        addRow(this.heap, this.rowIndex, rowNum, values);
+    }
+
+    private static void addRow(MappedFile heap, MappedFile rowIndex, int rowNum, List<String> values)
+            throws IOException {
+        addEncodedRow(heap, rowIndex, rowNum, RecordCodec.encode(values));
+    }
+
+    // the heap keeps the RecordCodec bytes as they are
+    void addEncodedRow(int rowNum, byte[] record) throws IOException {
+        addEncodedRow(this.heap, this.rowIndex, rowNum, record);
+    }
+
+    private static void addEncodedRow(MappedFile heap, MappedFile rowIndex, int rowNum, byte[] record)
+            throws IOException {
+        long offset = heap.append(8 + record.length);
+        heap.putInt(offset, rowNum);
+        heap.putInt(offset + 4, record.length);
+        heap.putBytes(offset + 8, record);
+        rowIndex.putLong(MappedFile.HEADER + 8L * rowNum, offset + 1);
+    }
+
+    // every read skips a row whose entry is negative, its record stays in the heap
+    void deleteRow(int rowNum) throws IOException {
+        deleteRow(this.rowIndex, rowNum);
+    }
+
+    private static void deleteRow(MappedFile rowIndex, int rowNum) throws IOException {
+        long position = MappedFile.HEADER + 8L * rowNum;
+        rowIndex.putLong(position, -Math.abs(rowIndex.getLong(position)));
+    }
+
+    private List<String> readRecord(long offset) {
+        byte[] record = new byte[this.heap.getInt(offset + 4)];
+        this.heap.getBytes(offset + 8, record);
+        return RecordCodec.decode(record, this.table.getNumColumns());
+    }
+
+    private long rowOffset(int rowNum) {
+        return this.rowIndex.getLong(MappedFile.HEADER + 8L * rowNum) - 1;
+    }
+
+    RecordCursor openScan() {
+        return new RecordCursor() {
+            private int rowNum = 0;
+            private TableStats stats = Stats.current();
+
+            public List<String> next() {
+                while (this.rowNum + 1 < table.getLastRow()) {
+                    long offset = rowOffset(++this.rowNum);
+                    if (offset >= 0) {
+                        this.stats.countRowsStepped(1);
+                        return readRecord(offset);
+                    }
+                }
+                return null;
+            }
+
+            public int getRowNum() {
+                return this.rowNum;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    RowBitmap selectValidRows(int columnNum, String value) {
+        RowBitmap rows = new RowBitmap();
+        for (int rowNum = 1; rowNum < this.table.getLastRow(); rowNum++) {
+            long offset = rowOffset(rowNum);
+            if (offset >= 0 && (value.equals("*") || readRecord(offset).get(columnNum - 1).equals(value))) {
+                rows.add(rowNum);
+            }
+        }
+        Stats.current().countRowsStepped(this.table.getLastRow() - 1);
+        return rows;
+    }
+
+    // a row is a pointer lookup in the row index, so rows are read one at a time
+    RecordCursor openRecords(RowIdCursor rows) {
+        return new RecordCursor() {
+            private int rowNum = -1;
+            private TableStats stats = Stats.current();
+
+            public List<String> next() throws SQLException {
+                int row;
+                while ((row = rows.next()) >= 0) {
+                    long offset = row < table.getLastRow() ? rowOffset(row) : -1;
+                    if (offset >= 0) {
+                        this.stats.countRowsStepped(1);
+                        this.rowNum = row;
+                        return readRecord(offset);
+                    }
+                }
+                return null;
+            }
+
+            public int getRowNum() {
+                return this.rowNum;
+            }
+
+            public void close() throws SQLException {
+                rows.close();
+            }
+        };
+    }
+
+    // ========== buckets ========== //
+
+    void appendBuckets(Map<Long, List<Integer>> rowsByBucket) throws IOException {
+        this.buckets.append(rowsByBucket);
+    }
+
+    RowIdCursor openBucketRows(BucketPlan plan) {
+        return this.buckets.openRows(plan);
+    }
+
+    void forEachBucketRow(StorageEngine.BucketRowConsumer consumer) {
+        this.buckets.forEachBucketRow(consumer);
+    }
+
+    // ========== repartitioning ========== //
+
+    void createPendingBuckets(int totalBits) throws IOException {
+        dropPendingBuckets();
+        MappedBuckets.deleteFiles(this.dir, prefix(this.generation + 1));
+        this.pendingBuckets = new MappedBuckets(this.dir, prefix(this.generation + 1), totalBits);
+    }
+
+    void appendPendingBuckets(Map<Long, List<Integer>> rowsByBucket) throws IOException {
+        this.pendingBuckets.append(rowsByBucket);
+    }
+
+    RowIdCursor openPendingBucketRows(BucketPlan plan) {
+        return this.pendingBuckets.openRows(plan);
+    }
+
+    // makes the pending buckets the next generation and returns the ones they replace,
+    // whose files may only be deleted once catalog.txt records the new generation
+    MappedBuckets switchToPendingBuckets() {
+        MappedBuckets replaced = this.buckets;
+        this.buckets = this.pendingBuckets;
+        this.pendingBuckets = null;
+        this.generation++;
+        return replaced;
+    }
+
+    void dropPendingBuckets() throws IOException {
+        if (this.pendingBuckets != null) {
+            this.pendingBuckets.delete();
+            this.pendingBuckets = null;
+        }
+    }
+
+    // ========== compacting ========== //
+
+    void createPendingRows() throws IOException {
+        dropPendingRows();
+        String prefix = prefix(this.rowGeneration + 1);
+        deleteRowFiles(prefix);
+        this.pendingHeap = new MappedFile(this.dir.resolve(prefix + ".heap"));
+        this.pendingRowIndex = new MappedFile(this.dir.resolve(prefix + ".rowidx"));
+    }
+
+    void addPendingRow(int rowNum, List<String> values) throws IOException {
+        addRow(this.pendingHeap, this.pendingRowIndex, rowNum, values);
+    }
+
+    void deletePendingRow(int rowNum) throws IOException {
+        deleteRow(this.pendingRowIndex, rowNum);
+    }
+
+    // makes the pending rows the next generation and closes the ones they replace,
+    // whose files may only be deleted once catalog.txt records the new generation
+    List<Path> switchToPendingRows() throws IOException {
+        String prefix = prefix(this.rowGeneration);
+        this.heap.close();
+        this.rowIndex.close();
+        this.heap = this.pendingHeap;
+        this.rowIndex = this.pendingRowIndex;
+        this.pendingHeap = null;
+        this.pendingRowIndex = null;
+        this.rowGeneration++;
+        return List.of(this.dir.resolve(prefix + ".heap"), this.dir.resolve(prefix + ".rowidx"));
+    }
+
+    void dropPendingRows() throws IOException {
+        if (this.pendingHeap != null) {
+            this.pendingHeap.close();
+            this.pendingRowIndex.close();
+            this.pendingHeap = null;
+            this.pendingRowIndex = null;
+            deleteRowFiles(prefix(this.rowGeneration + 1));
+        }
+    }
+
+    // ========== column statistics ========== //
+
+    private MappedFile statisticsFile(int generation) throws IOException {
+        int slot = generation % 2;
+        if (this.statisticsFiles[slot] == null) {
+            this.statisticsFiles[slot] = new MappedFile(
+                    this.dir.resolve("table_" + this.table.getID() + "." + slot + ".stats"));
+        }
+        return this.statisticsFiles[slot];
+    }
+
+    // null when none were saved
+    ColumnStatistics loadStatistics() throws IOException {
+        if (this.statisticsGeneration == 0) {
+            return null;
+        }
+        MappedFile file = statisticsFile(this.statisticsGeneration);
+        byte[] encoded = new byte[(int) (file.getUsed() - MappedFile.HEADER)];
+        file.getBytes(MappedFile.HEADER, encoded);
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        int lastRow = in.getInt();
+        long rows = in.getLong();
+        List<byte[]> sketches = new ArrayList<>();
+        int numColumns = in.getInt();
+        for (int i = 0; i < numColumns; i++) {
+            sketches.add(new byte[in.getInt()]);
+            in.get(sketches.get(i));
+        }
+        byte[] heavyHitters = new byte[in.getInt()];
+        in.get(heavyHitters);
+        return ColumnStatistics.decode(this.table, lastRow, rows, sketches, heavyHitters);
+    }
+
+    // catalog.txt names the new generation from the commit on
+    void saveStatistics(ColumnStatistics statistics) throws IOException {
+        if (!this.statisticsSaved) {
+            this.statisticsGeneration++;
+            this.statisticsSaved = true;
+        }
+        List<byte[]> parts = new ArrayList<>();
+        int size = 16;
+        for (int i = 0; i < statistics.getNumColumns(); i++) {
+            parts.add(statistics.encodeSketch(i));
+        }
+        parts.add(statistics.encodeHeavyHitters());
+        for (byte[] part : parts) {
+            size += 4 + part.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(this.table.getLastRow()).putLong(statistics.getRows()).putInt(statistics.getNumColumns());
+        for (byte[] part : parts) {
+            out.putInt(part.length).put(part);
+        }
+        MappedFile file = statisticsFile(this.statisticsGeneration);
+        file.putBytes(MappedFile.HEADER, out.array());
+        file.setUsed(MappedFile.HEADER + size);
+        statistics.saved(this.table.getLastRow());
+    }
+
+    // ========== durability ========== //
+
+    // at every commit, before catalog.txt is written, and once recovered
+    void force() {
+        for (MappedFile file : this.statisticsFiles) {
+            if (file != null) {
+                file.force();
+            }
+        }
+        this.statisticsSaved = false;
+        this.heap.force();
+        this.rowIndex.force();
+        this.buckets.force();
+        if (this.pendingBuckets != null) {
+            this.pendingBuckets.force();
+        }
+        if (this.pendingHeap != null) {
+            this.pendingHeap.force();
+            this.pendingRowIndex.force();
+        }
+    }
+
+    // pending buckets and rows are left on disk, the next open deletes them
+    void close() throws IOException {
+        for (MappedFile file : this.statisticsFiles) {
+            if (file != null) {
+                file.close();
+            }
+        }
+        this.heap.close();
+        this.rowIndex.close();
+        this.buckets.close();
+        if (this.pendingBuckets != null) {
+            this.pendingBuckets.close();
+        }
+        if (this.pendingHeap != null) {
+            this.pendingHeap.close();
+            this.pendingRowIndex.close();
+        }
+    }
+}
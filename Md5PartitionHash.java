@@ -0,0 +1,50 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * The original hash of the project: the first 4 bytes of the MD5 digest read as a
+ * big endian int. Kept so tables created before the hash function was recorded in
+ * PH_TABLE still find their buckets. Only 32 bits are produced, and they were
+ * masked with an int whose shift count wraps at 32, so a column with a range of
+ * 32 or more keeps only range - 32 of them. bitMask does the same, or those
+ * tables would look for their rows in other buckets.
+ */
+public class Md5PartitionHash implements PartitionHashFunction {
+    public static final String NAME = "md5";
+    public static final Md5PartitionHash INSTANCE = new Md5PartitionHash();
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    });
+    private static final ThreadLocal<byte[]> DIGEST_OUT = ThreadLocal.withInitial(() -> new byte[16]);
+
+    public String getName() {
+        return NAME;
+    }
+
+    public long bitMask(int range) {
+        return (1 << range) - 1;
+    }
+
+    public long hash(String value) {
+        Utf8Scratch scratch = Utf8Scratch.encode(value);
+        MessageDigest md = DIGEST.get();
+        byte[] out = DIGEST_OUT.get();
+        md.update(scratch.bytes, 0, scratch.length);
+        try {
+            md.digest(out, 0, out.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("MD5 digest does not fit in 16 bytes", e);
+        }
+        long result = 0;
+        for (int i = 0; i < 4; i++) {
+            result = (result << 8) | (out[i] & 0xff);
+        }
+        return result;
+    }
+}
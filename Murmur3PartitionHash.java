@@ -0,0 +1,95 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/*
+ * The first 64 bits of MurmurHash3 x64_128 with a seed of 0. This is the default
+ * for new tables.
+ */
+public class Murmur3PartitionHash implements PartitionHashFunction {
+    public static final String NAME = "murmur3";
+    public static final Murmur3PartitionHash INSTANCE = new Murmur3PartitionHash();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    // blocks are read little endian, as the reference implementation reads them on x86
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    public String getName() {
+        return NAME;
+    }
+
+    public long hash(String value) {
+        Utf8Scratch scratch = Utf8Scratch.encode(value);
+        byte[] data = scratch.bytes;
+        int length = scratch.length;
+        long h1 = 0;
+        long h2 = 0;
+
+        int pos = 0;
+        for (; pos + 16 <= length; pos += 16) {
+            long k1 = readLong(data, pos);
+            long k2 = readLong(data, pos + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = length - pos;
+        for (int i = tail - 1; i >= 8; i--) {
+            k2 ^= (long) (data[pos + i] & 0xff) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (long) (data[pos + i] & 0xff) << (i * 8);
+        }
+        if (tail > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long readLong(byte[] data, int pos) {
+        return (long) LONG_LE.get(data, pos);
+    }
+}
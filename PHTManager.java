@@ -1,12 +1,91 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 class PHTManager {
     public static void main(String args[]) {
-        if (args.length != 2){
-            System.out.println("Please use this format: \njava PHTManager test.sqlite instructions.txt");
+        // a lookup can print millions of rows, so stdout is one large buffer that is
+        // flushed when it fills up and when the program exits, System.exit included
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false);
+        System.setOut(stdout);
+        Runtime.getRuntime().addShutdownHook(new Thread(stdout::flush));
+        if (args.length < 2){
+            System.out.println("Please use this format: \njava PHTManager test.sqlite instructions.txt [--batch-size=N] [--storage=sqlite|mmap]" +
+                    " [--pipeline-depth=N] [--hash-threads=N] [--readers=N] [--lookup-batch=N] [--lookup-cache=MB] [--compaction-interval=N]" +
+                    " [--stats-json=stats.json]");
             System.exit(1);
         }
-        Database db = new Database(args[0]);
+        // with --storage=mmap the first argument names a directory instead of a sqlite file
+        boolean mappedStorage = false;
+        int batchSize = 0;
+        int readers = 0;
+        int pipelineDepth = 0;
+        int lookupBatch = 0;
+        long lookupCacheMegabytes = 0;
+        Integer compactionInterval = null;
+        Path statsFile = null;
+        // the reader and the writer keep a core busy between them
+        int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option[0].equals("--batch-size") && option.length == 2) {
+                batchSize = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--pipeline-depth") && option.length == 2) {
+                pipelineDepth = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--hash-threads") && option.length == 2) {
+                hashThreads = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--readers") && option.length == 2) {
+                readers = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--lookup-batch") && option.length == 2) {
+                lookupBatch = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--lookup-cache") && option.length == 2) {
+                lookupCacheMegabytes = Long.parseLong(option[1]);
+            } else if (option[0].equals("--compaction-interval") && option.length == 2) {
+                compactionInterval = Integer.parseInt(option[1]);
+            } else if (option[0].equals("--stats-json") && option.length == 2) {
+                statsFile = Paths.get(option[1]);
+            } else if (args[i].equals("--storage=mmap")) {
+                mappedStorage = true;
+            } else if (args[i].equals("--storage=sqlite")) {
+                mappedStorage = false;
+            } else {
+                System.out.println("unrecognized option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        // --readers=N opens N read only connections for sqlite and runs up to N lookups at once
+        StorageEngine storage = mappedStorage ? new MappedFileStorageEngine(args[0])
+                : new ShardedStorageEngine(args[0], readers);
+        Database db = new Database(storage);
+        if (readers > 1) {
+            db.setLookupThreads(readers);
+        }
+        db.setBatchSize(batchSize);
+        db.setPipeline(pipelineDepth, hashThreads);
+        db.setLookupBatch(lookupBatch);
+        db.setLookupCache(lookupCacheMegabytes << 20);
+        if (compactionInterval != null) {
+            db.setCompactionInterval(compactionInterval);
+        }
+        if (statsFile != null) {
+            // written at exit, also when an instruction stops the program
+            Path path = statsFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    db.getStats().writeJson(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
         db.initial_tables();
         db.parse_instructions(args[1]);
+        db.close();
     }
 
 
@@ -15,4 +94,4 @@ class PHTManager {
 
         // List<Integer> tempInput = Arrays.asList(3, 4, 5);
         // Hash_Table test = new Hash_Table(tempInput, "temp");
-        // test.partitionedHash(Arrays.asList("red", "apple", "sunday"));
\ No newline at end of file
+        // test.partitionedHash(Arrays.asList("red", "apple", "sunday"));
@@ -0,0 +1,30 @@
+/*
+ * A hash function used to compute the per column components of the partitioned
+ * hash. Implementations hash the UTF-8 bytes of the value and return 64 bits, the
+ * caller keeps as many low order bits as the column range allows. The name of the
+ * function is stored with each table in PH_TABLE so a table is always read back
+ * with the function it was written with.
+ */
+public interface PartitionHashFunction {
+    String getName();
+
+    long hash(String value);
+
+    // the low order bits of a hash kept for a column of the given range
+    default long bitMask(int range) {
+        return range >= 64 ? -1L : (1L << range) - 1;
+    }
+
+    static PartitionHashFunction forName(String name) {
+        switch (name) {
+            case Md5PartitionHash.NAME:
+                return Md5PartitionHash.INSTANCE;
+            case Murmur3PartitionHash.NAME:
+                return Murmur3PartitionHash.INSTANCE;
+            case XxHash64PartitionHash.NAME:
+                return XxHash64PartitionHash.INSTANCE;
+            default:
+                throw new IllegalArgumentException("unknown hash function: " + name);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * What WorkloadAdvisor.advise found for a table: the lookups it was based on, the
+ * estimated distinct values of every column and the ranges it recommends, with the
+ * expected cost per lookup of the current and the recommended ranges.
+ */
+public class RangeAdvice {
+    // a rehash reads and rewrites the whole index, so small savings are not worth it
+    public static final double MIN_SAVING = 0.10;
+
+    private String tableName;
+    private long rows;
+    private Map<Long, Long> patterns;
+    private long[] distinct;
+    private List<Integer> current;
+    private List<Integer> recommended;
+    private double currentCost;
+    private double recommendedCost;
+
+    public RangeAdvice(String tableName, long rows, Map<Long, Long> patterns, long[] distinct, List<Integer> current,
+            List<Integer> recommended, double currentCost, double recommendedCost) {
+        this.tableName = tableName;
+        this.rows = rows;
+        this.patterns = patterns;
+        this.distinct = distinct;
+        this.current = current;
+        this.recommended = recommended;
+        this.currentCost = currentCost;
+        this.recommendedCost = recommendedCost;
+    }
+
+    public List<Integer> getRecommended() { return this.recommended; }
+    public double getCurrentCost() { return this.currentCost; }
+    public double getRecommendedCost() { return this.recommendedCost; }
+
+    public long getLookups() {
+        long lookups = 0;
+        for (long count : this.patterns.values()) {
+            lookups += count;
+        }
+        return lookups;
+    }
+
+    // worth a rehash when it saves at least MIN_SAVING of the expected cost
+    public boolean isChange() {
+        return !this.recommended.equals(this.current) && this.recommendedCost < (1 - MIN_SAVING) * this.currentCost;
+    }
+
+    // the lines printed by the "a" instruction
+    List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        long lookups = getLookups();
+        lines.add("ADVICE " + this.tableName + " rows=" + this.rows + " lookups=" + lookups);
+        if (lookups == 0) {
+            lines.add("no lookups recorded, keeping ranges " + join(this.current));
+            return lines;
+        }
+        for (int i = 0; i < this.current.size(); i++) {
+            long bound = 0;
+            for (Map.Entry<Long, Long> pattern : this.patterns.entrySet()) {
+                if ((pattern.getKey() & (1L << i)) != 0) {
+                    bound += pattern.getValue();
+                }
+            }
+            lines.add(String.format("column %d bound=%.1f%% distinct=%d range=%d recommended=%d", i + 1,
+                    100.0 * bound / lookups, this.distinct[i], this.current.get(i), this.recommended.get(i)));
+        }
+        lines.add(String.format("expected cost per lookup: current %s %.1f, recommended %s %.1f",
+                join(this.current), this.currentCost, join(this.recommended), this.recommendedCost));
+        return lines;
+    }
+
+    static String join(List<Integer> ranges) {
+        List<String> values = new ArrayList<>();
+        for (int range : ranges) {
+            values.add(Integer.toString(range));
+        }
+        return String.join(",", values);
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Binary form of a whole tuple for tables stored in the packed row format. Every
+ * column is written as a varint byte length followed by its UTF-8 bytes, in column
+ * order. The number of columns is not stored, it comes from the catalog.
+ */
+public class RecordCodec {
+    public static byte[] encode(List<String> values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(values.size() * 8);
+        for (String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = bytes.length;
+            while ((length & ~0x7f) != 0) {
+                out.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    public static List<String> decode(byte[] record, int numColumns) {
+        List<String> values = new ArrayList<>(numColumns);
+        int pos = 0;
+        for (int i = 0; i < numColumns; i++) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = record[pos++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            values.add(new String(record, pos, length, StandardCharsets.UTF_8));
+            pos += length;
+        }
+        return values;
+    }
+}
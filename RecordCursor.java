@@ -0,0 +1,57 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Predicate;
+
+/*
+ * Pull style access to the records of a lookup, in the manner of a ResultSet: each
+ * call to next reads only as far into the storage as it needs to, so a lookup with
+ * millions of results never holds more than a chunk of them. Cursors have to be
+ * closed, the sqlite ones keep a statement (and possibly a reader connection) open.
+ */
+public interface RecordCursor extends AutoCloseable {
+    // the next record, or null after the last one
+    List<String> next() throws SQLException;
+
+    void close() throws SQLException;
+
+    // row number of the record last returned by next, -1 when the cursor does not know it
+    default int getRowNum() {
+        return -1;
+    }
+
+    // a cursor without records
+    static RecordCursor empty() {
+        return new RecordCursor() {
+            public List<String> next() {
+                return null;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    // the records of this cursor that satisfy the predicate, closing it closes this one
+    default RecordCursor filter(Predicate<List<String>> predicate) {
+        RecordCursor source = this;
+        return new RecordCursor() {
+            public List<String> next() throws SQLException {
+                List<String> record;
+                while ((record = source.next()) != null) {
+                    if (predicate.test(record)) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            public int getRowNum() {
+                return source.getRowNum();
+            }
+
+            public void close() throws SQLException {
+                source.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/*
+ * A table moving to new column ranges while it stays in use, see
+ * Database.repartition_table. The rows the table had when it started are hashed
+ * under the new ranges into its pending buckets SLICE rows at a time, in row order,
+ * while the current buckets keep answering lookups. A row is migrated once its
+ * slice has committed, and every row inserted since the start is migrated from the
+ * beginning because Database hashes it into both sets of buckets. Lookups read the
+ * migrated rows from the pending buckets and the others from the current ones, so
+ * each row is found exactly once whichever layout it is in. When the last slice is
+ * done the storage engine switches the table to the pending buckets and the new
+ * ranges in one commit.
+ */
+class Repartition {
+    static final int SLICE = 4096;
+
+    private TableInfo table;
+    // the new ranges, only used for hashing and planning
+    private TableInfo layout;
+    // LAST_ROW when the repartition started, the rows from it on are migrated already
+    private int endRow;
+    // the rows below it are migrated, only moved once the slice that got there committed
+    private volatile int watermark = 1;
+    private int nextWatermark = 1;
+
+    Repartition(TableInfo table, List<Integer> columnRanges) {
+        this.table = table;
+        this.layout = new TableInfo(table.getName(), table.getID(), table.getNumColumns(), table.getLastRow(),
+                columnRanges, table.getHashFunction());
+        this.endRow = table.getLastRow();
+    }
+
+    TableInfo getTable() { return this.table; }
+    TableInfo getLayout() { return this.layout; }
+
+    boolean isOf(TableInfo table) {
+        return this.table.getName().equals(table.getName());
+    }
+
+    // the catalog was reloaded after a rollback, the slice that was rolled back was never published
+    void rebind(TableInfo table) {
+        this.table = table;
+    }
+
+    boolean isDone() {
+        return this.watermark >= this.endRow;
+    }
+
+    // which rows a lookup opened now reads from the pending buckets
+    IntPredicate migratedRows() {
+        int migratedBelow = this.watermark;
+        int migratedFrom = this.endRow;
+        return row -> row < migratedBelow || row >= migratedFrom;
+    }
+
+    BucketPlan planPending(List<String> pattern) {
+        return BucketPlanner.plan(this.layout, pattern);
+    }
+
+    long hashPending(List<String> values) {
+        return Util.partitionedHash(values, this.layout);
+    }
+
+    // hashes the next slice into the pending buckets, inside the caller's transaction
+    void migrateSlice(StorageEngine storage) throws SQLException {
+        int end = Math.min(this.endRow, this.watermark + SLICE);
+        Set<Integer> rows = new HashSet<>();
+        for (int row = this.watermark; row < end; row++) {
+            rows.add(row);
+        }
+        Map<Long, List<Integer>> rowsByBucket = new LinkedHashMap<>();
+        try (RecordCursor records = storage.openRecords(this.table, rows)) {
+            List<String> record;
+            while ((record = records.next()) != null) {
+                rowsByBucket.computeIfAbsent(hashPending(record), bucket -> new ArrayList<>())
+                        .add(records.getRowNum());
+            }
+        }
+        storage.appendPendingBuckets(this.table, rowsByBucket);
+        this.nextWatermark = end;
+    }
+
+    // called once the slice of migrateSlice has committed
+    void publishSlice() {
+        this.watermark = this.nextWatermark;
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.Arrays;
+
+/*
+ * A set of row numbers laid out like a Roaring bitmap, for intersecting the rows of
+ * several columns without boxing them. The rows are split by their high 16 bits
+ * into containers. A container of at most ARRAY_MAX rows keeps their low 16 bits
+ * as a sorted char array, a fuller one as a 65536 bit bitmap, so a container never
+ * takes more than 8KB and a sparse one takes 2 bytes per row. Row numbers are
+ * added fastest in increasing order, which is the order the column index returns
+ * them in.
+ */
+public class RowBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private int numContainers = 0;
+    // high 16 bits of the rows of each container, increasing
+    private int[] keys = new int[4];
+    // for each container its sorted low bits, or null when it is a bitmap
+    private char[][] arrays = new char[4][];
+    // for each container its bitmap, or null when it is an array
+    private long[][] bitmaps = new long[4][];
+    private int[] cardinalities = new int[4];
+
+    public void add(int row) {
+        int key = row >>> 16;
+        char low = (char) row;
+        int c = this.numContainers > 0 && this.keys[this.numContainers - 1] == key ? this.numContainers - 1
+                : Arrays.binarySearch(this.keys, 0, this.numContainers, key);
+        if (c < 0) {
+            c = -c - 1;
+            insertContainer(c, key, new char[4], null, 0);
+        }
+        if (this.bitmaps[c] != null) {
+            long[] bitmap = this.bitmaps[c];
+            long bit = 1L << low;
+            if ((bitmap[low >>> 6] & bit) == 0) {
+                bitmap[low >>> 6] |= bit;
+                this.cardinalities[c]++;
+            }
+            return;
+        }
+        char[] array = this.arrays[c];
+        int cardinality = this.cardinalities[c];
+        int position = cardinality > 0 && array[cardinality - 1] < low ? cardinality
+                : Arrays.binarySearch(array, 0, cardinality, low);
+        if (position >= 0 && position < cardinality) {
+            return;
+        }
+        position = position < 0 ? -position - 1 : position;
+        if (cardinality == ARRAY_MAX) {
+            this.bitmaps[c] = toBitmap(array, cardinality);
+            this.arrays[c] = null;
+            add(row);
+            return;
+        }
+        if (cardinality == array.length) {
+            array = Arrays.copyOf(array, Math.min(ARRAY_MAX, 2 * array.length));
+            this.arrays[c] = array;
+        }
+        System.arraycopy(array, position, array, position + 1, cardinality - position);
+        array[position] = low;
+        this.cardinalities[c] = cardinality + 1;
+    }
+
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int c = 0; c < this.numContainers; c++) {
+            cardinality += this.cardinalities[c];
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return this.numContainers == 0;
+    }
+
+    // the rows in both, containers that end up empty are left out
+    public RowBitmap and(RowBitmap other) {
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < this.numContainers && j < other.numContainers) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.andContainers(this.keys[i], this, i, other, j);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private void andContainers(int key, RowBitmap a, int i, RowBitmap b, int j) {
+        if (a.bitmaps[i] != null && b.bitmaps[j] != null) {
+            long[] bitmap = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                bitmap[w] = a.bitmaps[i][w] & b.bitmaps[j][w];
+                cardinality += Long.bitCount(bitmap[w]);
+            }
+            if (cardinality > ARRAY_MAX) {
+                insertContainer(this.numContainers, key, null, bitmap, cardinality);
+            } else if (cardinality > 0) {
+                insertContainer(this.numContainers, key, toArray(bitmap, cardinality), null, cardinality);
+            }
+            return;
+        }
+        if (a.bitmaps[i] != null) {
+            // the array side is never the bitmap
+            andContainers(key, b, j, a, i);
+            return;
+        }
+        char[] array = a.arrays[i];
+        int cardinality = a.cardinalities[i];
+        char[] kept = new char[cardinality];
+        int numKept = 0;
+        if (b.bitmaps[j] != null) {
+            long[] bitmap = b.bitmaps[j];
+            for (int k = 0; k < cardinality; k++) {
+                if ((bitmap[array[k] >>> 6] & (1L << array[k])) != 0) {
+                    kept[numKept++] = array[k];
+                }
+            }
+        } else {
+            char[] otherArray = b.arrays[j];
+            int otherCardinality = b.cardinalities[j];
+            int k = 0;
+            int l = 0;
+            while (k < cardinality && l < otherCardinality) {
+                if (array[k] < otherArray[l]) {
+                    k++;
+                } else if (array[k] > otherArray[l]) {
+                    l++;
+                } else {
+                    kept[numKept++] = array[k];
+                    k++;
+                    l++;
+                }
+            }
+        }
+        if (numKept > 0) {
+            insertContainer(this.numContainers, key, kept, null, numKept);
+        }
+    }
+
+    // the rows in either, added in increasing order
+    public RowBitmap or(RowBitmap other) {
+        int[] rows = toArray();
+        int[] otherRows = other.toArray();
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < rows.length || j < otherRows.length) {
+            if (j == otherRows.length || (i < rows.length && rows[i] < otherRows[j])) {
+                result.add(rows[i++]);
+            } else if (i == rows.length || otherRows[j] < rows[i]) {
+                result.add(otherRows[j++]);
+            } else {
+                result.add(rows[i++]);
+                j++;
+            }
+        }
+        return result;
+    }
+
+    // the rows in increasing order
+    public int[] toArray() {
+        int[] rows = new int[getCardinality()];
+        int n = 0;
+        for (int c = 0; c < this.numContainers; c++) {
+            int high = this.keys[c] << 16;
+            if (this.bitmaps[c] != null) {
+                long[] bitmap = this.bitmaps[c];
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bitmap[w];
+                    while (word != 0) {
+                        rows[n++] = high | (w << 6) + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int k = 0; k < this.cardinalities[c]; k++) {
+                    rows[n++] = high | this.arrays[c][k];
+                }
+            }
+        }
+        return rows;
+    }
+
+    // about what the containers take on the heap, for comparing with other sets
+    public long sizeInBytes() {
+        long bytes = 16L * this.keys.length;
+        for (int c = 0; c < this.numContainers; c++) {
+            bytes += this.bitmaps[c] != null ? 8L * BITMAP_WORDS + 16 : 2L * this.arrays[c].length + 16;
+        }
+        return bytes;
+    }
+
+    private void insertContainer(int c, int key, char[] array, long[] bitmap, int cardinality) {
+        if (this.numContainers == this.keys.length) {
+            int capacity = 2 * this.keys.length;
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.arrays = Arrays.copyOf(this.arrays, capacity);
+            this.bitmaps = Arrays.copyOf(this.bitmaps, capacity);
+            this.cardinalities = Arrays.copyOf(this.cardinalities, capacity);
+        }
+        int moved = this.numContainers - c;
+        System.arraycopy(this.keys, c, this.keys, c + 1, moved);
+        System.arraycopy(this.arrays, c, this.arrays, c + 1, moved);
+        System.arraycopy(this.bitmaps, c, this.bitmaps, c + 1, moved);
+        System.arraycopy(this.cardinalities, c, this.cardinalities, c + 1, moved);
+        this.keys[c] = key;
+        this.arrays[c] = array;
+        this.bitmaps[c] = bitmap;
+        this.cardinalities[c] = cardinality;
+        this.numContainers++;
+    }
+
+    private static long[] toBitmap(char[] array, int cardinality) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int k = 0; k < cardinality; k++) {
+            bitmap[array[k] >>> 6] |= 1L << array[k];
+        }
+        return bitmap;
+    }
+
+    private static char[] toArray(long[] bitmap, int cardinality) {
+        char[] array = new char[cardinality];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = bitmap[w];
+            while (word != 0) {
+                array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return array;
+    }
+}
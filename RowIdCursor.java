@@ -0,0 +1,72 @@
+import java.sql.SQLException;
+import java.util.function.IntPredicate;
+
+/*
+ * Row numbers read lazily, for instance out of the bucket pages a BucketPlan covers.
+ */
+public interface RowIdCursor extends AutoCloseable {
+    // the next row number, or -1 after the last one
+    int next() throws SQLException;
+
+    void close() throws SQLException;
+
+    // the row numbers of this cursor that satisfy the predicate, closing it closes this one
+    default RowIdCursor filter(IntPredicate predicate) {
+        RowIdCursor source = this;
+        return new RowIdCursor() {
+            public int next() throws SQLException {
+                int row;
+                while ((row = source.next()) >= 0) {
+                    if (predicate.test(row)) {
+                        return row;
+                    }
+                }
+                return -1;
+            }
+
+            public void close() throws SQLException {
+                source.close();
+            }
+        };
+    }
+
+    // the row numbers of first, then those of second
+    static RowIdCursor concat(RowIdCursor first, RowIdCursor second) {
+        return new RowIdCursor() {
+            private boolean firstDone = false;
+
+            public int next() throws SQLException {
+                if (!this.firstDone) {
+                    int row = first.next();
+                    if (row >= 0) {
+                        return row;
+                    }
+                    this.firstDone = true;
+                }
+                return second.next();
+            }
+
+            public void close() throws SQLException {
+                try {
+                    first.close();
+                } finally {
+                    second.close();
+                }
+            }
+        };
+    }
+
+    // row numbers that are already in memory
+    static RowIdCursor of(int[] rows) {
+        return new RowIdCursor() {
+            private int position = 0;
+
+            public int next() {
+                return this.position < rows.length ? rows[this.position++] : -1;
+            }
+
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/*
+ * Encoding of the row numbers stored in a bucket page. Each row number is written
+ * as the zigzag varint of its difference to the previous one (the first to 0), so
+ * rows that arrive in insert order take one or two bytes each. Appending only needs
+ * the last row number of the page, not a decode of the whole list.
+ */
+public class RowIdList {
+    public static byte[] encode(List<Integer> rows) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows.size() * 2);
+        int previous = 0;
+        for (int row : rows) {
+            writeVarint(out, zigzag(row - previous));
+            previous = row;
+        }
+        return out.toByteArray();
+    }
+
+    // rows are appended after the existing bytes, lastRow is the last row already in them
+    public static byte[] append(byte[] encoded, int lastRow, List<Integer> rows) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length + rows.size() * 2);
+        out.write(encoded, 0, encoded.length);
+        int previous = lastRow;
+        for (int row : rows) {
+            writeVarint(out, zigzag(row - previous));
+            previous = row;
+        }
+        return out.toByteArray();
+    }
+
+    public static void decode(byte[] encoded, IntConsumer consumer) {
+        int previous = 0;
+        int pos = 0;
+        while (pos < encoded.length) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += (value >>> 1) ^ -(value & 1);
+            consumer.accept(previous);
+        }
+    }
+
+    private static int zigzag(int delta) {
+        return (delta << 1) ^ (delta >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,504 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The rows of the PH tables. Each table picks one of three formats when it is created:
+ *   - cells: one PH_TABLE_ROWS record per (TABLE_ID, ROW_NUM, COL_NUM), the original
+ *     layout, which lets the non-index lookup find rows one column at a time
+ *   - indexed: cells with an index of its own on (COL_NUM, VALUE, ROW_NUM), see
+ *     createValueIndex, through which the non-index lookup reads and counts the rows
+ *     of a column value without reading the records. It about doubles the cost of
+ *     an insert and adds half again to the size of the cells, so a table only has
+ *     it when it asks for it
+ *   - packed: one PH_PACKED_ROWS record per (TABLE_ID, ROW_NUM) holding the whole
+ *     tuple encoded by RecordCodec, so a row is one index entry and one cursor step
+ *
+ * A deleted row keeps its records and gets a tombstone in PH_DELETED_ROWS, which
+ * every read of a table with deleted rows skips. The pending copy of a table that is
+ * being compacted is kept under the negated TABLE_ID, like its pending buckets.
+ */
+public class RowStore {
+    public static final String FORMAT_CELLS = "cells";
+    public static final String FORMAT_INDEXED = "indexed";
+    public static final String FORMAT_PACKED = "packed";
+
+    // most candidate rows bound in a single IN (...) list when records are fetched
+    private static final int IN_LIST_CHUNK = 500;
+    // row numbers read ahead from a RowIdCursor before their records are fetched
+    private static final int ROW_CHUNK = 4096;
+    private static final int CONVERT_BATCH = 10000;
+
+    private Connection connection;
+    private PreparedStatement insertCell;
+    private PreparedStatement insertPacked;
+
+    public RowStore(Connection connection) {
+        this.connection = connection;
+    }
+
+    public static boolean isFormat(String format) {
+        return format.equals(FORMAT_CELLS) || format.equals(FORMAT_INDEXED) || format.equals(FORMAT_PACKED);
+    }
+
+    public void initialize(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_TABLE_ROWS (" +
+                "   TABLE_ID INTEGER," +
+                "   ROW_NUM INTEGER," +
+                "   COL_NUM INTEGER," +
+                "   VALUE TEXT," +
+                "   PRIMARY KEY (TABLE_ID, ROW_NUM, COL_NUM)" +
+                ");");
+        // files written while every cells table had a value index, their tables are cells now
+        statement.executeUpdate("DROP INDEX IF EXISTS PH_TABLE_ROWS_VALUE_INDEX");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_PACKED_ROWS (" +
+                "   TABLE_ID INTEGER," +
+                "   ROW_NUM INTEGER," +
+                "   RECORD BLOB," +
+                "   PRIMARY KEY (TABLE_ID, ROW_NUM)" +
+                ");");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_DELETED_ROWS (" +
+                "   TABLE_ID INTEGER," +
+                "   ROW_NUM INTEGER," +
+                "   PRIMARY KEY (TABLE_ID, ROW_NUM)" +
+                ");");
+        this.insertCell = this.connection.prepareStatement(
+                "INSERT INTO PH_TABLE_ROWS (TABLE_ID, ROW_NUM, COL_NUM, VALUE) VALUES (?, ?, ?, ?)");
+        this.insertPacked = this.connection.prepareStatement(
+                "INSERT INTO PH_PACKED_ROWS (TABLE_ID, ROW_NUM, RECORD) VALUES (?, ?, ?)");
+    }
+
+    // queues the row, nothing is written until flush
+    // design choice: column numbers are 1 indexed
+    // pending copies of a compaction that never finished
+    public static void dropPendingCopies(Statement statement) throws SQLException {
+        statement.executeUpdate("DELETE FROM PH_TABLE_ROWS WHERE TABLE_ID < 0");
+        statement.executeUpdate("DELETE FROM PH_PACKED_ROWS WHERE TABLE_ID < 0");
+        statement.executeUpdate("DELETE FROM PH_DELETED_ROWS WHERE TABLE_ID < 0");
+    }
+
+    public void addRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        if (table.getRowFormat().equals(FORMAT_PACKED)) {
+            this.insertPacked.setInt(1, table.getID());
+            this.insertPacked.setInt(2, rowNum);
+            this.insertPacked.setBytes(3, RecordCodec.encode(values));
+            this.insertPacked.addBatch();
+            return;
+        }
+        this.insertCell.setInt(1, table.getID());
+        this.insertCell.setInt(2, rowNum);
+        for (int i = 0; i < values.size(); i++) {
+            this.insertCell.setInt(3, i + 1);
+            this.insertCell.setString(4, values.get(i));
+            this.insertCell.addBatch();
+        }
+    }
+
+    // for a packed table, queued like addRow
+    public void addEncodedRow(TableInfo table, int rowNum, byte[] record) throws SQLException {
+        this.insertPacked.setInt(1, table.getID());
+        this.insertPacked.setInt(2, rowNum);
+        this.insertPacked.setBytes(3, record);
+        this.insertPacked.addBatch();
+    }
+
+    public void flush() throws SQLException {
+        Stats.countSqlStatements(this.insertCell.executeBatch().length + this.insertPacked.executeBatch().length);
+    }
+
+    /*
+     * The value index of an indexed table is a partial index on PH_TABLE_ROWS that only
+     * holds the cells of the table, so the other tables do not pay for it. Building it
+     * reads all of PH_TABLE_ROWS, so a bulk load only drops it and builds it again when
+     * it adds at least as many cells as there are.
+     */
+    public static void createValueIndex(Statement statement, int tableID) throws SQLException {
+        statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + valueIndex(tableID) +
+                " ON PH_TABLE_ROWS (COL_NUM, VALUE, ROW_NUM) WHERE TABLE_ID = " + tableID);
+    }
+
+    public static void dropValueIndex(Statement statement, int tableID) throws SQLException {
+        statement.executeUpdate("DROP INDEX IF EXISTS " + valueIndex(tableID));
+    }
+
+    private static String valueIndex(int tableID) {
+        return "PH_TABLE_ROWS_VALUE_INDEX_" + tableID;
+    }
+
+    // about how many cells PH_TABLE_ROWS holds, read off the end of the table instead of counted
+    public long estimateCells() throws SQLException {
+        try (Statement statement = this.connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT MAX(rowid) FROM PH_TABLE_ROWS")) {
+            Stats.countSqlStatements(1);
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    // only for the cells layout, packed tables have no per column index to use
+    // the row numbers come out of the index in increasing order, the order RowBitmap adds fastest
+    public RowBitmap selectValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        String live = liveRows(table, "PH_TABLE_ROWS");
+        String sqlSelectRows = "SELECT ROW_NUM FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND COL_NUM = ? AND VALUE = ?"
+                + live;
+        String sqlSelectRowsStar = "SELECT ROW_NUM FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND COL_NUM = ?" + live;
+        RowBitmap validRows = new RowBitmap();
+        PreparedStatement pStatement;
+
+        if (value.equals("*")) {
+            pStatement = this.connection.prepareStatement(sqlSelectRowsStar);
+            pStatement.setInt(1, table.getID());
+            pStatement.setInt(2, columnNum);
+        } else {
+            pStatement = this.connection.prepareStatement(sqlSelectRows);
+            pStatement.setInt(1, table.getID());
+            pStatement.setInt(2, columnNum);
+            pStatement.setString(3, value);
+        }
+
+        ResultSet result = pStatement.executeQuery();
+        while (result.next()) {
+            validRows.add(result.getInt(1));
+        }
+        pStatement.close();
+        TableStats stats = Stats.current();
+        stats.countSqlStatements(1);
+        stats.countRowsStepped(validRows.getCardinality());
+        return validRows;
+    }
+
+    // how many rows selectValidRows would return, counted in the value index of an indexed
+    // table without reading them out, deleted rows included until the table is compacted
+    public long countValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT COUNT(*) FROM PH_TABLE_ROWS WHERE TABLE_ID = ? AND COL_NUM = ? AND VALUE = ?")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.setInt(2, columnNum);
+            pStatement.setString(3, value);
+            try (ResultSet result = pStatement.executeQuery()) {
+                Stats.countSqlStatements(1);
+                return result.next() ? result.getLong(1) : 0;
+            }
+        }
+    }
+
+    // every row of the table in row order
+    public RecordCursor openScan(TableInfo table) throws SQLException {
+        PreparedStatement pStatement = this.connection.prepareStatement(selectSql(table, ""));
+        pStatement.setInt(1, table.getID());
+        return new SqliteRecordCursor(table, pStatement, null);
+    }
+
+    /*
+     * Reads the records of the rows the cursor yields. Instead of one query per row
+     * the rows are fetched set at a time, ROW_CHUNK row numbers at once, and each
+     * chunk comes back in row order from a single cursor in primary key order:
+     *   - when the chunk fills at least half of the row numbers between its first
+     *     and its last row, that whole span is read and the rows that are not in
+     *     the chunk are skipped
+     *   - otherwise the chunk is sent as IN lists of IN_LIST_CHUNK rows
+     * When there are more than ROW_CHUNK rows, the rest of the cursor is first read
+     * into a bitmap of row numbers and the chunks are taken from it in row order.
+     * Rows from bucket pages arrive in bucket order, so this turns a large result
+     * into dense spans, and the bitmap takes one bit per row of the table at most,
+     * whatever the size of the records.
+     */
+    public RecordCursor openRows(TableInfo table, RowIdCursor rows) {
+        return new ChunkedRecordCursor(table, rows);
+    }
+
+    private class ChunkedRecordCursor implements RecordCursor {
+        private TableInfo table;
+        private RowIdCursor rows;
+        private int[] chunk = new int[ROW_CHUNK];
+        private int chunkSize = 0;
+        // next row of the chunk that still has to go into an IN list
+        private int inListStart = 0;
+        private SqliteRecordCursor current = null;
+        private int rowNum = -1;
+        private boolean rowsDone = false;
+        // the remaining rows once there turned out to be more than one chunk of them
+        private BitSet remaining = null;
+        private int nextRemaining = 0;
+
+        private ChunkedRecordCursor(TableInfo table, RowIdCursor rows) {
+            this.table = table;
+            this.rows = rows;
+        }
+
+        public List<String> next() throws SQLException {
+            while (true) {
+                if (this.current != null) {
+                    List<String> record = this.current.next();
+                    if (record != null) {
+                        this.rowNum = this.current.getRowNum();
+                        return record;
+                    }
+                    this.current = null;
+                }
+                if (this.inListStart < this.chunkSize) {
+                    this.current = openInList();
+                } else if (this.rowsDone || !readChunk()) {
+                    return null;
+                }
+            }
+        }
+
+        private boolean readChunk() throws SQLException {
+            this.chunkSize = 0;
+            this.inListStart = 0;
+            if (this.remaining == null) {
+                int row;
+                while (this.chunkSize < ROW_CHUNK && (row = this.rows.next()) >= 0) {
+                    this.chunk[this.chunkSize++] = row;
+                }
+                if (this.chunkSize == ROW_CHUNK && (row = this.rows.next()) >= 0) {
+                    this.remaining = new BitSet();
+                    for (int i = 0; i < this.chunkSize; i++) {
+                        this.remaining.set(this.chunk[i]);
+                    }
+                    do {
+                        this.remaining.set(row);
+                    } while ((row = this.rows.next()) >= 0);
+                    this.chunkSize = 0;
+                } else {
+                    this.rowsDone = true;
+                }
+            }
+            if (this.remaining != null) {
+                int row = this.remaining.nextSetBit(this.nextRemaining);
+                while (this.chunkSize < ROW_CHUNK && row >= 0) {
+                    this.chunk[this.chunkSize++] = row;
+                    row = this.remaining.nextSetBit(row + 1);
+                }
+                this.nextRemaining = row;
+                this.rowsDone = row < 0;
+            }
+            if (this.chunkSize == 0) {
+                return false;
+            }
+            Arrays.sort(this.chunk, 0, this.chunkSize);
+            int firstRow = this.chunk[0];
+            int lastRow = this.chunk[this.chunkSize - 1];
+            if (this.chunkSize * 2L >= (long) lastRow - firstRow + 1) {
+                BitSet inChunk = new BitSet(lastRow - firstRow + 1);
+                for (int i = 0; i < this.chunkSize; i++) {
+                    inChunk.set(this.chunk[i] - firstRow);
+                }
+                PreparedStatement pStatement = connection.prepareStatement(
+                        selectSql(this.table, " AND ROW_NUM BETWEEN ? AND ?"));
+                pStatement.setInt(1, this.table.getID());
+                pStatement.setInt(2, firstRow);
+                pStatement.setInt(3, lastRow);
+                this.current = new SqliteRecordCursor(this.table, pStatement, r -> inChunk.get(r - firstRow));
+                this.inListStart = this.chunkSize;
+            }
+            return true;
+        }
+
+        public int getRowNum() {
+            return this.rowNum;
+        }
+
+        private SqliteRecordCursor openInList() throws SQLException {
+            int end = Math.min(this.inListStart + IN_LIST_CHUNK, this.chunkSize);
+            String placeholders = String.join(", ", Collections.nCopies(end - this.inListStart, "?"));
+            PreparedStatement pStatement = connection.prepareStatement(
+                    selectSql(this.table, " AND ROW_NUM IN (" + placeholders + ")"));
+            pStatement.setInt(1, this.table.getID());
+            for (int k = this.inListStart; k < end; k++) {
+                pStatement.setInt(k - this.inListStart + 2, this.chunk[k]);
+            }
+            this.inListStart = end;
+            return new SqliteRecordCursor(this.table, pStatement, null);
+        }
+
+        public void close() throws SQLException {
+            if (this.current != null) {
+                this.current.close();
+            }
+            this.rows.close();
+        }
+    }
+
+    private String selectSql(TableInfo table, String rowPredicate) {
+        if (table.getRowFormat().equals(FORMAT_PACKED)) {
+            return "SELECT ROW_NUM, RECORD FROM PH_PACKED_ROWS WHERE TABLE_ID = ?" + rowPredicate +
+                    liveRows(table, "PH_PACKED_ROWS") + " ORDER BY ROW_NUM";
+        }
+        return "SELECT ROW_NUM, VALUE FROM PH_TABLE_ROWS WHERE TABLE_ID = ?" + rowPredicate +
+                liveRows(table, "PH_TABLE_ROWS") + " ORDER BY ROW_NUM, COL_NUM";
+    }
+
+    // skips the rows with a tombstone, one primary key probe per record, only for
+    // tables that have deleted rows
+    private static String liveRows(TableInfo table, String rowsTable) {
+        if (table.getDeletedRows() == 0) {
+            return "";
+        }
+        return " AND NOT EXISTS (SELECT 1 FROM PH_DELETED_ROWS WHERE PH_DELETED_ROWS.TABLE_ID = " + rowsTable
+                + ".TABLE_ID AND PH_DELETED_ROWS.ROW_NUM = " + rowsTable + ".ROW_NUM)";
+    }
+
+    private static String rowsTable(TableInfo table) {
+        return table.getRowFormat().equals(FORMAT_PACKED) ? "PH_PACKED_ROWS" : "PH_TABLE_ROWS";
+    }
+
+    // ========== deleting and compacting ========== //
+
+    // writes one tombstone per row, the records stay where they are
+    public void deleteRows(int tableID, int[] sortedRows) throws SQLException {
+        try (PreparedStatement insertTombstone = this.connection.prepareStatement(
+                "INSERT INTO PH_DELETED_ROWS (TABLE_ID, ROW_NUM) VALUES (?, ?)")) {
+            for (int row : sortedRows) {
+                insertTombstone.setInt(1, tableID);
+                insertTombstone.setInt(2, row);
+                insertTombstone.addBatch();
+            }
+            Stats.countSqlStatements(insertTombstone.executeBatch().length);
+        }
+    }
+
+    // the number of tombstones of every table, by TABLE_ID
+    public Map<Integer, Integer> countDeletedRows() throws SQLException {
+        Map<Integer, Integer> deletedRows = new HashMap<>();
+        try (Statement statement = this.connection.createStatement();
+                ResultSet counts = statement.executeQuery(
+                        "SELECT TABLE_ID, COUNT(*) FROM PH_DELETED_ROWS GROUP BY TABLE_ID")) {
+            while (counts.next()) {
+                deletedRows.put(counts.getInt(1), counts.getInt(2));
+            }
+        }
+        return deletedRows;
+    }
+
+    // drops every record and tombstone stored under tableID in the layout of table
+    public void deleteAll(TableInfo table, int tableID) throws SQLException {
+        for (String sql : List.of("DELETE FROM " + rowsTable(table) + " WHERE TABLE_ID = ?",
+                "DELETE FROM PH_DELETED_ROWS WHERE TABLE_ID = ?")) {
+            try (PreparedStatement pStatement = this.connection.prepareStatement(sql)) {
+                pStatement.setInt(1, tableID);
+                pStatement.executeUpdate();
+            }
+            Stats.countSqlStatements(1);
+        }
+    }
+
+    // whether the table has a record of any row from firstRow on
+    public boolean hasRowsFrom(TableInfo table, int firstRow) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT 1 FROM " + rowsTable(table) + " WHERE TABLE_ID = ? AND ROW_NUM >= ? LIMIT 1")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.setInt(2, firstRow);
+            Stats.countSqlStatements(1);
+            try (ResultSet rows = pStatement.executeQuery()) {
+                return rows.next();
+            }
+        }
+    }
+
+    // drops the records and tombstones of the rows from firstRow on
+    public void deleteRowsFrom(TableInfo table, int firstRow) throws SQLException {
+        for (String rows : List.of(rowsTable(table), "PH_DELETED_ROWS")) {
+            try (PreparedStatement pStatement = this.connection.prepareStatement(
+                    "DELETE FROM " + rows + " WHERE TABLE_ID = ? AND ROW_NUM >= ?")) {
+                pStatement.setInt(1, table.getID());
+                pStatement.setInt(2, firstRow);
+                pStatement.executeUpdate();
+            }
+            Stats.countSqlStatements(1);
+        }
+    }
+
+    // hands every record and tombstone of one table id to another, which must not have any yet
+    public void moveAll(TableInfo table, int fromTableID, int toTableID) throws SQLException {
+        for (String rows : List.of(rowsTable(table), "PH_DELETED_ROWS")) {
+            try (PreparedStatement pStatement = this.connection.prepareStatement(
+                    "UPDATE " + rows + " SET TABLE_ID = ? WHERE TABLE_ID = ?")) {
+                pStatement.setInt(1, toTableID);
+                pStatement.setInt(2, fromTableID);
+                pStatement.executeUpdate();
+            }
+            Stats.countSqlStatements(1);
+        }
+    }
+
+    /*
+     * Rewrites every row of the table in the other layout when it goes from or to
+     * packed, builds or drops the value index when it goes from or to indexed, and
+     * records the new format in PH_TABLE. Row numbers stay the same, so
+     * PH_HASH_BUCKETS is not touched. Deleted rows are not rewritten, which leaves
+     * their tombstones with nothing to hide, so those are dropped too. The caller
+     * owns the transaction.
+     */
+    public void convert(TableInfo table, String format) throws SQLException {
+        if (table.getRowFormat().equals(format)) {
+            return;
+        }
+        String oldTable = rowsTable(table);
+        TableInfo target = new TableInfo(table.getName(), table.getID(), table.getNumColumns(), table.getLastRow());
+        target.setRowFormat(format);
+        if (table.getRowFormat().equals(FORMAT_INDEXED)) {
+            try (Statement statement = this.connection.createStatement()) {
+                dropValueIndex(statement, table.getID());
+            }
+            Stats.countSqlStatements(1);
+        }
+        // cells and indexed keep the same records, only the value index comes or goes
+        if (!oldTable.equals(rowsTable(target))) {
+            copyRows(table, target, oldTable);
+        }
+        if (format.equals(FORMAT_INDEXED)) {
+            try (Statement statement = this.connection.createStatement()) {
+                createValueIndex(statement, table.getID());
+            }
+            Stats.countSqlStatements(1);
+        }
+        PreparedStatement updateFormat = this.connection.prepareStatement(
+                "UPDATE PH_TABLE SET ROW_FORMAT = ? WHERE TABLE_ID = ?");
+        updateFormat.setString(1, format);
+        updateFormat.setInt(2, table.getID());
+        updateFormat.executeUpdate();
+        updateFormat.close();
+        Stats.countSqlStatements(1);
+        table.setRowFormat(format);
+    }
+
+    // the live rows of the table into the layout of target, without the old records and tombstones
+    private void copyRows(TableInfo table, TableInfo target, String oldTable) throws SQLException {
+        int converted = 0;
+
+        PreparedStatement pStatement = this.connection.prepareStatement(selectSql(table, ""));
+        pStatement.setInt(1, table.getID());
+        SqliteRecordCursor records = new SqliteRecordCursor(table, pStatement, null);
+        List<String> record;
+        while ((record = records.next()) != null) {
+            addRow(target, records.getRowNum(), record);
+            if (++converted % CONVERT_BATCH == 0) {
+                flush();
+            }
+        }
+        records.close();
+        flush();
+
+        PreparedStatement deleteOld = this.connection.prepareStatement("DELETE FROM " + oldTable + " WHERE TABLE_ID = ?");
+        deleteOld.setInt(1, table.getID());
+        deleteOld.executeUpdate();
+        deleteOld.close();
+        Stats.countSqlStatements(1);
+        PreparedStatement deleteTombstones = this.connection.prepareStatement(
+                "DELETE FROM PH_DELETED_ROWS WHERE TABLE_ID = ?");
+        deleteTombstones.setInt(1, table.getID());
+        deleteTombstones.executeUpdate();
+        deleteTombstones.close();
+        Stats.countSqlStatements(1);
+        table.setDeletedRows(0);
+    }
+}
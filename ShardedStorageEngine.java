@@ -0,0 +1,998 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/*
+ * The sqlite storage with tables that may be sharded, spread over several sqlite
+ * files so that their writes are not all queued behind one connection and no one
+ * file has to hold all of their rows. An unsharded table lives in the main file
+ * like before. The main file also keeps the catalog of every table, including
+ * LAST_ROW, and the files each sharded table is spread over in PH_SHARDS.
+ *
+ * A table with 2^k shards keeps a row, with its record and its bucket entry, in
+ * the shard given by the top k bits of its bucket, so every shard holds the buckets
+ * of one range of the hash. A shard is an ordinary SqliteStorageEngine on its own
+ * file with a table of the same name, which uses the row numbers of the main table.
+ *   - writes go to the shard of their bucket. Each shard that was written to flushes
+ *     and then commits as a task of its own on its own connection, all at the same
+ *     time, and the main file commits after them
+ *   - a bucket plan is cut into the part of the hash of each shard, and only the
+ *     shards it still covers are read. Each of them reads FETCH records at a time
+ *     as a task of its own, and their records are merged by row number, so a scan
+ *     comes out in row order like it does from one file
+ *   - reads by row number and deletes do not know the shard of a row, so they ask
+ *     every shard
+ * The tasks run in a ForkJoinPool, with the SQL they run counted against the table
+ * of the instruction that started them.
+ *
+ * The files commit one by one, the shards first, and a transaction only counts once
+ * the main file committed it, with LAST_ROW and the number of the transaction in
+ * PH_SHARD_COMMIT. Whatever a shard committed in a transaction the main file did
+ * not, because another shard or the main file failed to commit or the process died
+ * before they did, is undone by loadTables, which Database calls after a rollback
+ * and at start, see SqliteStorageEngine:
+ *   - rows from the LAST_ROW of the table on, with their buckets and tombstones
+ *   - the tombstones the shard journaled for the transaction
+ *   - a table created for a shard, which the next shardTable of the name drops
+ *   - a new row format, which the shard is converted back from
+ * The switch of a compaction cannot be undone, so the main file commits it first
+ * and the shards switch after, each in a transaction of their own. loadTables
+ * finishes a switch the main file committed but not every shard made yet. The
+ * shard of a row depends on the column ranges, so a sharded table cannot be
+ * repartitioned.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+    public static final int MAX_SHARDS = 64;
+    // records a shard reads ahead of the merge
+    static final int FETCH = 1024;
+
+    // the files of one sharded table and its table in each of them
+    private static class Shards {
+        private SqliteStorageEngine[] engines;
+        private TableInfo[] tables;
+        // the bits of the hash below the shard number
+        private int shift;
+
+        Shards(SqliteStorageEngine[] engines, TableInfo[] tables, TableInfo table) {
+            this.engines = engines;
+            this.tables = tables;
+            this.shift = table.getTotalBits() - Integer.numberOfTrailingZeros(engines.length);
+        }
+
+        int count() {
+            return this.engines.length;
+        }
+
+        int shardOf(long bucket) {
+            return (int) (bucket >>> this.shift);
+        }
+
+        List<Integer> all() {
+            List<Integer> shards = new ArrayList<>();
+            for (int shard = 0; shard < count(); shard++) {
+                shards.add(shard);
+            }
+            return shards;
+        }
+    }
+
+    // which shard every row of the pending copy of a compaction went to
+    private static class PendingCopy {
+        private byte[] shardOfRow = new byte[1024];
+        private int[] deletedRows;
+
+        PendingCopy(int shards) {
+            this.deletedRows = new int[shards];
+        }
+
+        void add(int rowNum, int shard) {
+            if (rowNum >= this.shardOfRow.length) {
+                this.shardOfRow = Arrays.copyOf(this.shardOfRow, Math.max(rowNum + 1, 2 * this.shardOfRow.length));
+            }
+            this.shardOfRow[rowNum] = (byte) shard;
+        }
+    }
+
+    private interface ShardTask<S, T> {
+        T run(S item) throws SQLException;
+    }
+
+    private String dbName;
+    private int readers;
+    private SqliteStorageEngine main;
+    // the shard files opened so far, several tables may share one
+    private Map<String, SqliteStorageEngine> engines = new LinkedHashMap<>();
+    // by TABLE_ID, read by the lookup threads
+    private volatile Map<Integer, Shards> shardsByTable = new ConcurrentHashMap<>();
+    private Map<Integer, PendingCopy> pendingCopies = new HashMap<>();
+    private ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private boolean inTransaction = false;
+    // the shard files written to in the current transaction, which have begun one of their own
+    private Set<SqliteStorageEngine> writing = new LinkedHashSet<>();
+    // the last transaction with shards that the main file committed, see SqliteStorageEngine
+    private long committedSeq = 0;
+    // the tables the current transaction switched to their pending copy
+    private List<TableInfo> switching = new ArrayList<>();
+    // the switches the main file committed that not every shard has made, by TABLE_ID
+    private Map<Integer, Long> unfinishedSwitches = new HashMap<>();
+    // the pending copies left in the shards by a process that stopped are dropped at the first load
+    private boolean opened = false;
+    // the shard files with rows buffered until flushRows
+    private Set<SqliteStorageEngine> buffered = new LinkedHashSet<>();
+
+    public ShardedStorageEngine(String dbName, int readers) {
+        this.dbName = dbName;
+        this.readers = readers;
+        this.main = new SqliteStorageEngine(dbName, readers);
+    }
+
+    public void open() throws SQLException {
+        this.main.open();
+    }
+
+    public void close() throws SQLException {
+        this.pool.shutdown();
+        for (SqliteStorageEngine engine : this.engines.values()) {
+            engine.close();
+        }
+        this.main.close();
+    }
+
+    public void begin() throws SQLException {
+        this.main.begin();
+        this.inTransaction = true;
+        this.writing.clear();
+    }
+
+    public void commit() throws SQLException {
+        fanOut(new ArrayList<>(this.writing), engine -> {
+            engine.commit();
+            return null;
+        });
+        boolean sharded = !this.writing.isEmpty() || !this.switching.isEmpty();
+        if (sharded) {
+            this.main.recordShardCommit(this.committedSeq + 1);
+        }
+        this.main.commit();
+        this.writing.clear();
+        this.inTransaction = false;
+        if (sharded) {
+            this.committedSeq++;
+        }
+        List<TableInfo> switched = new ArrayList<>(this.switching);
+        this.switching.clear();
+        for (TableInfo table : switched) {
+            this.unfinishedSwitches.put(table.getID(), this.committedSeq);
+        }
+        for (TableInfo table : switched) {
+            completeSwitch(table, shardsOf(table), this.committedSeq);
+        }
+    }
+
+    /*
+     * A shard that committed before another one or the main file failed has its
+     * tombstones undone here, and its rows past LAST_ROW by the loadTables that
+     * follows the rollback.
+     */
+    public void rollback() throws SQLException {
+        SQLException failure = null;
+        for (SqliteStorageEngine engine : this.writing) {
+            try {
+                if (engine.inTransaction()) {
+                    engine.rollback();
+                } else {
+                    engine.undoShardWrites(this.committedSeq);
+                }
+            } catch (SQLException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        this.writing.clear();
+        this.switching.clear();
+        this.inTransaction = false;
+        if (this.main.inTransaction()) {
+            this.main.rollback();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public boolean supportsConcurrentReads() {
+        return this.main.supportsConcurrentReads();
+    }
+
+    // ========== catalog ========== //
+
+    public List<TableInfo> loadTables() throws SQLException {
+        List<TableInfo> tables = this.main.loadTables();
+        Map<Integer, List<String>> shardMap = this.main.loadShardMap();
+        this.committedSeq = this.main.loadShardCommit();
+        this.unfinishedSwitches = this.main.loadShardSwitches();
+        boolean repaired = false;
+        for (List<String> files : shardMap.values()) {
+            for (String file : files) {
+                repaired |= engine(file).undoShardWrites(this.committedSeq);
+            }
+        }
+        Map<Integer, Shards> loaded = loadShards(tables, shardMap);
+        for (TableInfo table : tables) {
+            Shards shards = loaded.get(table.getID());
+            if (shards != null) {
+                repaired |= repair(table, shards);
+            }
+        }
+        if (repaired) {
+            loaded = loadShards(tables, shardMap);
+        }
+        this.opened = true;
+        this.shardsByTable = loaded;
+        return tables;
+    }
+
+    /*
+     * Undoes what the shards of the table committed in a transaction the main file
+     * did not, after finishing the switch the main file committed if there is one.
+     * Returns whether anything changed.
+     */
+    private boolean repair(TableInfo table, Shards shards) throws SQLException {
+        boolean repaired = false;
+        Long switchSeq = this.unfinishedSwitches.get(table.getID());
+        if (switchSeq != null) {
+            completeSwitch(table, shards, switchSeq);
+            repaired = true;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            SqliteStorageEngine engine = shards.engines[shard];
+            TableInfo shardTable = shards.tables[shard];
+            if (!this.opened && switchSeq == null) {
+                engine.dropPendingRows(shardTable);
+                engine.dropPendingBuckets(shardTable);
+            }
+            repaired |= engine.dropRowsFrom(shardTable, table.getLastRow());
+            if (!shardTable.getRowFormat().equals(table.getRowFormat())) {
+                engine.begin();
+                try {
+                    engine.convertRows(shardTable, table.getRowFormat());
+                    engine.commit();
+                } catch (SQLException e) {
+                    engine.rollback();
+                    throw e;
+                }
+                repaired = true;
+            }
+        }
+        return repaired;
+    }
+
+    // switches every shard that has not yet, then forgets the switch
+    private void completeSwitch(TableInfo table, Shards shards, long seq) throws SQLException {
+        PendingCopy copy = this.pendingCopies.get(table.getID());
+        fanOut(shards.all(), shard -> {
+            if (!shards.engines[shard].hasShardSwitched(shards.tables[shard], seq)) {
+                // without the copy the tombstones are counted again when the shards are loaded
+                shards.engines[shard].switchShard(shards.tables[shard], table.getLastRow(),
+                        copy == null ? 0 : copy.deletedRows[shard], seq);
+            }
+            return null;
+        });
+        this.main.clearShardSwitch(table);
+        this.unfinishedSwitches.remove(table.getID());
+        this.pendingCopies.remove(table.getID());
+        for (int shard = 0; shard < shards.count(); shard++) {
+            shards.engines[shard].clearShardSwitched(shards.tables[shard]);
+        }
+    }
+
+    // the shard catalogs of the sharded tables, which sets their deleted rows
+    private Map<Integer, Shards> loadShards(List<TableInfo> tables, Map<Integer, List<String>> shardMap)
+            throws SQLException {
+        Map<SqliteStorageEngine, Map<String, TableInfo>> shardCatalogs = new HashMap<>();
+        Map<Integer, Shards> loaded = new ConcurrentHashMap<>();
+        for (TableInfo table : tables) {
+            List<String> files = shardMap.get(table.getID());
+            if (files == null) {
+                continue;
+            }
+            SqliteStorageEngine[] shardEngines = new SqliteStorageEngine[files.size()];
+            TableInfo[] shardTables = new TableInfo[files.size()];
+            int deletedRows = 0;
+            for (int shard = 0; shard < files.size(); shard++) {
+                shardEngines[shard] = engine(files.get(shard));
+                Map<String, TableInfo> shardCatalog = shardCatalogs.get(shardEngines[shard]);
+                if (shardCatalog == null) {
+                    shardCatalog = new HashMap<>();
+                    for (TableInfo shardTable : shardEngines[shard].loadTables()) {
+                        shardCatalog.put(shardTable.getName(), shardTable);
+                    }
+                    shardCatalogs.put(shardEngines[shard], shardCatalog);
+                }
+                shardTables[shard] = shardCatalog.get(table.getName());
+                if (shardTables[shard] == null) {
+                    throw new SQLException("shard " + files.get(shard) + " has no table " + table.getName());
+                }
+                deletedRows += shardTables[shard].getDeletedRows();
+            }
+            table.setShards(files.size());
+            table.setDeletedRows(deletedRows);
+            loaded.put(table.getID(), new Shards(shardEngines, shardTables, table));
+        }
+        return loaded;
+    }
+
+    // tables start out unsharded, see shardTable
+    public TableInfo createTable(String name, List<Integer> columnRanges, PartitionHashFunction hashFunction,
+            String rowFormat) throws SQLException {
+        return this.main.createTable(name, columnRanges, hashFunction, rowFormat);
+    }
+
+    // LAST_ROW is only kept in the main file
+    public void updateLastRow(TableInfo table) throws SQLException {
+        this.main.updateLastRow(table);
+    }
+
+    // ========== sharding ========== //
+
+    // shard i of every table is kept in the file <main file>.shard<i>
+    public void shardTable(TableInfo table, int shards) throws SQLException {
+        if (shards < 2 || shards > MAX_SHARDS || Integer.bitCount(shards) != 1) {
+            throw new SQLException("the number of shards has to be a power of two from 2 to " + MAX_SHARDS
+                    + ", got: " + shards);
+        }
+        if (Integer.numberOfTrailingZeros(shards) > table.getTotalBits()) {
+            throw new SQLException("table " + table.getName() + " has " + table.getTotalBits()
+                    + " hash bits, too few for " + shards + " shards");
+        }
+        if (table.getLastRow() != 1 || this.shardsByTable.containsKey(table.getID())) {
+            throw new SQLException("only a new table can be sharded: " + table.getName());
+        }
+        List<String> files = new ArrayList<>();
+        SqliteStorageEngine[] shardEngines = new SqliteStorageEngine[shards];
+        TableInfo[] shardTables = new TableInfo[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            files.add(this.dbName + ".shard" + shard);
+            shardEngines[shard] = engine(files.get(shard));
+            write(shardEngines[shard]);
+            // left by a shardTable the main file did not commit
+            shardEngines[shard].dropTable(table.getName());
+            shardTables[shard] = shardEngines[shard].createTable(table.getName(), table.getColumnRanges(),
+                    table.getHashFunction(), table.getRowFormat());
+        }
+        this.main.recordShardMap(table, files);
+        table.setShards(shards);
+        this.shardsByTable.put(table.getID(), new Shards(shardEngines, shardTables, table));
+    }
+
+    private Shards shardsOf(TableInfo table) {
+        return this.shardsByTable.get(table.getID());
+    }
+
+    // opens the file the first time a table needs it
+    private SqliteStorageEngine engine(String file) throws SQLException {
+        SqliteStorageEngine engine = this.engines.get(file);
+        if (engine == null) {
+            engine = new SqliteStorageEngine(file, this.readers, true);
+            engine.open();
+            this.engines.put(file, engine);
+        }
+        return engine;
+    }
+
+    // called on the writer's thread before anything is written to a shard, so the
+    // shard takes part in the transaction
+    private void write(SqliteStorageEngine engine) throws SQLException {
+        if (this.inTransaction && this.writing.add(engine)) {
+            engine.beginShardWrite(this.committedSeq + 1);
+        }
+    }
+
+    private int shardOfRecord(Shards shards, TableInfo table, List<String> values) {
+        return shards.shardOf(Util.partitionedHash(values, table));
+    }
+
+    /*
+     * Runs the task for every item at the same time, one ForkJoinPool task each, and
+     * returns their results in the order of the items. A single item runs on the
+     * caller's thread.
+     */
+    private <S, T> List<T> fanOut(List<S> items, ShardTask<S, T> task) throws SQLException {
+        if (items.size() == 1) {
+            return Collections.singletonList(task.run(items.get(0)));
+        }
+        TableStats stats = Stats.current();
+        List<Callable<T>> calls = new ArrayList<>();
+        for (S item : items) {
+            calls.add(() -> {
+                TableStats previous = Stats.enter(stats);
+                try {
+                    return task.run(item);
+                } finally {
+                    Stats.exit(previous);
+                }
+            });
+        }
+        List<T> results = new ArrayList<>();
+        SQLException failure = null;
+        try {
+            for (Future<T> future : this.pool.invokeAll(calls)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(null);
+                    if (failure == null) {
+                        failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                : new SQLException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the shards", e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    // the shards that hold any of the buckets, each with its part of the buckets in their order
+    private <V> Map<Integer, Map<Long, V>> splitBuckets(Shards shards, Map<Long, V> rowsByBucket)
+            throws SQLException {
+        Map<Integer, Map<Long, V>> byShard = new LinkedHashMap<>();
+        for (Map.Entry<Long, V> bucket : rowsByBucket.entrySet()) {
+            byShard.computeIfAbsent(shards.shardOf(bucket.getKey()), shard -> new LinkedHashMap<>())
+                    .put(bucket.getKey(), bucket.getValue());
+        }
+        for (int shard : byShard.keySet()) {
+            write(shards.engines[shard]);
+        }
+        return byShard;
+    }
+
+    // ========== rows ========== //
+
+    public void addRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.addRow(table, rowNum, values);
+            return;
+        }
+        int shard = shardOfRecord(shards, table, values);
+        write(shards.engines[shard]);
+        shards.engines[shard].addRow(shards.tables[shard], rowNum, values);
+        this.buffered.add(shards.engines[shard]);
+    }
+
+    public void flushRows() throws SQLException {
+        this.main.flushRows();
+        if (this.buffered.isEmpty()) {
+            return;
+        }
+        List<SqliteStorageEngine> flushing = new ArrayList<>(this.buffered);
+        this.buffered.clear();
+        fanOut(flushing, engine -> {
+            engine.flushRows();
+            return null;
+        });
+    }
+
+    public void addEncodedRow(TableInfo table, int rowNum, byte[] record) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.addEncodedRow(table, rowNum, record);
+            return;
+        }
+        int shard = shardOfRecord(shards, table, RecordCodec.decode(record, table.getNumColumns()));
+        write(shards.engines[shard]);
+        shards.engines[shard].addEncodedRow(shards.tables[shard], rowNum, record);
+        this.buffered.add(shards.engines[shard]);
+    }
+
+    public boolean hasColumnIndex(TableInfo table) {
+        return this.main.hasColumnIndex(table);
+    }
+
+    public RowBitmap selectValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.selectValidRows(table, columnNum, value);
+        }
+        RowBitmap rows = new RowBitmap();
+        for (RowBitmap shardRows : fanOut(shards.all(),
+                shard -> shards.engines[shard].selectValidRows(shards.tables[shard], columnNum, value))) {
+            rows = rows.or(shardRows);
+        }
+        return rows;
+    }
+
+    public long countValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.countValidRows(table, columnNum, value);
+        }
+        if (!table.getRowFormat().equals(RowStore.FORMAT_INDEXED)) {
+            return -1;
+        }
+        long count = 0;
+        for (long shardCount : fanOut(shards.all(),
+                shard -> shards.engines[shard].countValidRows(shards.tables[shard], columnNum, value))) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    public RecordCursor openScan(TableInfo table) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.openScan(table);
+        }
+        return openMerged(shards, shards.all(), shard -> shards.engines[shard].openScan(shards.tables[shard]));
+    }
+
+    public RecordCursor openRecords(TableInfo table, int[] sortedRows) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.openRecords(table, sortedRows);
+        }
+        return openMerged(shards, shards.all(),
+                shard -> shards.engines[shard].openRecords(shards.tables[shard], sortedRows));
+    }
+
+    // the main file only records the new format
+    public void convertRows(TableInfo table, String rowFormat) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards != null) {
+            for (SqliteStorageEngine engine : shards.engines) {
+                write(engine);
+            }
+            fanOut(shards.all(), shard -> {
+                shards.engines[shard].convertRows(shards.tables[shard], rowFormat);
+                return null;
+            });
+        }
+        this.main.convertRows(table, rowFormat);
+    }
+
+    // ========== buckets ========== //
+
+    public void appendBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.appendBuckets(table, rowsByBucket);
+            return;
+        }
+        Map<Integer, Map<Long, List<Integer>>> byShard = splitBuckets(shards, rowsByBucket);
+        fanOut(new ArrayList<>(byShard.keySet()), shard -> {
+            shards.engines[shard].appendBuckets(shards.tables[shard], byShard.get(shard));
+            return null;
+        });
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.openBucketRecords(table, plan);
+        }
+        Map<Integer, BucketPlan> plans = splitPlan(shards, table, plan);
+        return openMerged(shards, new ArrayList<>(plans.keySet()),
+                shard -> shards.engines[shard].openBucketRecords(shards.tables[shard], plans.get(shard)));
+    }
+
+    /*
+     * The part of the plan each shard has to read, only for the shards where that
+     * is not nothing. Ranges are cut at the shard boundaries, and a shard whose
+     * top bits contradict the residual filter is left out.
+     */
+    private Map<Integer, BucketPlan> splitPlan(Shards shards, TableInfo table, BucketPlan plan) {
+        int totalBits = table.getTotalBits();
+        long tableMask = totalBits >= 64 ? -1L : (1L << totalBits) - 1;
+        long shardMask = tableMask & ~((1L << shards.shift) - 1);
+        Map<Integer, List<long[]>> rangesByShard = new LinkedHashMap<>();
+        if (plan.isScan()) {
+            for (int shard = 0; shard < shards.count(); shard++) {
+                rangesByShard.put(shard, new ArrayList<>());
+            }
+        }
+        for (long[] range : plan.getRanges()) {
+            for (int shard = shards.shardOf(range[0]); shard <= shards.shardOf(range[1]); shard++) {
+                long low = (long) shard << shards.shift;
+                long high = low | ((1L << shards.shift) - 1);
+                long[] part = { Long.compareUnsigned(range[0], low) > 0 ? range[0] : low,
+                        Long.compareUnsigned(range[1], high) < 0 ? range[1] : high };
+                rangesByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(part);
+            }
+        }
+        Map<Integer, BucketPlan> plans = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<long[]>> shard : rangesByShard.entrySet()) {
+            long shardBits = (long) shard.getKey() << shards.shift;
+            if (((shardBits ^ plan.getResidualValue()) & plan.getResidualMask() & shardMask) != 0) {
+                continue;
+            }
+            plans.put(shard.getKey(), new BucketPlan(plan.getStrategy(), shard.getValue(), plan.getResidualMask(),
+                    plan.getResidualValue()));
+        }
+        return plans;
+    }
+
+    // one after the other on the caller's thread, the consumer need not be thread safe
+    public void forEachBucket(TableInfo table, LongConsumer consumer) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.forEachBucket(table, consumer);
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            shards.engines[shard].forEachBucket(shards.tables[shard], consumer);
+        }
+    }
+
+    public void forEachBucketRow(TableInfo table, BucketRowConsumer consumer) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.forEachBucketRow(table, consumer);
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            shards.engines[shard].forEachBucketRow(shards.tables[shard], consumer);
+        }
+    }
+
+    // ========== repartitioning ========== //
+    // Only a compaction uses the pending buckets of a sharded table, under the same
+    // ranges, so a pending bucket goes to the shard its row is in.
+
+    public void createPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.createPendingBuckets(table, layout);
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            write(shards.engines[shard]);
+            shards.engines[shard].createPendingBuckets(shards.tables[shard], layout);
+        }
+    }
+
+    public void appendPendingBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.appendPendingBuckets(table, rowsByBucket);
+            return;
+        }
+        Map<Integer, Map<Long, List<Integer>>> byShard = splitBuckets(shards, rowsByBucket);
+        fanOut(new ArrayList<>(byShard.keySet()), shard -> {
+            shards.engines[shard].appendPendingBuckets(shards.tables[shard], byShard.get(shard));
+            return null;
+        });
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan, BucketPlan pendingPlan,
+            IntPredicate migrated) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            return this.main.openBucketRecords(table, plan, pendingPlan, migrated);
+        }
+        return openMerged(shards, shards.all(), shard -> shards.engines[shard].openBucketRecords(
+                shards.tables[shard], plan, pendingPlan, migrated));
+    }
+
+    // records the ranges in the catalog, the shards switch their buckets with their rows
+    public void switchToPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        this.main.switchToPendingBuckets(table, layout);
+    }
+
+    // a copy the main file committed a switch to is kept for the shards that have not made it
+    public void dropPendingBuckets(TableInfo table) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.dropPendingBuckets(table);
+            return;
+        }
+        if (this.unfinishedSwitches.containsKey(table.getID())) {
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            write(shards.engines[shard]);
+            shards.engines[shard].dropPendingBuckets(shards.tables[shard]);
+        }
+    }
+
+    // ========== deleting and compacting ========== //
+
+    // every shard is asked which of the rows it has, then deletes those
+    public void deleteRows(TableInfo table, int[] sortedRows) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.deleteRows(table, sortedRows);
+            return;
+        }
+        List<int[]> owned = fanOut(shards.all(), shard -> {
+            int[] rows = new int[sortedRows.length];
+            int numRows = 0;
+            try (RecordCursor records = shards.engines[shard].openRecords(shards.tables[shard], sortedRows)) {
+                while (records.next() != null) {
+                    rows[numRows++] = records.getRowNum();
+                }
+            }
+            return Arrays.copyOf(rows, numRows);
+        });
+        List<Integer> deleting = new ArrayList<>();
+        for (int shard = 0; shard < shards.count(); shard++) {
+            if (owned.get(shard).length > 0) {
+                write(shards.engines[shard]);
+                deleting.add(shard);
+            }
+        }
+        fanOut(deleting, shard -> {
+            shards.engines[shard].deleteRows(shards.tables[shard], owned.get(shard));
+            return null;
+        });
+        table.setDeletedRows(table.getDeletedRows() + sortedRows.length);
+    }
+
+    public void createPendingRows(TableInfo table) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.createPendingRows(table);
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            write(shards.engines[shard]);
+            shards.engines[shard].createPendingRows(shards.tables[shard]);
+        }
+        this.pendingCopies.put(table.getID(), new PendingCopy(shards.count()));
+    }
+
+    public void addPendingRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.addPendingRow(table, rowNum, values);
+            return;
+        }
+        int shard = shardOfRecord(shards, table, values);
+        write(shards.engines[shard]);
+        shards.engines[shard].addPendingRow(shards.tables[shard], rowNum, values);
+        this.buffered.add(shards.engines[shard]);
+        pendingCopy(shards, table).add(rowNum, shard);
+    }
+
+    public void deletePendingRows(TableInfo table, int[] sortedRows) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.deletePendingRows(table, sortedRows);
+            return;
+        }
+        PendingCopy copy = pendingCopy(shards, table);
+        Map<Integer, List<Integer>> rowsByShard = new LinkedHashMap<>();
+        for (int row : sortedRows) {
+            rowsByShard.computeIfAbsent((int) copy.shardOfRow[row], shard -> new ArrayList<>()).add(row);
+        }
+        for (Map.Entry<Integer, List<Integer>> shard : rowsByShard.entrySet()) {
+            write(shards.engines[shard.getKey()]);
+            shards.engines[shard.getKey()].deletePendingRows(shards.tables[shard.getKey()],
+                    shard.getValue().stream().mapToInt(Integer::intValue).toArray());
+            // may count rows a rollback undid, which only makes the shard check for tombstones
+            copy.deletedRows[shard.getKey()] += shard.getValue().size();
+        }
+    }
+
+    // the main file records the new LAST_ROW and the switch, which the shards make once it committed
+    public void switchToPendingRows(TableInfo table, int lastRow, int deletedRows) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards != null) {
+            this.main.recordShardSwitch(table, this.committedSeq + 1);
+            this.switching.add(table);
+        }
+        this.main.switchToPendingRows(table, lastRow, deletedRows);
+    }
+
+    public void dropPendingRows(TableInfo table) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.dropPendingRows(table);
+            return;
+        }
+        if (this.unfinishedSwitches.containsKey(table.getID())) {
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            write(shards.engines[shard]);
+            shards.engines[shard].dropPendingRows(shards.tables[shard]);
+        }
+        this.pendingCopies.remove(table.getID());
+    }
+
+    private PendingCopy pendingCopy(Shards shards, TableInfo table) {
+        return this.pendingCopies.computeIfAbsent(table.getID(), id -> new PendingCopy(shards.count()));
+    }
+
+    // ========== bulk loading ========== //
+
+    public void beginBulkLoad(TableInfo table, long rows) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.beginBulkLoad(table, rows);
+            return;
+        }
+        for (int shard = 0; shard < shards.count(); shard++) {
+            write(shards.engines[shard]);
+            shards.engines[shard].beginBulkLoad(shards.tables[shard], rows / shards.count());
+        }
+    }
+
+    public void loadBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.loadBuckets(table, rowsByBucket);
+            return;
+        }
+        Map<Integer, Map<Long, List<Integer>>> byShard = splitBuckets(shards, rowsByBucket);
+        fanOut(new ArrayList<>(byShard.keySet()), shard -> {
+            shards.engines[shard].loadBuckets(shards.tables[shard], byShard.get(shard));
+            return null;
+        });
+    }
+
+    public void endBulkLoad(TableInfo table) throws SQLException {
+        Shards shards = shardsOf(table);
+        if (shards == null) {
+            this.main.endBulkLoad(table);
+            return;
+        }
+        fanOut(shards.all(), shard -> {
+            shards.engines[shard].endBulkLoad(shards.tables[shard]);
+            return null;
+        });
+    }
+
+    // ========== column statistics ========== //
+    // They describe the whole table and are kept in the main file, whose commit is
+    // the one that decides which rows of the shards exist.
+
+    public ColumnStatistics loadStatistics(TableInfo table) throws SQLException {
+        return this.main.loadStatistics(table);
+    }
+
+    public void saveStatistics(TableInfo table, ColumnStatistics statistics) throws SQLException {
+        this.main.saveStatistics(table, statistics);
+    }
+
+    // ========== merging the shards ========== //
+
+    // the records of a cursor per shard in row order, opened on the caller's thread
+    private RecordCursor openMerged(Shards shards, List<Integer> reading, ShardTask<Integer, RecordCursor> open)
+            throws SQLException {
+        if (reading.isEmpty()) {
+            return RecordCursor.empty();
+        }
+        if (reading.size() == 1) {
+            return open.run(reading.get(0));
+        }
+        List<ShardBuffer> buffers = new ArrayList<>();
+        try {
+            for (int shard : reading) {
+                buffers.add(new ShardBuffer(open.run(shard)));
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (ShardBuffer buffer : buffers) {
+                buffer.cursor.close();
+            }
+            throw e;
+        }
+        return new MergedCursor(buffers);
+    }
+
+    // the records a shard has read ahead of the merge, with their row numbers
+    private static class ShardBuffer {
+        private RecordCursor cursor;
+        private List<List<String>> records = new ArrayList<>();
+        private int[] rows = new int[FETCH];
+        private int position = 0;
+        private boolean exhausted = false;
+
+        ShardBuffer(RecordCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        int remaining() {
+            return this.records.size() - this.position;
+        }
+
+        // reads until FETCH records are buffered, keeping the ones not merged yet in front
+        void fill() throws SQLException {
+            int kept = remaining();
+            this.records.subList(0, this.position).clear();
+            System.arraycopy(this.rows, this.position, this.rows, 0, kept);
+            this.position = 0;
+            while (this.records.size() < FETCH) {
+                List<String> record = this.cursor.next();
+                if (record == null) {
+                    this.exhausted = true;
+                    return;
+                }
+                this.rows[this.records.size()] = this.cursor.getRowNum();
+                this.records.add(record);
+            }
+        }
+    }
+
+    /*
+     * Whenever the buffer of a shard runs empty, every shard whose buffer is down to
+     * a quarter reads ahead at the same time, one task each, while the merge itself
+     * stays on the caller's thread. Nothing runs in between calls, so the connections
+     * of the shards are only used while the caller waits.
+     */
+    private class MergedCursor implements RecordCursor {
+        private List<ShardBuffer> buffers;
+        private int rowNum = -1;
+
+        MergedCursor(List<ShardBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        public List<String> next() throws SQLException {
+            boolean empty = false;
+            for (ShardBuffer buffer : this.buffers) {
+                empty |= buffer.remaining() == 0 && !buffer.exhausted;
+            }
+            if (empty) {
+                List<ShardBuffer> low = new ArrayList<>();
+                for (ShardBuffer buffer : this.buffers) {
+                    if (!buffer.exhausted && buffer.remaining() < FETCH / 4) {
+                        low.add(buffer);
+                    }
+                }
+                fanOut(low, buffer -> {
+                    buffer.fill();
+                    return null;
+                });
+            }
+            ShardBuffer first = null;
+            for (ShardBuffer buffer : this.buffers) {
+                if (buffer.remaining() > 0
+                        && (first == null || buffer.rows[buffer.position] < first.rows[first.position])) {
+                    first = buffer;
+                }
+            }
+            if (first == null) {
+                this.rowNum = -1;
+                return null;
+            }
+            this.rowNum = first.rows[first.position];
+            return first.records.get(first.position++);
+        }
+
+        public int getRowNum() {
+            return this.rowNum;
+        }
+
+        public void close() throws SQLException {
+            SQLException failure = null;
+            for (ShardBuffer buffer : this.buffers) {
+                try {
+                    buffer.cursor.close();
+                } catch (SQLException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Answers a group of lookups on one table with a single pass over its rows instead
+ * of one scan per lookup, see Database.setLookupBatch. It is meant for the lookups
+ * that would read the whole table anyway: those whose bucket plan is a scan, and
+ * those without the index on a table the storage has no per column index for.
+ *
+ * When every lookup of the group uses the index, one pass over the buckets first
+ * tests the hash of each row against the bound hash bits of every pattern, and only
+ * the rows some pattern may match are read. Patterns are grouped by those bits, so a
+ * bucket costs one set probe per distinct set of bound columns, not one test per
+ * pattern. The rows are then tested the same way: every pattern sits under the
+ * value of its first bound column, and a row is only compared with the patterns
+ * filed under its own values.
+ */
+class SharedScan {
+    interface Match {
+        void accept(int pattern, List<String> record);
+    }
+
+    private TableInfo table;
+    private List<LookupPattern> patterns;
+    // column -> value of that column -> patterns whose first bound column it is
+    private Map<Integer, Map<String, List<Integer>>> byFirstBound = new LinkedHashMap<>();
+    // patterns that bind no column and match every row
+    private List<Integer> unbound = new ArrayList<>();
+
+    SharedScan(TableInfo table, List<LookupPattern> patterns) {
+        this.table = table;
+        this.patterns = patterns;
+        for (int p = 0; p < patterns.size(); p++) {
+            List<String> values = patterns.get(p).getValues();
+            int column = 0;
+            while (column < values.size() && values.get(column).equals("*")) {
+                column++;
+            }
+            if (column == values.size()) {
+                this.unbound.add(p);
+            } else {
+                // under every value of an IN list, a row has only one of them
+                Map<String, List<Integer>> filed = this.byFirstBound.computeIfAbsent(column, c -> new HashMap<>());
+                for (String choice : LookupPattern.choices(values.get(column))) {
+                    filed.computeIfAbsent(choice, v -> new ArrayList<>()).add(p);
+                }
+            }
+        }
+    }
+
+    // whether a lookup would read the whole table on its own
+    static boolean canShare(LookupPattern pattern, StorageEngine storage) {
+        if (!pattern.usesIndex()) {
+            return !storage.hasColumnIndex(pattern.getTable());
+        }
+        return pattern.planFor(pattern.getTable()).isScan();
+    }
+
+    // calls match for every record of every pattern, the records of each pattern in row order
+    void run(StorageEngine storage, Match match) throws SQLException {
+        Set<Integer> rows = candidateRows(storage);
+        try (RecordCursor records = rows == null ? storage.openScan(this.table)
+                : storage.openRecords(this.table, rows)) {
+            List<String> record;
+            while ((record = records.next()) != null) {
+                for (int p : this.unbound) {
+                    match.accept(p, record);
+                }
+                for (Map.Entry<Integer, Map<String, List<Integer>>> column : this.byFirstBound.entrySet()) {
+                    List<Integer> filed = column.getValue().get(record.get(column.getKey()));
+                    if (filed == null) {
+                        continue;
+                    }
+                    for (int p : filed) {
+                        if (this.patterns.get(p).matches(record)) {
+                            match.accept(p, record);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // the rows whose hash some pattern may match, or null when every row has to be read
+    private Set<Integer> candidateRows(StorageEngine storage) throws SQLException {
+        if (!this.unbound.isEmpty()) {
+            return null;
+        }
+        // bound hash bits -> their values, one entry per pattern
+        Map<Long, Set<Long>> boundValues = new HashMap<>();
+        for (LookupPattern pattern : this.patterns) {
+            if (!pattern.usesIndex()) {
+                return null;
+            }
+            // the plan of a scan is its residual, the bits of all of its bound columns
+            BucketPlan plan = pattern.planFor(this.table);
+            boundValues.computeIfAbsent(plan.getResidualMask(), mask -> new HashSet<>()).add(plan.getResidualValue());
+        }
+        Set<Integer> rows = new HashSet<>();
+        storage.forEachBucketRow(this.table, (bucket, row) -> {
+            for (Map.Entry<Long, Set<Long>> bound : boundValues.entrySet()) {
+                if (bound.getValue().contains(bucket & bound.getKey())) {
+                    rows.add(row);
+                    return;
+                }
+            }
+        });
+        return rows;
+    }
+}
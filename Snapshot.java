@@ -0,0 +1,234 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A binary copy of one PH table, written by the "x" instruction and loaded by "b",
+ * so a table can be moved or rebuilt without replaying its inserts. Numbers are big
+ * endian and strings are an int byte length followed by their UTF-8 bytes:
+ *
+ *   magic "PHSNAP01"
+ *   name, hash function, row format
+ *   int num_columns, then int COL_RANGE per column
+ *   int rows, then per row: int length, its RecordCodec bytes
+ *   int buckets, then per bucket in increasing order: long bucket, int count,
+ *      then int row per row in increasing order
+ *
+ * Only live rows are written, numbered 1 ... rows in the order they had, so a
+ * snapshot of a table with deleted rows comes out compacted. The buckets are the
+ * ones the table has, so loading them hashes nothing, and the records are the
+ * bytes a packed table or the mmap storage keeps, which they store as they are.
+ */
+public class Snapshot {
+    private static final byte[] MAGIC = "PHSNAP01".getBytes(StandardCharsets.US_ASCII);
+    // rows handed to the storage engine at a time while loading
+    static final int LOAD_BATCH = 10000;
+    // the part of the file mapped at a time, a mapping cannot pass 2GB
+    private static final long WINDOW = 1L << 30;
+
+    // ========== export ========== //
+
+    // returns the number of rows written
+    public static int write(StorageEngine storage, TableInfo table, Path path) throws SQLException, IOException {
+        // the stored row number of every row written, in row order, to renumber the buckets by
+        int[] storedRows = new int[1024];
+        int numRows = 0;
+        long rowCountOffset;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                1 << 16))) {
+            out.write(MAGIC);
+            writeString(out, table.getName());
+            writeString(out, table.getHashFunction().getName());
+            writeString(out, table.getRowFormat());
+            out.writeInt(table.getNumColumns());
+            for (int range : table.getColumnRanges()) {
+                out.writeInt(range);
+            }
+            // filled in once the rows are counted
+            rowCountOffset = out.size();
+            out.writeInt(0);
+            try (RecordCursor records = storage.openScan(table)) {
+                List<String> record;
+                while ((record = records.next()) != null) {
+                    if (numRows == storedRows.length) {
+                        storedRows = Arrays.copyOf(storedRows, 2 * numRows);
+                    }
+                    storedRows[numRows++] = records.getRowNum();
+                    byte[] encoded = RecordCodec.encode(record);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            }
+
+            int[] sortedRows = storedRows;
+            int written = numRows;
+            Map<Long, List<Integer>> rowsByBucket = new HashMap<>();
+            storage.forEachBucketRow(table, (bucket, row) -> {
+                // deleted rows stay in their buckets until a compaction
+                int k = Arrays.binarySearch(sortedRows, 0, written, row);
+                if (k >= 0) {
+                    rowsByBucket.computeIfAbsent(bucket, b -> new ArrayList<>()).add(k + 1);
+                }
+            });
+            List<Long> buckets = new ArrayList<>(rowsByBucket.keySet());
+            Collections.sort(buckets);
+            out.writeInt(buckets.size());
+            for (long bucket : buckets) {
+                List<Integer> rows = rowsByBucket.get(bucket);
+                Collections.sort(rows);
+                out.writeLong(bucket);
+                out.writeInt(rows.size());
+                for (int row : rows) {
+                    out.writeInt(row);
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, numRows), rowCountOffset);
+        }
+        return numRows;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // ========== import ========== //
+
+    /*
+     * Reads a snapshot through a memory mapping of the file, a window of it at a
+     * time. The constructor reads the header, after which the rows and then the
+     * buckets are read in the order they were written.
+     */
+    static class Reader implements AutoCloseable {
+        private FileChannel channel;
+        private long size;
+        private MappedByteBuffer buffer;
+        // where the buffer starts in the file
+        private long base = 0;
+
+        private String hashFunction;
+        private String rowFormat;
+        private List<Integer> columnRanges = new ArrayList<>();
+        private int rows;
+        private int rowsRead = 0;
+        private int buckets = -1;
+        private int bucketsRead = 0;
+
+        Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = this.channel.size();
+            map(0);
+            byte[] magic = new byte[MAGIC.length];
+            ensure(magic.length);
+            this.buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a PH table snapshot: " + path);
+            }
+            // the name it was exported under, the "b" instruction names the table itself
+            readString();
+            this.hashFunction = readString();
+            this.rowFormat = readString();
+            int numColumns = readInt();
+            for (int i = 0; i < numColumns; i++) {
+                this.columnRanges.add(readInt());
+            }
+            this.rows = readInt();
+        }
+
+        String getHashFunction() { return this.hashFunction; }
+        String getRowFormat() { return this.rowFormat; }
+        List<Integer> getColumnRanges() { return this.columnRanges; }
+        int getRows() { return this.rows; }
+
+        // the RecordCodec bytes of the next row, null after the last one
+        byte[] nextRecord() throws IOException {
+            if (this.rowsRead == this.rows) {
+                return null;
+            }
+            this.rowsRead++;
+            byte[] record = new byte[readInt()];
+            ensure(record.length);
+            this.buffer.get(record);
+            return record;
+        }
+
+        // up to maxRows rows of whole buckets in bucket order, empty after the last one.
+        // Only once every row has been read
+        Map<Long, List<Integer>> nextBuckets(int maxRows) throws IOException {
+            if (this.buckets < 0) {
+                this.buckets = readInt();
+            }
+            Map<Long, List<Integer>> rowsByBucket = new LinkedHashMap<>();
+            int numRows = 0;
+            while (this.bucketsRead < this.buckets && numRows < maxRows) {
+                long bucket = readLong();
+                int count = readInt();
+                List<Integer> rows = new ArrayList<>(count);
+                for (int k = 0; k < count; k++) {
+                    rows.add(readInt());
+                }
+                rowsByBucket.put(bucket, rows);
+                numRows += count;
+                this.bucketsRead++;
+            }
+            return rowsByBucket;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readInt()];
+            ensure(bytes.length);
+            this.buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int readInt() throws IOException {
+            ensure(4);
+            return this.buffer.getInt();
+        }
+
+        private long readLong() throws IOException {
+            ensure(8);
+            return this.buffer.getLong();
+        }
+
+        // moves the window so that the next length bytes are in it
+        private void ensure(int length) throws IOException {
+            if (this.buffer.remaining() >= length) {
+                return;
+            }
+            long position = this.base + this.buffer.position();
+            if (position + length > this.size) {
+                throw new IOException("snapshot ends early at byte " + position);
+            }
+            map(position);
+        }
+
+        private void map(long position) throws IOException {
+            this.base = position;
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(WINDOW, this.size - position));
+        }
+
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/*
+ * Turns a (ROW_NUM, VALUE) cursor over PH_TABLE_ROWS or a (ROW_NUM, RECORD) cursor
+ * over PH_PACKED_ROWS, both ordered by ROW_NUM, into one record per row. Rows that
+ * keep rejects are skipped without being decoded. The statement belongs to the
+ * cursor and is closed with it.
+ */
+class SqliteRecordCursor implements RecordCursor {
+    private TableInfo table;
+    private boolean packed;
+    private PreparedStatement statement;
+    private ResultSet results;
+    private IntPredicate keep;
+    private TableStats stats = Stats.current();
+
+    // results stands on the first cell of a row that was not returned yet
+    private boolean pending = false;
+    private boolean exhausted = false;
+    private int rowNum = -1;
+
+    SqliteRecordCursor(TableInfo table, PreparedStatement statement, IntPredicate keep) throws SQLException {
+        this.table = table;
+        this.packed = table.getRowFormat().equals(RowStore.FORMAT_PACKED);
+        this.statement = statement;
+        this.keep = keep;
+        this.results = statement.executeQuery();
+        this.stats.countSqlStatements(1);
+    }
+
+    public int getRowNum() { return this.rowNum; }
+
+    public List<String> next() throws SQLException {
+        if (this.packed) {
+            while (!this.exhausted && advance()) {
+                int row = this.results.getInt(1);
+                if (this.keep == null || this.keep.test(row)) {
+                    this.rowNum = row;
+                    return RecordCodec.decode(this.results.getBytes(2), this.table.getNumColumns());
+                }
+            }
+            return null;
+        }
+
+        while (this.pending || (!this.exhausted && advance())) {
+            this.pending = false;
+            int row = this.results.getInt(1);
+            if (this.keep != null && !this.keep.test(row)) {
+                continue;
+            }
+            List<String> record = new ArrayList<>(this.table.getNumColumns());
+            record.add(this.results.getString(2));
+            while (advance()) {
+                if (this.results.getInt(1) != row) {
+                    this.pending = true;
+                    break;
+                }
+                record.add(this.results.getString(2));
+            }
+            this.rowNum = row;
+            return record;
+        }
+        return null;
+    }
+
+    // the statement is closed as soon as the last row has been read
+    private boolean advance() throws SQLException {
+        if (this.results.next()) {
+            this.stats.countRowsStepped(1);
+            return true;
+        }
+        this.exhausted = true;
+        close();
+        return false;
+    }
+
+    public void close() throws SQLException {
+        if (!this.statement.isClosed()) {
+            this.statement.close();
+        }
+    }
+}
@@ -0,0 +1,887 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/*
+ * The original storage: every PH table lives in the PH_TABLE, PH_COL_RANGES,
+ * PH_TABLE_ROWS / PH_PACKED_ROWS and PH_HASH_BUCKETS tables of one sqlite file.
+ * PH_SHARDS lists the files of the tables ShardedStorageEngine spreads over several,
+ * and a file that holds shards of them keeps the PH_SHARD_JOURNAL that lets the main
+ * file undo what a shard committed in a transaction the main file did not.
+ *
+ * With readers > 0 the file is switched to WAL journal mode and that many read
+ * only connections are opened next to the one that writes. Lookups made outside
+ * of a transaction borrow one of them, so several can run at once and none of
+ * them waits for the writer. A read only connection starts a new read transaction
+ * for every statement, so it sees everything committed before the statement.
+ */
+public class SqliteStorageEngine implements StorageEngine {
+    private String dbName;
+    private Connection connection = null;
+    private RowStore rowStore;
+    private BucketStore bucketStore;
+
+    private int readerCount;
+    private BlockingQueue<Reader> readers = null;
+    private volatile boolean inTransaction = false;
+    // a shard file of ShardedStorageEngine, whose pending copies it drops itself
+    private boolean shard;
+    // the transaction of the main file the current one of a shard file belongs to, 0 outside of one
+    private long journalSeq = 0;
+    // whether a bulk load dropped the value index of its table, to build again at its end
+    private boolean valueIndexDropped = false;
+    // saveStatistics runs in every delete and every Database.UNSAVED_ROWS inserts
+    private PreparedStatement replaceStatistics;
+    private PreparedStatement replaceSketch;
+
+    // a read only connection with its own statements
+    private static class Reader {
+        private Connection connection;
+        private RowStore rowStore;
+        private BucketStore bucketStore;
+
+        private Reader(Connection connection) {
+            this.connection = connection;
+            this.rowStore = new RowStore(connection);
+            this.bucketStore = new BucketStore(connection);
+        }
+    }
+
+    private interface ReadTask<T> {
+        T run(RowStore rowStore, BucketStore bucketStore) throws SQLException;
+    }
+
+    private String sqlite_url = "jdbc:sqlite:";
+
+    public SqliteStorageEngine(String db_name) {
+        this(db_name, 0);
+    }
+
+    public SqliteStorageEngine(String db_name, int readers) {
+        this(db_name, readers, false);
+    }
+
+    public SqliteStorageEngine(String db_name, int readers, boolean shard) {
+        this.dbName = db_name;
+        this.readerCount = readers;
+        this.shard = shard;
+    }
+
+    public boolean connectToDbms(String db_name) {
+        String url = sqlite_url + db_name;
+        try {
+            Class.forName("org.sqlite.JDBC");
+            this.connection = DriverManager.getConnection(url);
+        } catch (Exception e) {
+            System.out.println("encountered an error connecting to sqlite file at");
+            System.out.println("url: " + url);
+            System.out.println(e);
+        }
+
+        return connection == null;
+    }
+
+    public void open() throws SQLException {
+        this.connectToDbms(this.dbName);
+        if (this.connection == null) {
+            throw new SQLException("db connection is null");
+        }
+        Statement statement = this.connection.createStatement();
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_TABLE (" +
+                "   TABLE_ID INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "   NAME TEXT UNIQUE," +
+                "   NUM_COLUMNS INTEGER," +
+                "   LAST_ROW INTEGER," +
+                "   HASH_FUNCTION TEXT DEFAULT 'md5'," +
+                "   ROW_FORMAT TEXT DEFAULT 'cells'" +
+                ");");
+        // databases created before tables recorded their hash function all used md5
+        if (!hasColumn("PH_TABLE", "HASH_FUNCTION")) {
+            statement.executeUpdate("ALTER TABLE PH_TABLE ADD COLUMN HASH_FUNCTION TEXT DEFAULT 'md5'");
+        }
+        if (!hasColumn("PH_TABLE", "ROW_FORMAT")) {
+            statement.executeUpdate("ALTER TABLE PH_TABLE ADD COLUMN ROW_FORMAT TEXT DEFAULT 'cells'");
+        }
+        statement.executeUpdate("CREATE INDEX IF NOT EXISTS PH_TABLE_NAME_INDEX ON PH_TABLE(NAME)");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_COL_RANGES (" +
+                "   TABLE_ID INTEGER," +
+                "   COL_NUM INTEGER," +
+                "   COL_RANGE INTEGER," +
+                "   PRIMARY KEY (TABLE_ID, COL_NUM)" +
+                ");");
+        // the ColumnStatistics of each table: the LAST_ROW they were saved at, the rows
+        // and the heavy hitters of every column, which every write changes, and the
+        // sketch of each column, which only changes now and then once the column has
+        // seen a few thousand values
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_TABLE_STATISTICS (" +
+                "   TABLE_ID INTEGER PRIMARY KEY," +
+                "   LAST_ROW INTEGER," +
+                "   ROWS INTEGER," +
+                "   HEAVY_HITTERS BLOB" +
+                ");");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_COLUMN_SKETCHES (" +
+                "   TABLE_ID INTEGER," +
+                "   COL_NUM INTEGER," +
+                "   SKETCH BLOB," +
+                "   PRIMARY KEY (TABLE_ID, COL_NUM)" +
+                ");");
+        // the files of the sharded tables, see ShardedStorageEngine
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_SHARDS (" +
+                "   TABLE_ID INTEGER," +
+                "   SHARD INTEGER," +
+                "   FILE TEXT," +
+                "   PRIMARY KEY (TABLE_ID, SHARD)" +
+                ");");
+        if (this.shard) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_SHARD_JOURNAL (" +
+                    "   SEQ INTEGER," +
+                    "   KIND TEXT," +
+                    "   TABLE_ID INTEGER," +
+                    "   ROW_NUM INTEGER" +
+                    ");");
+        } else {
+            // the last transaction that wrote to shard files, and the compactions of
+            // sharded tables committed here that not every shard has switched to yet
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_SHARD_COMMIT (" +
+                    "   ID INTEGER PRIMARY KEY," +
+                    "   SEQ INTEGER" +
+                    ");");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS PH_SHARD_SWITCHES (" +
+                    "   TABLE_ID INTEGER PRIMARY KEY," +
+                    "   SEQ INTEGER" +
+                    ");");
+        }
+        this.rowStore = new RowStore(this.connection);
+        this.rowStore.initialize(statement);
+        this.bucketStore = new BucketStore(this.connection);
+        this.bucketStore.initialize(statement);
+        if (!this.shard) {
+            RowStore.dropPendingCopies(statement);
+            BucketStore.dropPendingCopies(statement);
+        }
+        this.replaceStatistics = this.connection.prepareStatement(
+                "INSERT OR REPLACE INTO PH_TABLE_STATISTICS (TABLE_ID, LAST_ROW, ROWS, HEAVY_HITTERS) VALUES (?, ?, ?, ?)");
+        this.replaceSketch = this.connection.prepareStatement(
+                "INSERT OR REPLACE INTO PH_COLUMN_SKETCHES (TABLE_ID, COL_NUM, SKETCH) VALUES (?, ?, ?)");
+        if (this.readerCount > 0) {
+            // WAL lets the read only connections read while the writer appends
+            statement.execute("PRAGMA journal_mode=WAL");
+            openReaders();
+        }
+        statement.close();
+    }
+
+    private void openReaders() throws SQLException {
+        Properties readOnly = new Properties();
+        // SQLITE_OPEN_READONLY
+        readOnly.setProperty("open_mode", "1");
+        this.readers = new ArrayBlockingQueue<>(this.readerCount);
+        for (int i = 0; i < this.readerCount; i++) {
+            this.readers.add(new Reader(DriverManager.getConnection(sqlite_url + this.dbName, readOnly)));
+        }
+    }
+
+    private boolean hasColumn(String table, String column) throws SQLException {
+        Statement statement = this.connection.createStatement();
+        ResultSet columns = statement.executeQuery("PRAGMA table_info(" + table + ")");
+        boolean found = false;
+        while (columns.next()) {
+            found |= columns.getString("name").equalsIgnoreCase(column);
+        }
+        statement.close();
+        return found;
+    }
+
+    public boolean supportsConcurrentReads() {
+        return this.readers != null;
+    }
+
+    // runs the task on a reader when there is a pool and no open transaction, whose
+    // uncommitted writes only the writer can see
+    private <T> T read(ReadTask<T> task) throws SQLException {
+        Reader reader = borrowReader();
+        if (reader == null) {
+            return task.run(this.rowStore, this.bucketStore);
+        }
+        try {
+            return task.run(reader.rowStore, reader.bucketStore);
+        } finally {
+            this.readers.add(reader);
+        }
+    }
+
+    // like read, but the reader is only given back when the cursor is closed
+    private RecordCursor openCursor(ReadTask<RecordCursor> task) throws SQLException {
+        Reader reader = borrowReader();
+        if (reader == null) {
+            return task.run(this.rowStore, this.bucketStore);
+        }
+        RecordCursor cursor;
+        try {
+            cursor = task.run(reader.rowStore, reader.bucketStore);
+        } catch (SQLException | RuntimeException e) {
+            this.readers.add(reader);
+            throw e;
+        }
+        return new RecordCursor() {
+            private boolean closed = false;
+
+            public List<String> next() throws SQLException {
+                return cursor.next();
+            }
+
+            public int getRowNum() {
+                return cursor.getRowNum();
+            }
+
+            public void close() throws SQLException {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                try {
+                    cursor.close();
+                } finally {
+                    readers.add(reader);
+                }
+            }
+        };
+    }
+
+    // null when reads go through the writer connection
+    private Reader borrowReader() throws SQLException {
+        if (this.readers == null || this.inTransaction) {
+            return null;
+        }
+        try {
+            return this.readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a reader connection", e);
+        }
+    }
+
+    public void close() throws SQLException {
+        if (this.readers != null) {
+            for (Reader reader : this.readers) {
+                reader.connection.close();
+            }
+        }
+        if (this.connection != null) {
+            this.connection.close();
+        }
+    }
+
+    public void begin() throws SQLException {
+        this.connection.setAutoCommit(false);
+        this.inTransaction = true;
+    }
+
+    public void commit() throws SQLException {
+        this.connection.commit();
+        // COMMIT is a statement of its own, and the one that waits for the disk
+        Stats.countSqlStatements(1);
+        this.connection.setAutoCommit(true);
+        this.inTransaction = false;
+        this.journalSeq = 0;
+    }
+
+    public void rollback() throws SQLException {
+        try {
+            this.connection.rollback();
+        } finally {
+            this.connection.setAutoCommit(true);
+            this.inTransaction = false;
+            this.journalSeq = 0;
+            // a dropped index comes back with the rollback
+            this.valueIndexDropped = false;
+        }
+    }
+
+    // ========== catalog ========== //
+
+    public List<TableInfo> loadTables() throws SQLException {
+        Map<Integer, List<Integer>> rangesByTable = new HashMap<>();
+        Statement statement = this.connection.createStatement();
+        ResultSet ranges = statement.executeQuery(
+                "SELECT TABLE_ID, COL_RANGE FROM PH_COL_RANGES ORDER BY TABLE_ID, COL_NUM");
+        while (ranges.next()) {
+            rangesByTable.computeIfAbsent(ranges.getInt(1), id -> new ArrayList<>()).add(ranges.getInt(2));
+        }
+
+        Map<Integer, Integer> deletedByTable = this.rowStore.countDeletedRows();
+        List<TableInfo> loaded = new ArrayList<>();
+        ResultSet tables = statement.executeQuery(
+                "SELECT TABLE_ID, NAME, NUM_COLUMNS, LAST_ROW, HASH_FUNCTION, ROW_FORMAT FROM PH_TABLE");
+        while (tables.next()) {
+            int tableID = tables.getInt(1);
+            if (!rangesByTable.containsKey(tableID)) {
+                System.out.println("TableID: " + Integer.toString(tableID) + "not found in col ranges information table");
+                System.exit(1);
+            }
+            TableInfo table = new TableInfo(tables.getString(2), tableID, tables.getInt(3), tables.getInt(4),
+                    rangesByTable.get(tableID), PartitionHashFunction.forName(tables.getString(5)));
+            table.setRowFormat(tables.getString(6));
+            table.setDeletedRows(deletedByTable.getOrDefault(tableID, 0));
+            loaded.add(table);
+        }
+        statement.close();
+        return loaded;
+    }
+
+    public TableInfo createTable(String name, List<Integer> columnRanges, PartitionHashFunction hashFunction,
+            String rowFormat) throws SQLException {
+        int newID = insertTableData(name, columnRanges.size(), hashFunction.getName(), rowFormat);
+        insertColumnRanges(columnRanges, newID);
+        TableInfo table = new TableInfo(name, newID, columnRanges.size(), 1, columnRanges, hashFunction);
+        table.setRowFormat(rowFormat);
+        if (rowFormat.equals(RowStore.FORMAT_INDEXED)) {
+            try (Statement statement = this.connection.createStatement()) {
+                RowStore.createValueIndex(statement, newID);
+            }
+            Stats.countSqlStatements(1);
+        }
+        return table;
+    }
+
+    private int insertTableData(String tableName, int numColumns, String hashFunction, String rowFormat)
+            throws SQLException {
+        int newID = -1;
+        String sqlInsertTable = "INSERT INTO PH_TABLE (NAME, NUM_COLUMNS, LAST_ROW, HASH_FUNCTION, ROW_FORMAT)" +
+                " VALUES (?, ?, ?, ?, ?)";
+        PreparedStatement insertStatementTable = connection.prepareStatement(sqlInsertTable,
+                PreparedStatement.RETURN_GENERATED_KEYS);
+        insertStatementTable.setString(1, tableName);
+        insertStatementTable.setInt(2, numColumns);
+        insertStatementTable.setInt(3, 1);
+        insertStatementTable.setString(4, hashFunction);
+        insertStatementTable.setString(5, rowFormat);
+        insertStatementTable.executeUpdate();
+        Stats.countSqlStatements(1);
+        ResultSet keys = insertStatementTable.getGeneratedKeys();
+        if (keys.next()) {
+            newID = keys.getInt(1);
+        } else {
+            System.out.println("No auto-generated keys returned.");
+            System.exit(1);
+        }
+        insertStatementTable.close();
+        return newID;
+    }
+
+    private void insertColumnRanges(List<Integer> columnRanges, int tableID) throws SQLException {
+        String sqlInsertColRange = "INSERT INTO PH_COL_RANGES (TABLE_ID, COL_NUM, COL_RANGE) VALUES (?, ?, ?)";
+        PreparedStatement insertStatementColRanges = connection.prepareStatement(sqlInsertColRange);
+        // design choice java array list is zero indexed but sql table is one indexed
+        for (int i = 0; i < columnRanges.size(); i++) {
+            insertStatementColRanges.setInt(1, tableID);
+            insertStatementColRanges.setInt(2, i + 1);
+            insertStatementColRanges.setInt(3, columnRanges.get(i).intValue());
+            insertStatementColRanges.executeUpdate();
+        }
+        Stats.countSqlStatements(columnRanges.size());
+        insertStatementColRanges.close();
+    }
+
+    public void updateLastRow(TableInfo table) throws SQLException {
+        String sqlUpdateLastRow = "UPDATE PH_TABLE SET LAST_ROW = ? WHERE TABLE_ID = ?";
+        PreparedStatement pStatement = this.connection.prepareStatement(sqlUpdateLastRow);
+        pStatement.setInt(1, table.getLastRow());
+        pStatement.setInt(2, table.getID());
+        pStatement.executeUpdate();
+        pStatement.close();
+        Stats.countSqlStatements(1);
+    }
+
+    // the shard files of every sharded table by TABLE_ID, in shard order
+    public Map<Integer, List<String>> loadShardMap() throws SQLException {
+        Map<Integer, List<String>> filesByTable = new HashMap<>();
+        Statement statement = this.connection.createStatement();
+        ResultSet shards = statement.executeQuery("SELECT TABLE_ID, FILE FROM PH_SHARDS ORDER BY TABLE_ID, SHARD");
+        while (shards.next()) {
+            filesByTable.computeIfAbsent(shards.getInt(1), id -> new ArrayList<>()).add(shards.getString(2));
+        }
+        statement.close();
+        return filesByTable;
+    }
+
+    public void recordShardMap(TableInfo table, List<String> files) throws SQLException {
+        PreparedStatement insertShard = this.connection.prepareStatement(
+                "INSERT INTO PH_SHARDS (TABLE_ID, SHARD, FILE) VALUES (?, ?, ?)");
+        for (int shard = 0; shard < files.size(); shard++) {
+            insertShard.setInt(1, table.getID());
+            insertShard.setInt(2, shard);
+            insertShard.setString(3, files.get(shard));
+            insertShard.executeUpdate();
+        }
+        insertShard.close();
+        Stats.countSqlStatements(files.size());
+    }
+
+    boolean inTransaction() {
+        return this.inTransaction;
+    }
+
+    // ========== shard transactions ========== //
+    /*
+     * ShardedStorageEngine commits the shard files of a transaction before the main
+     * file, and the main file is the one that decides whether it committed: it keeps
+     * the number of the last transaction that wrote to shards in PH_SHARD_COMMIT and
+     * the LAST_ROW of every table. What a shard committed in a transaction the main
+     * file did not is undone when the main file loads its tables:
+     *   - rows from the LAST_ROW of their table on are dropped, see dropRowsFrom
+     *   - tombstones are journaled in PH_SHARD_JOURNAL under the number of their
+     *     transaction, and the ones of a later transaction than the main file's are
+     *     dropped, see undoShardWrites
+     * A compaction cannot be undone like that, so a shard only switches to the new
+     * copy of a table after the main file committed the switch in PH_SHARD_SWITCHES,
+     * and journals that it did in the same transaction.
+     */
+
+    public long loadShardCommit() throws SQLException {
+        try (Statement statement = this.connection.createStatement();
+                ResultSet seq = statement.executeQuery("SELECT SEQ FROM PH_SHARD_COMMIT WHERE ID = 0")) {
+            return seq.next() ? seq.getLong(1) : 0;
+        }
+    }
+
+    public void recordShardCommit(long seq) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "INSERT OR REPLACE INTO PH_SHARD_COMMIT (ID, SEQ) VALUES (0, ?)")) {
+            pStatement.setLong(1, seq);
+            pStatement.executeUpdate();
+        }
+        Stats.countSqlStatements(1);
+    }
+
+    // the transaction that committed each switch not every shard has made yet, by TABLE_ID
+    public Map<Integer, Long> loadShardSwitches() throws SQLException {
+        Map<Integer, Long> switches = new HashMap<>();
+        try (Statement statement = this.connection.createStatement();
+                ResultSet rows = statement.executeQuery("SELECT TABLE_ID, SEQ FROM PH_SHARD_SWITCHES")) {
+            while (rows.next()) {
+                switches.put(rows.getInt(1), rows.getLong(2));
+            }
+        }
+        return switches;
+    }
+
+    public void recordShardSwitch(TableInfo table, long seq) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "INSERT OR REPLACE INTO PH_SHARD_SWITCHES (TABLE_ID, SEQ) VALUES (?, ?)")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.setLong(2, seq);
+            pStatement.executeUpdate();
+        }
+        Stats.countSqlStatements(1);
+    }
+
+    public void clearShardSwitch(TableInfo table) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "DELETE FROM PH_SHARD_SWITCHES WHERE TABLE_ID = ?")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.executeUpdate();
+        }
+        Stats.countSqlStatements(1);
+    }
+
+    // begins the part of transaction seq of the main file in a shard file, the tombstones
+    // of the transactions before it are committed and need no journal anymore
+    public void beginShardWrite(long seq) throws SQLException {
+        begin();
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "DELETE FROM PH_SHARD_JOURNAL WHERE KIND = 'deleted' AND SEQ < ?")) {
+            pStatement.setLong(1, seq);
+            pStatement.executeUpdate();
+        }
+        Stats.countSqlStatements(1);
+        this.journalSeq = seq;
+    }
+
+    private void journal(String kind, int tableID, int[] sortedRows) throws SQLException {
+        if (this.journalSeq == 0) {
+            return;
+        }
+        try (PreparedStatement insertEntry = this.connection.prepareStatement(
+                "INSERT INTO PH_SHARD_JOURNAL (SEQ, KIND, TABLE_ID, ROW_NUM) VALUES (?, ?, ?, ?)")) {
+            for (int row : sortedRows) {
+                insertEntry.setLong(1, this.journalSeq);
+                insertEntry.setString(2, kind);
+                insertEntry.setInt(3, tableID);
+                insertEntry.setInt(4, row);
+                insertEntry.addBatch();
+            }
+            Stats.countSqlStatements(insertEntry.executeBatch().length);
+        }
+    }
+
+    // drops the tombstones of the transactions after committedSeq, returns whether there were any
+    public boolean undoShardWrites(long committedSeq) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT 1 FROM PH_SHARD_JOURNAL WHERE KIND = 'deleted' AND SEQ > ? LIMIT 1")) {
+            pStatement.setLong(1, committedSeq);
+            try (ResultSet entries = pStatement.executeQuery()) {
+                if (!entries.next()) {
+                    return false;
+                }
+            }
+        }
+        begin();
+        try {
+            for (String sql : List.of("DELETE FROM PH_DELETED_ROWS WHERE (TABLE_ID, ROW_NUM) IN" +
+                            " (SELECT TABLE_ID, ROW_NUM FROM PH_SHARD_JOURNAL WHERE KIND = 'deleted' AND SEQ > ?)",
+                    "DELETE FROM PH_SHARD_JOURNAL WHERE KIND = 'deleted' AND SEQ > ?")) {
+                try (PreparedStatement pStatement = this.connection.prepareStatement(sql)) {
+                    pStatement.setLong(1, committedSeq);
+                    pStatement.executeUpdate();
+                }
+                Stats.countSqlStatements(1);
+            }
+            commit();
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        }
+        return true;
+    }
+
+    // whether the shard made the switch transaction seq of the main file committed
+    public boolean hasShardSwitched(TableInfo table, long seq) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT 1 FROM PH_SHARD_JOURNAL WHERE KIND = 'switched' AND TABLE_ID = ? AND SEQ = ?")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.setLong(2, seq);
+            try (ResultSet entries = pStatement.executeQuery()) {
+                return entries.next();
+            }
+        }
+    }
+
+    // switches the table to its pending copy in a transaction of its own, see Compaction
+    public void switchShard(TableInfo table, int lastRow, int deletedRows, long seq) throws SQLException {
+        begin();
+        try {
+            switchToPendingBuckets(table, table);
+            switchToPendingRows(table, lastRow, deletedRows);
+            try (PreparedStatement pStatement = this.connection.prepareStatement(
+                    "INSERT INTO PH_SHARD_JOURNAL (SEQ, KIND, TABLE_ID, ROW_NUM) VALUES (?, 'switched', ?, 0)")) {
+                pStatement.setLong(1, seq);
+                pStatement.setInt(2, table.getID());
+                pStatement.executeUpdate();
+            }
+            Stats.countSqlStatements(1);
+            commit();
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    // once the main file no longer waits for the switch
+    public void clearShardSwitched(TableInfo table) throws SQLException {
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "DELETE FROM PH_SHARD_JOURNAL WHERE KIND = 'switched' AND TABLE_ID = ?")) {
+            pStatement.setInt(1, table.getID());
+            pStatement.executeUpdate();
+        }
+        Stats.countSqlStatements(1);
+    }
+
+    /*
+     * Drops the rows of the table from firstRow on, with their tombstones and bucket
+     * entries, in a transaction of its own. Returns whether there were any.
+     */
+    public boolean dropRowsFrom(TableInfo table, int firstRow) throws SQLException {
+        if (!this.rowStore.hasRowsFrom(table, firstRow)) {
+            return false;
+        }
+        begin();
+        try {
+            this.rowStore.deleteRowsFrom(table, firstRow);
+            this.bucketStore.deleteRowsFrom(table.getID(), firstRow);
+            commit();
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        }
+        return true;
+    }
+
+    // drops every trace of the table with the name, if there is one
+    public void dropTable(String name) throws SQLException {
+        int tableID;
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT TABLE_ID FROM PH_TABLE WHERE NAME = ?")) {
+            pStatement.setString(1, name);
+            try (ResultSet table = pStatement.executeQuery()) {
+                if (!table.next()) {
+                    return;
+                }
+                tableID = table.getInt(1);
+            }
+        }
+        try (Statement statement = this.connection.createStatement()) {
+            RowStore.dropValueIndex(statement, tableID);
+        }
+        for (String rows : List.of("PH_TABLE", "PH_COL_RANGES", "PH_TABLE_STATISTICS", "PH_COLUMN_SKETCHES",
+                "PH_TABLE_ROWS", "PH_PACKED_ROWS", "PH_DELETED_ROWS", "PH_HASH_BUCKETS")) {
+            try (PreparedStatement pStatement = this.connection.prepareStatement(
+                    "DELETE FROM " + rows + " WHERE TABLE_ID = ? OR TABLE_ID = ?")) {
+                pStatement.setInt(1, tableID);
+                pStatement.setInt(2, -tableID);
+                pStatement.executeUpdate();
+            }
+            Stats.countSqlStatements(1);
+        }
+    }
+
+    // ========== rows ========== //
+
+    public void addRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        this.rowStore.addRow(table, rowNum, values);
+    }
+
+    public void flushRows() throws SQLException {
+        this.rowStore.flush();
+    }
+
+    public void addEncodedRow(TableInfo table, int rowNum, byte[] record) throws SQLException {
+        if (table.getRowFormat().equals(RowStore.FORMAT_PACKED)) {
+            this.rowStore.addEncodedRow(table, rowNum, record);
+        } else {
+            addRow(table, rowNum, RecordCodec.decode(record, table.getNumColumns()));
+        }
+    }
+
+    public boolean hasColumnIndex(TableInfo table) {
+        return !table.getRowFormat().equals(RowStore.FORMAT_PACKED);
+    }
+
+    public RowBitmap selectValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        return read((rowStore, bucketStore) -> rowStore.selectValidRows(table, columnNum, value));
+    }
+
+    // without a value index the count would read as much as selectValidRows does
+    public long countValidRows(TableInfo table, int columnNum, String value) throws SQLException {
+        if (!table.getRowFormat().equals(RowStore.FORMAT_INDEXED)) {
+            return -1;
+        }
+        return read((rowStore, bucketStore) -> rowStore.countValidRows(table, columnNum, value));
+    }
+
+    public RecordCursor openScan(TableInfo table) throws SQLException {
+        return openCursor((rowStore, bucketStore) -> rowStore.openScan(table));
+    }
+
+    public RecordCursor openRecords(TableInfo table, int[] sortedRows) throws SQLException {
+        return openCursor((rowStore, bucketStore) -> rowStore.openRows(table, RowIdCursor.of(sortedRows)));
+    }
+
+    public void convertRows(TableInfo table, String rowFormat) throws SQLException {
+        this.rowStore.convert(table, rowFormat);
+    }
+
+    // ========== buckets ========== //
+
+    public void appendBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        this.bucketStore.appendAll(table.getID(), rowsByBucket);
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan) throws SQLException {
+        return openCursor((rowStore, bucketStore) ->
+                rowStore.openRows(table, bucketStore.openRows(table.getID(), plan)));
+    }
+
+    public void forEachBucket(TableInfo table, LongConsumer consumer) throws SQLException {
+        read((rowStore, bucketStore) -> {
+            bucketStore.forEachBucket(table.getID(), consumer);
+            return null;
+        });
+    }
+
+    public void forEachBucketRow(TableInfo table, BucketRowConsumer consumer) throws SQLException {
+        read((rowStore, bucketStore) -> {
+            bucketStore.forEachBucketRow(table.getID(), consumer);
+            return null;
+        });
+    }
+
+    // ========== repartitioning ========== //
+
+    // the pending buckets are kept in PH_HASH_BUCKETS under the negated TABLE_ID,
+    // AUTOINCREMENT only hands out positive ones
+    private static int pendingID(TableInfo table) {
+        return -table.getID();
+    }
+
+    public void createPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        this.bucketStore.deleteAll(pendingID(table));
+    }
+
+    public void appendPendingBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        this.bucketStore.appendAll(pendingID(table), rowsByBucket);
+    }
+
+    public RecordCursor openBucketRecords(TableInfo table, BucketPlan plan, BucketPlan pendingPlan,
+            IntPredicate migrated) throws SQLException {
+        return openCursor((rowStore, bucketStore) -> rowStore.openRows(table, RowIdCursor.concat(
+                bucketStore.openRows(table.getID(), plan).filter(migrated.negate()),
+                bucketStore.openRows(pendingID(table), pendingPlan).filter(migrated))));
+    }
+
+    public void switchToPendingBuckets(TableInfo table, TableInfo layout) throws SQLException {
+        PreparedStatement deleteRanges = this.connection.prepareStatement(
+                "DELETE FROM PH_COL_RANGES WHERE TABLE_ID = ?");
+        deleteRanges.setInt(1, table.getID());
+        deleteRanges.executeUpdate();
+        deleteRanges.close();
+        Stats.countSqlStatements(1);
+        insertColumnRanges(layout.getColumnRanges(), table.getID());
+        this.bucketStore.deleteAll(table.getID());
+        this.bucketStore.moveAll(pendingID(table), table.getID());
+        table.setColumnRanges(layout.getColumnRanges());
+    }
+
+    public void dropPendingBuckets(TableInfo table) throws SQLException {
+        this.bucketStore.deleteAll(pendingID(table));
+    }
+
+    // ========== deleting and compacting ========== //
+
+    // the pending copy of a table lives under pendingID too, in the table's row format
+    private static TableInfo pendingRows(TableInfo table) {
+        TableInfo pending = new TableInfo(table.getName(), pendingID(table), table.getNumColumns(), 1);
+        pending.setRowFormat(table.getRowFormat());
+        return pending;
+    }
+
+    public void deleteRows(TableInfo table, int[] sortedRows) throws SQLException {
+        this.rowStore.deleteRows(table.getID(), sortedRows);
+        journal("deleted", table.getID(), sortedRows);
+        table.setDeletedRows(table.getDeletedRows() + sortedRows.length);
+    }
+
+    public void createPendingRows(TableInfo table) throws SQLException {
+        this.rowStore.deleteAll(table, pendingID(table));
+    }
+
+    public void addPendingRow(TableInfo table, int rowNum, List<String> values) throws SQLException {
+        this.rowStore.addRow(pendingRows(table), rowNum, values);
+    }
+
+    public void deletePendingRows(TableInfo table, int[] sortedRows) throws SQLException {
+        this.rowStore.deleteRows(pendingID(table), sortedRows);
+        journal("deleted", pendingID(table), sortedRows);
+    }
+
+    public void switchToPendingRows(TableInfo table, int lastRow, int deletedRows) throws SQLException {
+        this.rowStore.deleteAll(table, table.getID());
+        this.rowStore.moveAll(table, pendingID(table), table.getID());
+        table.setRows(lastRow, deletedRows);
+        updateLastRow(table);
+    }
+
+    public void dropPendingRows(TableInfo table) throws SQLException {
+        this.rowStore.deleteAll(table, pendingID(table));
+    }
+
+    // ========== bulk loading ========== //
+
+    public void beginBulkLoad(TableInfo table, long rows) throws SQLException {
+        if (!table.getRowFormat().equals(RowStore.FORMAT_INDEXED)
+                || rows * table.getNumColumns() < this.rowStore.estimateCells()) {
+            return;
+        }
+        try (Statement statement = this.connection.createStatement()) {
+            RowStore.dropValueIndex(statement, table.getID());
+        }
+        Stats.countSqlStatements(1);
+        this.valueIndexDropped = true;
+    }
+
+    public void loadBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        this.bucketStore.loadAll(table.getID(), rowsByBucket);
+    }
+
+    public void endBulkLoad(TableInfo table) throws SQLException {
+        if (!this.valueIndexDropped) {
+            return;
+        }
+        this.valueIndexDropped = false;
+        try (Statement statement = this.connection.createStatement()) {
+            RowStore.createValueIndex(statement, table.getID());
+        }
+        Stats.countSqlStatements(1);
+    }
+
+    // ========== column statistics ========== //
+
+    public ColumnStatistics loadStatistics(TableInfo table) throws SQLException {
+        int lastRow;
+        long rows;
+        byte[] heavyHitters;
+        List<byte[]> sketches = new ArrayList<>();
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT LAST_ROW, ROWS, HEAVY_HITTERS FROM PH_TABLE_STATISTICS WHERE TABLE_ID = ?")) {
+            pStatement.setInt(1, table.getID());
+            try (ResultSet statistics = pStatement.executeQuery()) {
+                if (!statistics.next()) {
+                    return null;
+                }
+                lastRow = statistics.getInt(1);
+                rows = statistics.getLong(2);
+                heavyHitters = statistics.getBytes(3);
+            }
+        }
+        try (PreparedStatement pStatement = this.connection.prepareStatement(
+                "SELECT SKETCH FROM PH_COLUMN_SKETCHES WHERE TABLE_ID = ? ORDER BY COL_NUM")) {
+            pStatement.setInt(1, table.getID());
+            try (ResultSet columns = pStatement.executeQuery()) {
+                while (columns.next()) {
+                    sketches.add(columns.getBytes(1));
+                }
+            }
+        }
+        Stats.countSqlStatements(2);
+        try {
+            return ColumnStatistics.decode(table, lastRow, rows, sketches, heavyHitters);
+        } catch (RuntimeException e) {
+            throw new SQLException("could not read the statistics of table: " + table.getName(), e);
+        }
+    }
+
+    public void saveStatistics(TableInfo table, ColumnStatistics statistics) throws SQLException {
+        this.replaceStatistics.setInt(1, table.getID());
+        this.replaceStatistics.setInt(2, table.getLastRow());
+        this.replaceStatistics.setLong(3, statistics.getRows());
+        this.replaceStatistics.setBytes(4, statistics.encodeHeavyHitters());
+        this.replaceStatistics.executeUpdate();
+        int sketches = 0;
+        for (int i = 0; i < statistics.getNumColumns(); i++) {
+            if (statistics.isSketchChanged(i)) {
+                this.replaceSketch.setInt(1, table.getID());
+                this.replaceSketch.setInt(2, i + 1);
+                this.replaceSketch.setBytes(3, statistics.encodeSketch(i));
+                this.replaceSketch.addBatch();
+                sketches++;
+            }
+        }
+        if (sketches > 0) {
+            this.replaceSketch.executeBatch();
+        }
+        Stats.countSqlStatements(1 + sketches);
+        statistics.saved(table.getLastRow());
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The TableStats of every table a Database has run instructions on, and their
+ * totals. The storage code does not know which instruction it is working for, so
+ * Database enters the TableStats of the instruction's table on the thread that
+ * runs it and the storage code counts its SQL statements and rows against
+ * whatever the current thread entered. Work done outside of an instruction is not counted.
+ */
+public class Stats {
+    private static final ThreadLocal<TableStats> CURRENT = new ThreadLocal<>();
+    // counted into when the thread has not entered anything, and never read
+    private static final TableStats UNTRACKED = new TableStats(null);
+
+    private TableStats total = new TableStats(null);
+    private Map<String, TableStats> tables = new ConcurrentHashMap<>();
+
+    public TableStats total() {
+        return this.total;
+    }
+
+    public TableStats forTable(String name) {
+        return this.tables.computeIfAbsent(name, n -> new TableStats(this.total));
+    }
+
+    // null when nothing has run on the table yet
+    public TableStats getTable(String name) {
+        return this.tables.get(name);
+    }
+
+    public void recordLatency(TableStats table, String type, long nanos) {
+        table.recordLatency(type, nanos);
+        this.total.recordLatency(type, nanos);
+    }
+
+    // ========== the current thread ========== //
+
+    // returns what was entered before, to be handed back to exit
+    static TableStats enter(TableStats stats) {
+        TableStats previous = CURRENT.get();
+        CURRENT.set(stats);
+        return previous;
+    }
+
+    static void exit(TableStats previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    static TableStats current() {
+        TableStats stats = CURRENT.get();
+        return stats == null ? UNTRACKED : stats;
+    }
+
+    static void countSqlStatements(long statements) {
+        current().countSqlStatements(statements);
+    }
+
+    // ========== JSON ========== //
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"total\": ");
+        this.total.appendJson(json);
+        json.append(", \"tables\": {");
+        String separator = "";
+        for (Map.Entry<String, TableStats> table : new TreeMap<>(this.tables).entrySet()) {
+            json.append(separator).append(quote(table.getKey())).append(": ");
+            table.getValue().appendJson(json);
+            separator = ", ";
+        }
+        return json.append("}}").toString();
+    }
+
+    public void writeJson(Path path) throws IOException {
+        Files.writeString(path, toJson() + "\n", StandardCharsets.UTF_8);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
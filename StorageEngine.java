@@ -0,0 +1,181 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+
+/*
+ * Where the PH tables are kept: the catalog, the rows and the hash buckets.
+ * Database only talks to this interface, the partitioned hash itself (Util,
+ * BucketPlanner) is the same for every backend.
+ *
+ * Every method reports failures as SQLException, which is what the instruction
+ * handlers already deal with. Backends that are not built on JDBC wrap their
+ * IOExceptions in one.
+ */
+public interface StorageEngine {
+    interface BucketRowConsumer {
+        void accept(long bucket, int row);
+    }
+
+    void open() throws SQLException;
+
+    void close() throws SQLException;
+
+    // writes between begin and commit are made durable together
+    void begin() throws SQLException;
+
+    void commit() throws SQLException;
+
+    void rollback() throws SQLException;
+
+    // whether the read methods may be called from several threads at once while no
+    // transaction is open
+    boolean supportsConcurrentReads();
+
+    // ========== catalog ========== //
+
+    List<TableInfo> loadTables() throws SQLException;
+
+    TableInfo createTable(String name, List<Integer> columnRanges, PartitionHashFunction hashFunction,
+            String rowFormat) throws SQLException;
+
+    void updateLastRow(TableInfo table) throws SQLException;
+
+    // ========== rows ========== //
+
+    // rows may be buffered until flushRows
+    void addRow(TableInfo table, int rowNum, List<String> values) throws SQLException;
+
+    void flushRows() throws SQLException;
+
+    // the same for a record encoded by RecordCodec, which the backends that store it
+    // that way keep as it is
+    default void addEncodedRow(TableInfo table, int rowNum, byte[] record) throws SQLException {
+        addRow(table, rowNum, RecordCodec.decode(record, table.getNumColumns()));
+    }
+
+    // whether selectValidRows can find rows by a single column without reading whole rows
+    boolean hasColumnIndex(TableInfo table);
+
+    RowBitmap selectValidRows(TableInfo table, int columnNum, String value) throws SQLException;
+
+    // the number of rows selectValidRows would return, for ordering the columns of a lookup,
+    // or -1 when counting them costs about as much as selecting them
+    long countValidRows(TableInfo table, int columnNum, String value) throws SQLException;
+
+    // every row of the table in row order
+    RecordCursor openScan(TableInfo table) throws SQLException;
+
+    // the records of the given rows in row order
+    default RecordCursor openRecords(TableInfo table, Set<Integer> rows) throws SQLException {
+        return openRecords(table, rows.stream().mapToInt(Integer::intValue).sorted().toArray());
+    }
+
+    // the same for rows that are sorted already
+    RecordCursor openRecords(TableInfo table, int[] sortedRows) throws SQLException;
+
+    void convertRows(TableInfo table, String rowFormat) throws SQLException;
+
+    // ========== buckets ========== //
+
+    // the rows of each bucket are in insert order
+    void appendBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException;
+
+    // the records of every row in the buckets the plan covers, not yet checked
+    // against the lookup pattern, in row order as Database prints them as they come
+    RecordCursor openBucketRecords(TableInfo table, BucketPlan plan) throws SQLException;
+
+    // every bucket that holds a row, in no particular order and possibly more than once
+    void forEachBucket(TableInfo table, LongConsumer consumer) throws SQLException;
+
+    // every row of every bucket, with its bucket, in no particular order
+    void forEachBucketRow(TableInfo table, BucketRowConsumer consumer) throws SQLException;
+
+    // ========== repartitioning ========== //
+    // While a table moves to new column ranges (see Repartition) it has a second set
+    // of buckets, the pending ones, hashed under the new ranges given by layout.
+
+    // starts an empty set of pending buckets, dropping any an earlier attempt left
+    void createPendingBuckets(TableInfo table, TableInfo layout) throws SQLException;
+
+    void appendPendingBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException;
+
+    // like openBucketRecords, but the rows for which migrated is true are read from the
+    // pending buckets through pendingPlan instead
+    RecordCursor openBucketRecords(TableInfo table, BucketPlan plan, BucketPlan pendingPlan,
+            IntPredicate migrated) throws SQLException;
+
+    // records the ranges of layout as the table's, also in table, and the pending
+    // buckets as its buckets, dropping the current ones. Nothing of it is visible
+    // before the commit and all of it is after.
+    void switchToPendingBuckets(TableInfo table, TableInfo layout) throws SQLException;
+
+    void dropPendingBuckets(TableInfo table) throws SQLException;
+
+    // ========== deleting and compacting ========== //
+    // A deleted row only gets a tombstone: every read skips it from then on, but its
+    // record and its bucket entries stay until the table is compacted (see
+    // Compaction). The live rows are then copied under new, dense row numbers into a
+    // pending copy of the table, hashed into pending buckets under the table's own
+    // ranges, and the copy replaces the table with switchToPendingRows.
+
+    // the rows have to exist and not be deleted yet, counted in table.getDeletedRows
+    void deleteRows(TableInfo table, int[] sortedRows) throws SQLException;
+
+    // starts an empty pending copy, dropping any an earlier attempt left
+    void createPendingRows(TableInfo table) throws SQLException;
+
+    // rows may be buffered until flushRows
+    void addPendingRow(TableInfo table, int rowNum, List<String> values) throws SQLException;
+
+    // tombstones for rows of the pending copy
+    void deletePendingRows(TableInfo table, int[] sortedRows) throws SQLException;
+
+    // the pending copy and its tombstones become the rows of the table, with the new
+    // LAST_ROW and deleted rows also set in table. The pending buckets are switched
+    // by switchToPendingBuckets in the same transaction.
+    void switchToPendingRows(TableInfo table, int lastRow, int deletedRows) throws SQLException;
+
+    void dropPendingRows(TableInfo table) throws SQLException;
+
+    // ========== bulk loading ========== //
+    // A table loaded from a Snapshot is created in the transaction that fills it, so
+    // nothing reads it or appends to it in between, and indexes that the rows would
+    // update one at a time may be built once at the end instead.
+
+    // rows is how many the load adds
+    default void beginBulkLoad(TableInfo table, long rows) throws SQLException {
+    }
+
+    // like appendBuckets for buckets the table does not have yet
+    default void loadBuckets(TableInfo table, Map<Long, List<Integer>> rowsByBucket) throws SQLException {
+        appendBuckets(table, rowsByBucket);
+    }
+
+    // called inside the same transaction, before the commit
+    default void endBulkLoad(TableInfo table) throws SQLException {
+    }
+
+    // ========== column statistics ========== //
+    // The ColumnStatistics of a table are kept with it, with the LAST_ROW they were
+    // saved at. Database saves them inside a transaction that writes rows of the
+    // table, so they commit and roll back with the rows they describe, and adds the
+    // rows from their LAST_ROW on when it loads them.
+
+    // null when none were saved for the table
+    ColumnStatistics loadStatistics(TableInfo table) throws SQLException;
+
+    // the LAST_ROW of the table, the row count and heavy hitters of every column and
+    // the sketches that changed
+    void saveStatistics(TableInfo table, ColumnStatistics statistics) throws SQLException;
+
+    // ========== sharding ========== //
+
+    // spreads a table that has no rows yet over shards files, a power of two, by the
+    // top bits of the buckets, see ShardedStorageEngine
+    default void shardTable(TableInfo table, int shards) throws SQLException {
+        throw new SQLException("this storage engine does not shard tables");
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Checks that the storage engines give the same answers. Every script is replayed
+ * through Database on a SqliteStorageEngine and on a MappedFileStorageEngine, once
+ * with every insert committed by itself and once batched, and every line Database
+ * prints is compared, lookup rows in the order they come. The scripts are drawn
+ * from a Random with a fixed seed, so a difference always comes back the same:
+ *   - tombstones: deletes by single values, IN lists and wildcards, deleting
+ *     deleted rows again and inserting rows like the deleted ones, with lookups
+ *     through the index, without it and auto after each
+ *   - updates: updates of hashed columns, to the values rows already have and of
+ *     rows that do not exist
+ *   - compaction: enough deletes to start a compaction, with inserts, deletes,
+ *     updates and lookups between its slices, and a second one after it
+ *   - repartition: a repartition with writes and lookups between its slices, and
+ *     one to the ranges the table has
+ *   - join: joins on one and two columns, before and after deletes and updates
+ *   - snapshot: a table exported and imported into a new table, after deletes
+ * A script that stops the program on an error cannot be compared since that exits
+ * the check too.
+ *
+ * java StorageEngineCheck [instructions_1 ... instructions_n]
+ * (the given files instead of the scripts, exits with 1 when any of them differs)
+ */
+public class StorageEngineCheck {
+    private static final int[] BATCH_SIZES = { 0, 100 };
+
+    // the values of column c are v<c>_0 up to v<c>_<cardinality - 1>
+    private static class ScriptWriter {
+        private List<String> lines = new ArrayList<>();
+        private Random random;
+
+        ScriptWriter(long seed) {
+            this.random = new Random(seed);
+        }
+
+        void add(String line) {
+            this.lines.add(line);
+        }
+
+        String value(int column, int cardinality) {
+            return "v" + column + "_" + this.random.nextInt(cardinality);
+        }
+
+        // num inserts into the table, with the cardinality of each column
+        void inserts(String table, int num, int... cardinalities) {
+            for (int i = 0; i < num; i++) {
+                StringBuilder line = new StringBuilder("i " + table);
+                for (int c = 0; c < cardinalities.length; c++) {
+                    line.append(' ').append(value(c, cardinalities[c]));
+                }
+                add(line.toString());
+            }
+        }
+
+        // a pattern that binds each column with the chance given, "*" otherwise,
+        // and now and then an IN list of up to three values
+        String pattern(double bound, int... cardinalities) {
+            StringBuilder pattern = new StringBuilder();
+            for (int c = 0; c < cardinalities.length; c++) {
+                pattern.append(c == 0 ? "" : " ");
+                double draw = this.random.nextDouble();
+                if (draw >= bound) {
+                    pattern.append('*');
+                } else if (draw < bound / 5) {
+                    pattern.append('{').append(value(c, cardinalities[c])).append(',')
+                            .append(value(c, cardinalities[c])).append(',').append(value(c, cardinalities[c]))
+                            .append('}');
+                } else {
+                    pattern.append(value(c, cardinalities[c]));
+                }
+            }
+            return pattern.toString();
+        }
+
+        // the same pattern through the index, without it and as auto picks
+        void lookups(String table, int num, int... cardinalities) {
+            for (int i = 0; i < num; i++) {
+                String pattern = pattern(0.6, cardinalities);
+                add("l " + table + " True " + pattern);
+                add("l " + table + " False " + pattern);
+                add("l " + table + " auto " + pattern);
+            }
+        }
+
+        // an update that sets each column with the chance given
+        String update(String table, double bound, int... cardinalities) {
+            StringBuilder values = new StringBuilder();
+            for (int c = 0; c < cardinalities.length; c++) {
+                values.append(' ').append(this.random.nextDouble() < 0.5 ? value(c, cardinalities[c]) : "*");
+            }
+            return "u " + table + " " + pattern(bound, cardinalities) + values;
+        }
+
+        File write(File dir, String name) throws IOException {
+            File file = new File(dir, name + ".txt");
+            try (PrintWriter writer = new PrintWriter(file)) {
+                for (String line : this.lines) {
+                    writer.println(line);
+                }
+            }
+            return file;
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        File dir = Files.createTempDirectory("pht-check").toFile();
+        List<File> scripts = new ArrayList<>();
+        for (String path : args) {
+            scripts.add(new File(path));
+        }
+        if (scripts.isEmpty()) {
+            scripts.add(tombstones(dir));
+            scripts.add(updates(dir));
+            scripts.add(compaction(dir));
+            scripts.add(repartition(dir));
+            scripts.add(join(dir));
+            scripts.add(snapshot(dir));
+        }
+
+        boolean allSame = true;
+        for (File script : scripts) {
+            for (int batchSize : BATCH_SIZES) {
+                allSame &= check(dir, script, batchSize);
+            }
+        }
+        deleteAll(dir);
+        if (!allSame) {
+            System.exit(1);
+        }
+    }
+
+    // ========== scripts ========== //
+
+    private static File tombstones(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(1);
+        int[] cardinalities = { 10, 5, 20 };
+        script.add("c T 3 2 4 hash=md5");
+        script.inserts("T", 400, cardinalities);
+        script.lookups("T", 10, cardinalities);
+        script.add("d T v0_1 * *");
+        script.lookups("T", 5, cardinalities);
+        script.add("d T * {v1_2,v1_3} v2_4");
+        script.add("d T * {v1_2,v1_3} v2_4");
+        script.lookups("T", 5, cardinalities);
+        script.inserts("T", 50, cardinalities);
+        script.add("l T True v0_1 * *");
+        script.add("l T False v0_1 * *");
+        for (int i = 0; i < 10; i++) {
+            script.add("d T " + script.pattern(0.7, cardinalities));
+            script.lookups("T", 3, cardinalities);
+        }
+        script.add("d T * * *");
+        script.add("l T False * * *");
+        script.inserts("T", 20, cardinalities);
+        script.lookups("T", 5, cardinalities);
+        return script.write(dir, "tombstones");
+    }
+
+    private static File updates(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(2);
+        int[] cardinalities = { 8, 30, 4 };
+        script.add("c U 3 5 2 hash=murmur3");
+        script.inserts("U", 300, cardinalities);
+        for (int i = 0; i < 15; i++) {
+            script.add(script.update("U", 0.7, cardinalities));
+            script.lookups("U", 3, cardinalities);
+        }
+        script.add("u U v0_1 * * v0_1 * *");
+        script.add("u U nothing * * v0_2 v1_2 v2_2");
+        script.add("u U * * v2_1 * * v2_3");
+        script.lookups("U", 5, cardinalities);
+        return script.write(dir, "updates");
+    }
+
+    private static File compaction(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(3);
+        int[] cardinalities = { 6, 6, 50 };
+        script.add("c C 3 3 6 hash=xxhash64");
+        script.inserts("C", 2000, cardinalities);
+        script.add("d C v0_0 * *");
+        script.add("d C v0_1 * *");
+        // a slice runs every 64 instructions until the compaction is done
+        for (int i = 0; i < 400; i++) {
+            int draw = script.random.nextInt(10);
+            if (draw < 3) {
+                script.inserts("C", 1, cardinalities);
+            } else if (draw == 3) {
+                script.add("d C " + script.pattern(0.9, cardinalities));
+            } else if (draw == 4) {
+                script.add(script.update("C", 0.9, cardinalities));
+            } else {
+                script.lookups("C", 1, cardinalities);
+            }
+        }
+        script.lookups("C", 10, cardinalities);
+        script.add("d C * v1_2 *");
+        script.add("d C * v1_3 *");
+        script.lookups("C", 100, cardinalities);
+        return script.write(dir, "compaction");
+    }
+
+    private static File repartition(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(4);
+        int[] cardinalities = { 20, 20, 20 };
+        script.add("c R 4 4 4");
+        script.inserts("R", 2000, cardinalities);
+        script.add("r R 2 6 4");
+        // a slice runs every 64 instructions until every row is in the new buckets
+        for (int i = 0; i < 400; i++) {
+            int draw = script.random.nextInt(10);
+            if (draw < 3) {
+                script.inserts("R", 1, cardinalities);
+            } else if (draw == 3) {
+                script.add("d R " + script.pattern(0.9, cardinalities));
+            } else if (draw == 4) {
+                script.add(script.update("R", 0.9, cardinalities));
+            } else {
+                script.lookups("R", 1, cardinalities);
+            }
+        }
+        script.lookups("R", 10, cardinalities);
+        script.add("r R 2 6 4");
+        script.lookups("R", 5, cardinalities);
+        return script.write(dir, "repartition");
+    }
+
+    private static File join(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(5);
+        int[] left = { 15, 4, 10 };
+        int[] right = { 15, 4 };
+        script.add("c L 4 2 4");
+        script.add("c M 3 2 hash=xxhash64");
+        script.inserts("L", 300, left);
+        script.inserts("M", 100, right);
+        script.add("j L M 1=1");
+        script.add("j M L 1=1 2=2");
+        script.add("j L M 2=2 1=1");
+        script.add("d L v0_1 * *");
+        script.add("d M * v1_0");
+        script.add(script.update("L", 0.8, left));
+        script.add("j L M 1=1");
+        script.add("j M L 1=1 2=2");
+        return script.write(dir, "join");
+    }
+
+    private static File snapshot(File dir) throws IOException {
+        ScriptWriter script = new ScriptWriter(6);
+        int[] cardinalities = { 10, 10 };
+        String first = new File(dir, "first.snapshot").getPath();
+        String second = new File(dir, "second.snapshot").getPath();
+        script.add("c S 3 4");
+        script.inserts("S", 500, cardinalities);
+        script.add("x S " + first);
+        script.add("b S2 " + first);
+        script.lookups("S2", 10, cardinalities);
+        script.add("d S v0_2 *");
+        script.add(script.update("S", 0.8, cardinalities));
+        script.add("x S " + second);
+        script.add("b S3 " + second);
+        script.lookups("S3", 10, cardinalities);
+        script.inserts("S3", 20, cardinalities);
+        script.add("d S3 * v1_1");
+        script.lookups("S3", 5, cardinalities);
+        return script.write(dir, "snapshot");
+    }
+
+    // ========== running them ========== //
+
+    private static boolean check(File dir, File script, int batchSize) throws IOException {
+        String name = script.getName() + ", batch size " + batchSize;
+        File sqliteFile = new File(dir, "check.db");
+        List<String> sqlite = runCapturing(new SqliteStorageEngine(sqliteFile.getPath()), script, batchSize);
+        sqliteFile.delete();
+        File mappedDir = new File(dir, "mmap");
+        mappedDir.mkdir();
+        List<String> mapped = runCapturing(new MappedFileStorageEngine(mappedDir.getPath()), script, batchSize);
+        deleteAll(mappedDir);
+
+        int line = 0;
+        while (line < sqlite.size() && line < mapped.size() && sqlite.get(line).equals(mapped.get(line))) {
+            line++;
+        }
+        if (line == sqlite.size() && line == mapped.size()) {
+            System.out.println(String.format("check %s: %d lines, the same on both engines", name, sqlite.size()));
+            return true;
+        }
+        System.out.println(String.format("check %s: the engines differ at line %d", name, line + 1));
+        System.out.println("  sqlite: " + (line < sqlite.size() ? sqlite.get(line) : "(end of output)"));
+        System.out.println("  mmap:   " + (line < mapped.size() ? mapped.get(line) : "(end of output)"));
+        return false;
+    }
+
+    // the lines Database prints while it runs the instructions and closes
+    private static List<String> runCapturing(StorageEngine storage, File instructions, int batchSize) {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true));
+        try {
+            Database db = new Database(storage);
+            db.setBatchSize(batchSize);
+            db.initial_tables();
+            db.parse_instructions(instructions.getPath());
+            db.close();
+        } finally {
+            System.setOut(stdout);
+        }
+        return Arrays.asList(captured.toString().split("\n"));
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
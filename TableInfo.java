@@ -1,9 +1,24 @@
+import java.util.List;
+
 public class TableInfo {
     private int tableID;
     private int numColumns;
     private int lastRow;
+    // rows deleted but still stored, see StorageEngine.deleteRows
+    private int deletedRows = 0;
     private String tableName;
-    
+
+    // hash layout, column 1 holds the highest order bits of the partitioned hash.
+    // columnRanges is written last when the layout changes, so a thread that reads
+    // it first and then hashes sees at least the offsets and masks that go with it
+    private volatile List<Integer> columnRanges;
+    private int[] bitOffsets;
+    private long[] bitMasks;
+    private PartitionHashFunction hashFunction = Md5PartitionHash.INSTANCE;
+    private String rowFormat = RowStore.FORMAT_CELLS;
+    // the files the rows are spread over, see ShardedStorageEngine
+    private int shards = 1;
+
     public TableInfo(String name, int id, int numC, int lastR){
         this.tableName = name;
         this.tableID = id;
@@ -11,8 +26,63 @@ public class TableInfo {
         this.lastRow = lastR;
     }
 
+    public TableInfo(String name, int id, int numC, int lastR, List<Integer> ranges,
+            PartitionHashFunction hashFunction){
+        this(name, id, numC, lastR);
+        this.hashFunction = hashFunction;
+        setColumnRanges(ranges);
+    }
+
     public String getName(){ return this.tableName; }
     public int getID(){ return this.tableID; }
     public int getLastRow() { return this.lastRow; }
+    public int getDeletedRows() { return this.deletedRows; }
     public int getNumColumns() { return this.numColumns; }
+    public List<Integer> getColumnRanges() { return this.columnRanges; }
+    public PartitionHashFunction getHashFunction() { return this.hashFunction; }
+    public String getRowFormat() { return this.rowFormat; }
+    public int getShards() { return this.shards; }
+
+    // design choice: columns are zero indexed here, unlike COL_NUM in sqlite
+    public int getColumnRange(int column) { return this.columnRanges.get(column); }
+    public int getBitOffset(int column) { return this.bitOffsets[column]; }
+    public long getBitMask(int column) { return this.bitMasks[column]; }
+
+    public void setColumnRanges(List<Integer> ranges) {
+        int[] offsets = new int[ranges.size()];
+        long[] masks = new long[ranges.size()];
+        int offset = 0;
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            int range = ranges.get(i);
+            offsets[i] = offset;
+            masks[i] = this.hashFunction.bitMask(range);
+            offset += range;
+        }
+        this.bitOffsets = offsets;
+        this.bitMasks = masks;
+        this.columnRanges = List.copyOf(ranges);
+    }
+
+    public int getTotalBits() {
+        int total = 0;
+        for (int range : this.columnRanges) {
+            total += range;
+        }
+        return total;
+    }
+
+    public void setRowFormat(String rowFormat) { this.rowFormat = rowFormat; }
+
+    public void setShards(int shards) { this.shards = shards; }
+
+    // hands out the current LAST_ROW as the row number of a new row
+    public int nextRow() { return this.lastRow++; }
+
+    public void setDeletedRows(int deletedRows) { this.deletedRows = deletedRows; }
+
+    // after a compaction has renumbered the rows, see StorageEngine.switchToPendingRows
+    public void setRows(int lastRow, int deletedRows) {
+        this.lastRow = lastRow;
+        this.deletedRows = deletedRows;
+    }
 }
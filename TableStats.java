@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * What the instructions on one table cost: a latency histogram per instruction
+ * type, the SQL statements run and the rows stepped through, and how many of the
+ * rows the bucket index handed to an indexed lookup were then rejected by the
+ * lookup's pattern. Those false positives come from the COL_RANGE bits: a column with few
+ * bits puts many values in one bucket, so their ratio is what to look at when
+ * choosing the ranges. With a LookupCache it also counts the lookups the cache
+ * answered exactly, those it answered by filtering a broader cached result, those
+ * it missed and the entries it evicted. The counters are added to the parent too,
+ * which keeps the totals over every table.
+ */
+public class TableStats {
+    private TableStats parent;
+    private Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private LongAdder sqlStatements = new LongAdder();
+    private LongAdder rowsStepped = new LongAdder();
+    private LongAdder bucketCandidates = new LongAdder();
+    private LongAdder falsePositives = new LongAdder();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder cacheFilteredHits = new LongAdder();
+    private LongAdder cacheMisses = new LongAdder();
+    private LongAdder cacheEvictions = new LongAdder();
+
+    TableStats(TableStats parent) {
+        this.parent = parent;
+    }
+
+    // unlike the counters this is not passed on, see Stats.recordLatency
+    void recordLatency(String type, long nanos) {
+        this.latencies.computeIfAbsent(type, t -> new LatencyHistogram()).record(nanos);
+    }
+
+    void countSqlStatements(long statements) {
+        this.sqlStatements.add(statements);
+        if (this.parent != null) {
+            this.parent.countSqlStatements(statements);
+        }
+    }
+
+    void countRowsStepped(long rows) {
+        this.rowsStepped.add(rows);
+        if (this.parent != null) {
+            this.parent.countRowsStepped(rows);
+        }
+    }
+
+    // one row read through the bucket index, matched says whether the pattern kept it
+    void countCandidate(boolean matched) {
+        this.bucketCandidates.increment();
+        if (!matched) {
+            this.falsePositives.increment();
+        }
+        if (this.parent != null) {
+            this.parent.countCandidate(matched);
+        }
+    }
+
+    void countCacheHit(boolean filtered) {
+        (filtered ? this.cacheFilteredHits : this.cacheHits).increment();
+        if (this.parent != null) {
+            this.parent.countCacheHit(filtered);
+        }
+    }
+
+    void countCacheMiss() {
+        this.cacheMisses.increment();
+        if (this.parent != null) {
+            this.parent.countCacheMiss();
+        }
+    }
+
+    void countCacheEviction() {
+        this.cacheEvictions.increment();
+        if (this.parent != null) {
+            this.parent.countCacheEviction();
+        }
+    }
+
+    public long getSqlStatements() { return this.sqlStatements.sum(); }
+    public long getRowsStepped() { return this.rowsStepped.sum(); }
+    public long getBucketCandidates() { return this.bucketCandidates.sum(); }
+    public long getFalsePositives() { return this.falsePositives.sum(); }
+    public long getCacheHits() { return this.cacheHits.sum(); }
+    public long getCacheFilteredHits() { return this.cacheFilteredHits.sum(); }
+    public long getCacheMisses() { return this.cacheMisses.sum(); }
+    public long getCacheEvictions() { return this.cacheEvictions.sum(); }
+
+    public double getFalsePositiveRatio() {
+        long candidates = getBucketCandidates();
+        return candidates == 0 ? 0 : (double) getFalsePositives() / candidates;
+    }
+
+    // the lines printed by the "s" instruction
+    List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> latency : new TreeMap<>(this.latencies).entrySet()) {
+            LatencyHistogram histogram = latency.getValue();
+            lines.add(String.format("%s count=%d mean_ms=%.3f p50_ms=%.3f p95_ms=%.3f p99_ms=%.3f max_ms=%.3f",
+                    latency.getKey(), histogram.getCount(), histogram.getMean() / 1e6,
+                    histogram.getPercentile(0.50) / 1e6, histogram.getPercentile(0.95) / 1e6,
+                    histogram.getPercentile(0.99) / 1e6, histogram.getMax() / 1e6));
+        }
+        lines.add("sql_statements=" + getSqlStatements() + " rows_stepped=" + getRowsStepped());
+        lines.add(String.format("bucket_candidates=%d false_positives=%d false_positive_ratio=%.4f",
+                getBucketCandidates(), getFalsePositives(), getFalsePositiveRatio()));
+        lines.add("cache_hits=" + getCacheHits() + " cache_filtered_hits=" + getCacheFilteredHits()
+                + " cache_misses=" + getCacheMisses() + " cache_evictions=" + getCacheEvictions());
+        return lines;
+    }
+
+    void appendJson(StringBuilder json) {
+        json.append("{\"latency_ns\": {");
+        String separator = "";
+        for (Map.Entry<String, LatencyHistogram> latency : new TreeMap<>(this.latencies).entrySet()) {
+            LatencyHistogram histogram = latency.getValue();
+            json.append(separator).append(Stats.quote(latency.getKey())).append(": {")
+                    .append("\"count\": ").append(histogram.getCount())
+                    .append(", \"mean\": ").append(Math.round(histogram.getMean()))
+                    .append(", \"p50\": ").append(histogram.getPercentile(0.50))
+                    .append(", \"p95\": ").append(histogram.getPercentile(0.95))
+                    .append(", \"p99\": ").append(histogram.getPercentile(0.99))
+                    .append(", \"max\": ").append(histogram.getMax()).append('}');
+            separator = ", ";
+        }
+        json.append("}, \"sql_statements\": ").append(getSqlStatements())
+                .append(", \"rows_stepped\": ").append(getRowsStepped())
+                .append(", \"bucket_candidates\": ").append(getBucketCandidates())
+                .append(", \"false_positives\": ").append(getFalsePositives())
+                .append(", \"false_positive_ratio\": ")
+                .append(String.format(Locale.ROOT, "%.6f", getFalsePositiveRatio()))
+                .append(", \"cache_hits\": ").append(getCacheHits())
+                .append(", \"cache_filtered_hits\": ").append(getCacheFilteredHits())
+                .append(", \"cache_misses\": ").append(getCacheMisses())
+                .append(", \"cache_evictions\": ").append(getCacheEvictions()).append('}');
+    }
+}
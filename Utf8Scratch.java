@@ -0,0 +1,46 @@
+/*
+ * Per thread buffer that the hash functions encode values into. Encoding by hand
+ * into a reused array avoids the byte[] that String.getBytes allocates on every
+ * call, and always uses UTF-8 instead of the platform charset.
+ */
+class Utf8Scratch {
+    private static final ThreadLocal<Utf8Scratch> LOCAL = ThreadLocal.withInitial(Utf8Scratch::new);
+
+    byte[] bytes = new byte[64];
+    int length;
+
+    static Utf8Scratch encode(String value) {
+        Utf8Scratch scratch = LOCAL.get();
+        // a char never takes more than 3 bytes, surrogate pairs take 4 for 2 chars
+        if (scratch.bytes.length < value.length() * 3) {
+            scratch.bytes = new byte[value.length() * 3];
+        }
+        byte[] out = scratch.bytes;
+        int pos = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates become '?' like they do in String.getBytes
+                out[pos++] = (byte) '?';
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        scratch.length = pos;
+        return scratch;
+    }
+}
@@ -0,0 +1,161 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Suggests COL_RANGE bits for a table from the lookups that have run on it. Every
+ * lookup is recorded as the set of columns it bound, and advise reads the table
+ * once to estimate the number of distinct values of each column.
+ *
+ * The cost of a lookup that binds the columns S, with b bits and d distinct values
+ * per column, is modelled as the rows the buckets hand back plus the buckets read:
+ *
+ *   candidates(S) = rows * product over c in S of max(1 / d_c, 2^-b_c)
+ *   buckets(S)    = max(1, min(candidates(S), product over c not in S of min(d_c, 2^b_c)))
+ *
+ * so a bit helps a bound column until it has as many buckets as values, and costs
+ * a wildcard column a doubling of the buckets it has to read. The allocation is a
+ * local search: starting once from 1 bit per column and once from the current
+ * ranges, it keeps taking the single step (adding, removing or moving one bit)
+ * that lowers the cost the most, never going past 64 bits in total, and the better
+ * of the two results is recommended.
+ */
+public class WorkloadAdvisor {
+    public static final int MAX_TOTAL_BITS = 64;
+
+    // lookups seen per table, counted by the mask of the columns they bound
+    private Map<String, Map<Long, LongAdder>> patternsByTable = new ConcurrentHashMap<>();
+
+    public void recordLookup(TableInfo table, List<String> pattern) {
+        long bound = 0;
+        for (int i = 0; i < pattern.size(); i++) {
+            if (!pattern.get(i).equals("*")) {
+                bound |= 1L << i;
+            }
+        }
+        this.patternsByTable.computeIfAbsent(table.getName(), name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(bound, mask -> new LongAdder()).increment();
+    }
+
+    // forgets the lookups of a table, for instance once its layout was changed for them
+    public void reset(String tableName) {
+        this.patternsByTable.remove(tableName);
+    }
+
+    public Map<Long, Long> getPatterns(String tableName) {
+        Map<Long, Long> patterns = new HashMap<>();
+        Map<Long, LongAdder> recorded = this.patternsByTable.get(tableName);
+        if (recorded != null) {
+            for (Map.Entry<Long, LongAdder> pattern : recorded.entrySet()) {
+                patterns.put(pattern.getKey(), pattern.getValue().sum());
+            }
+        }
+        return patterns;
+    }
+
+    // rows is every record of the table, the cursor is read to the end but not closed
+    public RangeAdvice advise(TableInfo table, RecordCursor rows) throws SQLException {
+        int numColumns = table.getNumColumns();
+        DistinctCounter[] counters = new DistinctCounter[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            counters[i] = new DistinctCounter();
+        }
+        long numRows = 0;
+        List<String> record;
+        while ((record = rows.next()) != null) {
+            for (int i = 0; i < numColumns; i++) {
+                counters[i].add(record.get(i));
+            }
+            numRows++;
+        }
+        long[] distinct = new long[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            // the estimate can go past the number of rows on small tables
+            distinct[i] = Math.max(1, Math.min(numRows, counters[i].estimate()));
+        }
+
+        Map<Long, Long> patterns = getPatterns(table.getName());
+        List<Integer> current = table.getColumnRanges();
+        List<Integer> recommended = patterns.isEmpty() ? current : allocate(current, distinct, numRows, patterns);
+        return new RangeAdvice(table.getName(), numRows, patterns, distinct, current, recommended,
+                expectedCost(current, distinct, numRows, patterns),
+                expectedCost(recommended, distinct, numRows, patterns));
+    }
+
+    static List<Integer> allocate(List<Integer> current, long[] distinct, long rows, Map<Long, Long> patterns) {
+        List<Integer> ones = new ArrayList<>();
+        for (int i = 0; i < current.size(); i++) {
+            ones.add(1);
+        }
+        List<Integer> fromOnes = improve(ones, distinct, rows, patterns);
+        List<Integer> fromCurrent = improve(new ArrayList<>(current), distinct, rows, patterns);
+        return expectedCost(fromOnes, distinct, rows, patterns) <= expectedCost(fromCurrent, distinct, rows, patterns)
+                ? fromOnes : fromCurrent;
+    }
+
+    // takes the best single step (one more bit, one less bit or a bit moved) while any lowers the cost
+    private static List<Integer> improve(List<Integer> bits, long[] distinct, long rows, Map<Long, Long> patterns) {
+        double cost = expectedCost(bits, distinct, rows, patterns);
+        while (true) {
+            int total = 0;
+            for (int b : bits) {
+                total += b;
+            }
+            List<Integer> best = null;
+            double bestCost = cost;
+            // from == -1 adds a bit to a column, to == -1 takes one away
+            for (int from = -1; from < bits.size(); from++) {
+                for (int to = -1; to < bits.size(); to++) {
+                    if (from == to || (from >= 0 && bits.get(from) == 1)
+                            || (from < 0 && total == MAX_TOTAL_BITS)) {
+                        continue;
+                    }
+                    List<Integer> step = new ArrayList<>(bits);
+                    if (from >= 0) {
+                        step.set(from, step.get(from) - 1);
+                    }
+                    if (to >= 0) {
+                        step.set(to, step.get(to) + 1);
+                    }
+                    double stepCost = expectedCost(step, distinct, rows, patterns);
+                    if (stepCost < bestCost) {
+                        best = step;
+                        bestCost = stepCost;
+                    }
+                }
+            }
+            if (best == null) {
+                return bits;
+            }
+            bits = best;
+            cost = bestCost;
+        }
+    }
+
+    // the cost of the model in the class comment, averaged over the recorded lookups
+    static double expectedCost(List<Integer> bits, long[] distinct, long rows, Map<Long, Long> patterns) {
+        double total = 0;
+        long lookups = 0;
+        for (Map.Entry<Long, Long> pattern : patterns.entrySet()) {
+            long bound = pattern.getKey();
+            double candidates = rows;
+            double freeBuckets = 1;
+            for (int i = 0; i < bits.size(); i++) {
+                double buckets = Math.pow(2, bits.get(i));
+                if ((bound & (1L << i)) != 0) {
+                    candidates *= Math.max(1.0 / distinct[i], 1 / buckets);
+                } else {
+                    freeBuckets *= Math.min(distinct[i], buckets);
+                }
+            }
+            double bucketReads = Math.max(1, Math.min(candidates, freeBuckets));
+            total += pattern.getValue() * (candidates + bucketReads);
+            lookups += pattern.getValue();
+        }
+        return lookups == 0 ? 0 : total / lookups;
+    }
+}
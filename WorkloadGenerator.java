@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Writes synthetic instruction files: one "c" for a table, then inserts, then
+ * lookups. Everything is drawn from a Random seeded with --seed, so the same
+ * options always give the same file and timings can be compared between builds.
+ *
+ * The value of column c is "c<c>_<k>" where k follows a Zipf distribution over the
+ * column's cardinality (skew 0 is uniform, 1 is the classic Zipf). Lookups draw
+ * their bound values from the same distributions, so a lookup with few wildcards
+ * on a low cardinality column matches many rows and a skewed column makes the
+ * popular values both common in the table and common in the lookups.
+ *
+ * java WorkloadGenerator out.txt [--table=Gen] [--ranges=8,8,8] [--cardinality=100|c1,c2,...]
+ *     [--skew=0.0] [--rows=10000] [--lookups=1000] [--wildcards=1] [--index=True|False|both]
+ *     [--options="hash=xxhash64 rows=packed"] [--seed=42]
+ */
+public class WorkloadGenerator {
+    private String tableName = "Gen";
+    private List<Integer> columnRanges = List.of(8, 8, 8);
+    // one per column, or a single one for every column
+    private List<Integer> cardinalities = List.of(100);
+    private double skew = 0.0;
+    private int numRows = 10000;
+    private int numLookups = 1000;
+    private int wildcards = 1;
+    private String useIndex = "both";
+    private String tableOptions = "";
+    private long seed = 42;
+
+    public static void main(String args[]) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Please use this format: \njava WorkloadGenerator out.txt [--table=Gen] [--ranges=8,8,8]" +
+                    " [--cardinality=100|c1,c2,...] [--skew=0.0] [--rows=10000] [--lookups=1000] [--wildcards=1]" +
+                    " [--index=True|False|both] [--options=\"hash=xxhash64 rows=packed\"] [--seed=42]");
+            System.exit(1);
+        }
+        WorkloadGenerator generator = new WorkloadGenerator();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                System.out.println("unrecognized option: " + args[i]);
+                System.exit(1);
+            }
+            switch (option[0]) {
+                case "--table": generator.setTableName(option[1]); break;
+                case "--ranges": generator.setColumnRanges(parseList(option[1])); break;
+                case "--cardinality": generator.setCardinalities(parseList(option[1])); break;
+                case "--skew": generator.setSkew(Double.parseDouble(option[1])); break;
+                case "--rows": generator.setNumRows(Integer.parseInt(option[1])); break;
+                case "--lookups": generator.setNumLookups(Integer.parseInt(option[1])); break;
+                case "--wildcards": generator.setWildcards(Integer.parseInt(option[1])); break;
+                case "--index": generator.setUseIndex(option[1]); break;
+                case "--options": generator.setTableOptions(option[1]); break;
+                case "--seed": generator.setSeed(Long.parseLong(option[1])); break;
+                default:
+                    System.out.println("unrecognized option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        generator.write(new File(args[0]));
+    }
+
+    private static List<Integer> parseList(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Integer.parseInt(value));
+        }
+        return values;
+    }
+
+    public WorkloadGenerator setTableName(String tableName) { this.tableName = tableName; return this; }
+    public WorkloadGenerator setColumnRanges(List<Integer> ranges) { this.columnRanges = ranges; return this; }
+    public WorkloadGenerator setCardinalities(List<Integer> cardinalities) { this.cardinalities = cardinalities; return this; }
+    public WorkloadGenerator setSkew(double skew) { this.skew = skew; return this; }
+    public WorkloadGenerator setNumRows(int numRows) { this.numRows = numRows; return this; }
+    public WorkloadGenerator setNumLookups(int numLookups) { this.numLookups = numLookups; return this; }
+    public WorkloadGenerator setWildcards(int wildcards) { this.wildcards = wildcards; return this; }
+    public WorkloadGenerator setUseIndex(String useIndex) { this.useIndex = useIndex; return this; }
+    public WorkloadGenerator setTableOptions(String tableOptions) { this.tableOptions = tableOptions; return this; }
+    public WorkloadGenerator setSeed(long seed) { this.seed = seed; return this; }
+
+    public void write(File file) throws IOException {
+        int numColumns = this.columnRanges.size();
+        if (this.cardinalities.size() != 1 && this.cardinalities.size() != numColumns) {
+            System.out.println("expected 1 or " + numColumns + " cardinalities, got " + this.cardinalities.size());
+            System.exit(1);
+        }
+        if (this.wildcards > numColumns) {
+            System.out.println("a lookup cannot have more wildcards than the table has columns");
+            System.exit(1);
+        }
+        double[][] cdfs = new double[numColumns][];
+        for (int c = 0; c < numColumns; c++) {
+            cdfs[c] = zipfCdf(this.cardinalities.get(this.cardinalities.size() == 1 ? 0 : c), this.skew);
+        }
+        Random random = new Random(this.seed);
+
+        try (PrintWriter out = new PrintWriter(file)) {
+            StringBuilder create = new StringBuilder("c ").append(this.tableName);
+            for (int range : this.columnRanges) {
+                create.append(' ').append(range);
+            }
+            if (!this.tableOptions.isEmpty()) {
+                create.append(' ').append(this.tableOptions);
+            }
+            out.println(create);
+
+            for (int r = 0; r < this.numRows; r++) {
+                StringBuilder insert = new StringBuilder("i ").append(this.tableName);
+                for (int c = 0; c < numColumns; c++) {
+                    insert.append(' ').append(value(c, cdfs[c], random));
+                }
+                out.println(insert);
+            }
+
+            Integer[] columns = new Integer[numColumns];
+            for (int q = 0; q < this.numLookups; q++) {
+                String[] pattern = new String[numColumns];
+                for (int c = 0; c < numColumns; c++) {
+                    pattern[c] = value(c, cdfs[c], random);
+                    columns[c] = c;
+                }
+                // a random choice of wildcard columns, the first ones of a shuffle
+                for (int i = 0; i < this.wildcards; i++) {
+                    int j = i + random.nextInt(numColumns - i);
+                    Integer swap = columns[i];
+                    columns[i] = columns[j];
+                    columns[j] = swap;
+                    pattern[columns[i]] = "*";
+                }
+                String values = String.join(" ", Arrays.asList(pattern));
+                if (!this.useIndex.equals("False")) {
+                    out.println("l " + this.tableName + " True " + values);
+                }
+                if (!this.useIndex.equals("True")) {
+                    out.println("l " + this.tableName + " False " + values);
+                }
+            }
+        }
+    }
+
+    private static String value(int column, double[] cdf, Random random) {
+        int k = Arrays.binarySearch(cdf, random.nextDouble());
+        // binarySearch returns -(insertion point) - 1 when the draw is not exactly on a bound
+        return "c" + (column + 1) + "_" + (k >= 0 ? k : -k - 1);
+    }
+
+    // cumulative probabilities of ranks 0..n-1 with weight 1 / (rank + 1)^skew
+    private static double[] zipfCdf(int n, double skew) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1.0 / Math.pow(k + 1, skew);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= total;
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,96 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/*
+ * XXH64 with a seed of 0.
+ */
+public class XxHash64PartitionHash implements PartitionHashFunction {
+    public static final String NAME = "xxhash64";
+    public static final XxHash64PartitionHash INSTANCE = new XxHash64PartitionHash();
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    // blocks are read little endian, as the reference implementation reads them on x86
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    public String getName() {
+        return NAME;
+    }
+
+    public long hash(String value) {
+        Utf8Scratch scratch = Utf8Scratch.encode(value);
+        byte[] data = scratch.bytes;
+        int length = scratch.length;
+        int pos = 0;
+        long h;
+
+        if (length >= 32) {
+            long v1 = P1 + P2;
+            long v2 = P2;
+            long v3 = 0;
+            long v4 = -P1;
+            for (; pos + 32 <= length; pos += 32) {
+                v1 = round(v1, readLong(data, pos));
+                v2 = round(v2, readLong(data, pos + 8));
+                v3 = round(v3, readLong(data, pos + 16));
+                v4 = round(v4, readLong(data, pos + 24));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = P5;
+        }
+        h += length;
+
+        for (; pos + 8 <= length; pos += 8) {
+            h ^= round(0, readLong(data, pos));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (pos + 4 <= length) {
+            h ^= (readInt(data, pos) & 0xffffffffL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            pos += 4;
+        }
+        for (; pos < length; pos++) {
+            h ^= (data[pos] & 0xff) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * P1 + P4;
+    }
+
+    private static long readLong(byte[] data, int pos) {
+        return (long) LONG_LE.get(data, pos);
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (int) INT_LE.get(data, pos);
+    }
+}